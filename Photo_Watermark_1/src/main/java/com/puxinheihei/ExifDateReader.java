@@ -0,0 +1,283 @@
+package com.puxinheihei;
+
+import com.drew.imaging.ImageMetadataReader;
+import com.drew.imaging.ImageProcessingException;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifSubIFDDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * EXIF 拍摄日期读取
+ *
+ * ImageMetadataReader 会解析文件中所有的元数据目录（IFD、缩略图、厂商注释、XMP、ICC……），
+ * 而水印只需要一个日期。这里对 JPEG 只读取标记段头部找到 APP1(Exif) 段，
+ * 将这一段内存映射后直接沿 IFD0 -> Exif IFD 找到 DateTimeOriginal / DateTime 标签。
+ *
+ * 非 JPEG 文件或结构异常的文件回退到 metadata-extractor，结果与原来的读取方式一致。
+ */
+public class ExifDateReader {
+
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int APP1 = 0xE1;
+
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_DATETIME_ORIGINAL = 0x9003;
+    private static final int TAG_DATETIME = 0x0132;
+
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_LONG = 4;
+
+    // "Exif\0\0" 标识之后才是 TIFF 头
+    private static final int EXIF_HEADER_LENGTH = 6;
+
+    private ExifDateReader() {
+    }
+
+    /**
+     * 读取拍摄日期
+     *
+     * @return yyyy:MM:dd 格式的日期，没有 EXIF 日期时返回 null
+     */
+    public static String readDate(File imageFile) {
+        try {
+            return readFast(imageFile);
+        } catch (IOException | RuntimeException e) {
+            // 非 JPEG 或结构异常，交给 metadata-extractor 处理
+            return readWithMetadataExtractor(imageFile);
+        }
+    }
+
+    /**
+     * 快速路径：只映射 APP1 段并直接查找日期标签
+     *
+     * @return 日期，文件中没有 Exif 段或日期标签时返回 null
+     * @throws IOException 文件不是 JPEG 或结构无法识别，需要回退
+     */
+    static String readFast(File imageFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(imageFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(EXIF_HEADER_LENGTH);
+
+            readFully(channel, header, 0, 2);
+            if ((header.get(0) & 0xFF) != 0xFF || (header.get(1) & 0xFF) != SOI) {
+                throw new UnsupportedLayoutException("不是 JPEG 文件");
+            }
+
+            // 逐个读取标记段头部，直到找到 APP1(Exif) 或图像数据开始
+            long pos = 2;
+            while (pos + 4 <= size) {
+                readFully(channel, header, pos, 4);
+                if ((header.get(0) & 0xFF) != 0xFF) {
+                    throw new UnsupportedLayoutException("标记段错位");
+                }
+                int marker = header.get(1) & 0xFF;
+                if (marker == 0xFF) {
+                    pos++;
+                    continue;
+                }
+                if (marker == SOS || marker == EOI) {
+                    return null;
+                }
+
+                int length = ((header.get(2) & 0xFF) << 8) | (header.get(3) & 0xFF);
+                if (length < 2 || pos + 2 + length > size) {
+                    throw new UnsupportedLayoutException("标记段长度错误");
+                }
+
+                if (marker == APP1 && length >= 2 + EXIF_HEADER_LENGTH + 8) {
+                    readFully(channel, header, pos + 4, EXIF_HEADER_LENGTH);
+                    if (header.get(0) == 'E' && header.get(1) == 'x' && header.get(2) == 'i' && header.get(3) == 'f'
+                            && header.get(4) == 0 && header.get(5) == 0) {
+                        long tiffStart = pos + 4 + EXIF_HEADER_LENGTH;
+                        int tiffLength = length - 2 - EXIF_HEADER_LENGTH;
+                        MappedByteBuffer tiff = channel.map(FileChannel.MapMode.READ_ONLY, tiffStart, tiffLength);
+                        return readTiffDate(tiff);
+                    }
+                }
+                pos += 2 + length;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 在 TIFF 结构中查找 Exif IFD 的日期标签
+     */
+    private static String readTiffDate(ByteBuffer tiff) throws IOException {
+        if (tiff.get(0) == 'I' && tiff.get(1) == 'I') {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (tiff.get(0) == 'M' && tiff.get(1) == 'M') {
+            tiff.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            throw new UnsupportedLayoutException("TIFF 字节序错误");
+        }
+        if ((tiff.getShort(2) & 0xFFFF) != 42) {
+            throw new UnsupportedLayoutException("TIFF 标识错误");
+        }
+
+        int exifIfd = -1;
+        int ifd0 = tiff.getInt(4);
+        int entry = findEntry(tiff, ifd0, TAG_EXIF_IFD);
+        if (entry >= 0) {
+            int type = tiff.getShort(entry + 2) & 0xFFFF;
+            if (type != TYPE_LONG && type != 13) {
+                throw new UnsupportedLayoutException("Exif IFD 指针类型错误");
+            }
+            exifIfd = tiff.getInt(entry + 8);
+        }
+        if (exifIfd < 0) {
+            // 没有 Exif 子目录，与原来只读取 ExifSubIFDDirectory 的行为一致
+            return null;
+        }
+
+        String original = readAscii(tiff, findEntry(tiff, exifIfd, TAG_DATETIME_ORIGINAL));
+        String date = toDate(original);
+        if (date != null) {
+            return date;
+        }
+        String modified = readAscii(tiff, findEntry(tiff, exifIfd, TAG_DATETIME));
+        date = toDate(modified);
+        if (date != null) {
+            return date;
+        }
+        if (!isBlank(original) || !isBlank(modified)) {
+            // 存在日期但格式不标准，交给 metadata-extractor 解析
+            throw new UnsupportedLayoutException("日期格式无法识别");
+        }
+        return null;
+    }
+
+    /**
+     * 在 IFD 中查找标签，返回条目的偏移，找不到返回 -1
+     */
+    private static int findEntry(ByteBuffer tiff, int ifd, int tag) throws IOException {
+        if (ifd < 8 || ifd + 2 > tiff.limit()) {
+            throw new UnsupportedLayoutException("IFD 偏移错误");
+        }
+        int count = tiff.getShort(ifd) & 0xFFFF;
+        if (ifd + 2 + count * 12 > tiff.limit()) {
+            throw new UnsupportedLayoutException("IFD 越界");
+        }
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * 12;
+            if ((tiff.getShort(entry) & 0xFFFF) == tag) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private static String readAscii(ByteBuffer tiff, int entry) throws IOException {
+        if (entry < 0) {
+            return null;
+        }
+        int type = tiff.getShort(entry + 2) & 0xFFFF;
+        int count = tiff.getInt(entry + 4);
+        if (type != TYPE_ASCII || count < 0) {
+            throw new UnsupportedLayoutException("日期标签类型错误");
+        }
+        // 不超过 4 字节的值直接存放在条目中
+        int offset = count <= 4 ? entry + 8 : tiff.getInt(entry + 8);
+        if (offset < 0 || offset + count > tiff.limit()) {
+            throw new UnsupportedLayoutException("日期标签越界");
+        }
+
+        StringBuilder value = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            byte b = tiff.get(offset + i);
+            if (b == 0) {
+                break;
+            }
+            value.append((char) (b & 0xFF));
+        }
+        return value.toString();
+    }
+
+    /**
+     * 将 "yyyy:MM:dd HH:mm:ss" 形式的日期转换为 yyyy:MM:dd，格式不符返回 null
+     */
+    private static String toDate(String value) {
+        if (value == null || value.length() < 10) {
+            return null;
+        }
+        for (int i : new int[]{0, 1, 2, 3, 5, 6, 8, 9}) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return null;
+            }
+        }
+        int month = Integer.parseInt(value.substring(5, 7));
+        int day = Integer.parseInt(value.substring(8, 10));
+        if (month < 1 || month > 12 || day < 1 || day > 31) {
+            return null;
+        }
+        return value.substring(0, 4) + ":" + value.substring(5, 7) + ":" + value.substring(8, 10);
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.replace(':', ' ').trim().isEmpty();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int length)
+            throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new UnsupportedLayoutException("文件提前结束");
+            }
+        }
+    }
+
+    /**
+     * 通过 metadata-extractor 读取完整元数据后取日期
+     */
+    static String readWithMetadataExtractor(File imageFile) {
+        try {
+            Metadata metadata = ImageMetadataReader.readMetadata(imageFile);
+            ExifSubIFDDirectory directory = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
+
+            if (directory != null) {
+                // EXIF 时间没有时区，按本地时间解析，避免格式化时日期偏移
+                TimeZone timeZone = TimeZone.getDefault();
+                Date date = directory.getDate(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL, null, timeZone);
+                if (date != null) {
+                    return new SimpleDateFormat("yyyy:MM:dd").format(date);
+                }
+
+                // 如果原始日期时间不存在，尝试其他日期标签
+                date = directory.getDate(ExifSubIFDDirectory.TAG_DATETIME, null, timeZone);
+                if (date != null) {
+                    return new SimpleDateFormat("yyyy:MM:dd").format(date);
+                }
+            }
+        } catch (ImageProcessingException | IOException e) {
+            System.out.println("无法读取 " + imageFile.getName() + " 的EXIF信息: " + e.getMessage());
+        } catch (Exception e) {
+            System.out.println("处理 " + imageFile.getName() + " 时发生未知错误: " + e.getMessage());
+        }
+
+        return null;
+    }
+
+    /**
+     * 文件结构无法用快速路径处理
+     */
+    private static class UnsupportedLayoutException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedLayoutException(String message) {
+            super(message);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,389 @@
+package com.puxinheihei;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * 图片编解码
+ *
+ * 代替静态的 ImageIO.read / ImageIO.write：
+ * <ul>
+ *     <li>每个线程按格式缓存 ImageReader / ImageWriter，不再每次查找服务提供者、创建新实例；</li>
+ *     <li>JPEG 的质量、渐进式和色度抽样可以显式设置；</li>
+ *     <li>输出经过带缓冲的 FileChannel 写入，不再逐次写 RandomAccessFile，也不需要临时缓存文件。</li>
+ * </ul>
+ * 读取时和 ImageIO.read 一样按文件内容（而不是扩展名）识别格式。
+ */
+public final class ImageCodec {
+
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    private static final ThreadLocal<List<ImageReader>> READERS = ThreadLocal.withInitial(ArrayList::new);
+    private static final ThreadLocal<Map<String, ImageWriter>> WRITERS = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * JPEG 色度抽样
+     */
+    public enum ChromaSubsampling {
+        // 不抽样，色彩边缘最清晰，文件最大
+        YUV444(1, 1),
+        // 水平方向减半
+        YUV422(2, 1),
+        // 水平和垂直方向都减半（JPEG 编码器默认）
+        YUV420(2, 2);
+
+        private final int lumaHorizontal;
+        private final int lumaVertical;
+
+        ChromaSubsampling(int lumaHorizontal, int lumaVertical) {
+            this.lumaHorizontal = lumaHorizontal;
+            this.lumaVertical = lumaVertical;
+        }
+
+        /**
+         * 解析命令行取值：444、422、420
+         */
+        public static ChromaSubsampling parse(String value) {
+            for (ChromaSubsampling subsampling : values()) {
+                if (subsampling.name().substring(3).equals(value.trim())) {
+                    return subsampling;
+                }
+            }
+            throw new IllegalArgumentException("无效的色度抽样: " + value + "（可选 444, 422, 420）");
+        }
+    }
+
+    /**
+     * 编码参数，不可变
+     */
+    public static final class EncodeSettings {
+
+        // 与 ImageIO.write 的默认输出相同
+        public static final EncodeSettings DEFAULT = new EncodeSettings(0.75f, false, ChromaSubsampling.YUV420);
+
+        private final float quality;
+        private final boolean progressive;
+        private final ChromaSubsampling subsampling;
+
+        /**
+         * @param quality     JPEG 质量，0 到 1
+         * @param progressive 是否输出渐进式 JPEG（通常更小，编码更慢）
+         */
+        public EncodeSettings(float quality, boolean progressive, ChromaSubsampling subsampling) {
+            if (quality < 0 || quality > 1) {
+                throw new IllegalArgumentException("JPEG 质量必须在 0 到 1 之间: " + quality);
+            }
+            this.quality = quality;
+            this.progressive = progressive;
+            this.subsampling = subsampling;
+        }
+
+        public float getQuality() {
+            return quality;
+        }
+
+        public boolean isProgressive() {
+            return progressive;
+        }
+
+        public ChromaSubsampling getSubsampling() {
+            return subsampling;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof EncodeSettings)) {
+                return false;
+            }
+            EncodeSettings that = (EncodeSettings) o;
+            return Float.compare(quality, that.quality) == 0 && progressive == that.progressive
+                    && subsampling == that.subsampling;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(quality, progressive, subsampling);
+        }
+    }
+
+    private ImageCodec() {
+    }
+
+    /**
+     * 读取图片，无法识别格式时返回 null（与 ImageIO.read 相同）
+     */
+    public static BufferedImage read(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null) {
+                throw new IOException("无法打开文件: " + file);
+            }
+            ImageReader reader = readerFor(input);
+            if (reader == null) {
+                return null;
+            }
+            try {
+                reader.setInput(input, true, true);
+                return reader.read(0, reader.getDefaultReadParam());
+            } catch (IOException | RuntimeException e) {
+                // 出错后的读取器状态不可信，丢弃
+                READERS.get().remove(reader);
+                reader.dispose();
+                throw e;
+            } finally {
+                reader.setInput(null);
+            }
+        }
+    }
+
+    /**
+     * 按格式写出图片
+     *
+     * @return 没有该格式的编码器时返回 false（与 ImageIO.write 相同）
+     */
+    public static boolean write(BufferedImage image, String formatName, File file, EncodeSettings settings)
+            throws IOException {
+        ImageWriter writer = writerFor(formatName);
+        if (writer == null) {
+            return false;
+        }
+
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        IIOMetadata metadata = null;
+        if (isJpeg(formatName)) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(settings.getQuality());
+            param.setProgressiveMode(settings.isProgressive()
+                    ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+            metadata = jpegMetadata(writer, image, param, settings.getSubsampling());
+        }
+
+        try (ChannelImageOutputStream output = new ChannelImageOutputStream(
+                FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING))) {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, metadata), param);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            WRITERS.get().remove(formatName.toLowerCase());
+            writer.dispose();
+            throw e;
+        } finally {
+            writer.setOutput(null);
+        }
+    }
+
+    private static ImageReader readerFor(ImageInputStream input) throws IOException {
+        List<ImageReader> cached = READERS.get();
+        for (ImageReader reader : cached) {
+            ImageReaderSpi provider = reader.getOriginatingProvider();
+            if (provider != null && provider.canDecodeInput(input)) {
+                return reader;
+            }
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        cached.add(reader);
+        return reader;
+    }
+
+    private static ImageWriter writerFor(String formatName) {
+        Map<String, ImageWriter> cached = WRITERS.get();
+        String key = formatName.toLowerCase();
+        ImageWriter writer = cached.get(key);
+        if (writer == null) {
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(formatName);
+            if (!writers.hasNext()) {
+                return null;
+            }
+            writer = writers.next();
+            cached.put(key, writer);
+        }
+        return writer;
+    }
+
+    private static boolean isJpeg(String formatName) {
+        String name = formatName.toLowerCase();
+        return "jpeg".equals(name) || "jpg".equals(name);
+    }
+
+    /**
+     * 在默认元数据中设置亮度分量的抽样因子（色度分量保持 1x1）
+     */
+    private static IIOMetadata jpegMetadata(ImageWriter writer, BufferedImage image, ImageWriteParam param,
+                                            ChromaSubsampling subsampling) throws IOException {
+        IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), param);
+        if (metadata == null || subsampling == ChromaSubsampling.YUV420 || !hasFormat(metadata)) {
+            return metadata;
+        }
+        Node root = metadata.getAsTree(JPEG_METADATA_FORMAT);
+        NodeList components = ((Element) root).getElementsByTagName("componentSpec");
+        // 灰度图只有一个分量，不需要抽样
+        if (components.getLength() < 3) {
+            return metadata;
+        }
+        Element luma = (Element) components.item(0);
+        luma.setAttribute("HsamplingFactor", String.valueOf(subsampling.lumaHorizontal));
+        luma.setAttribute("VsamplingFactor", String.valueOf(subsampling.lumaVertical));
+        try {
+            metadata.setFromTree(JPEG_METADATA_FORMAT, root);
+        } catch (IIOInvalidTreeException e) {
+            throw new IOException("无法设置色度抽样: " + e.getMessage(), e);
+        }
+        return metadata;
+    }
+
+    private static boolean hasFormat(IIOMetadata metadata) {
+        String[] formats = metadata.getMetadataFormatNames();
+        if (formats != null) {
+            for (String format : formats) {
+                if (JPEG_METADATA_FORMAT.equals(format)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 基于 FileChannel 的 ImageOutputStream
+     *
+     * 连续写入先进入缓冲区，缓冲区满、发生 seek（PNG 回填块长度等）或读取时再按位置写入通道。
+     */
+    private static final class ChannelImageOutputStream extends ImageOutputStreamImpl {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        // 缓冲区第一个字节在文件中的位置
+        private long bufferStart;
+
+        private ChannelImageOutputStream(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            flushBits();
+            prepareWrite(1);
+            buffer.put((byte) b);
+            streamPos++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            flushBits();
+            if (len >= buffer.capacity()) {
+                // 大块数据直接写入通道
+                flushBuffer();
+                ByteBuffer data = ByteBuffer.wrap(b, off, len);
+                long position = streamPos;
+                while (data.hasRemaining()) {
+                    position += channel.write(data, position);
+                }
+                streamPos += len;
+                bufferStart = streamPos;
+                return;
+            }
+            prepareWrite(len);
+            buffer.put(b, off, len);
+            streamPos += len;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkClosed();
+            flushBuffer();
+            bitOffset = 0;
+            ByteBuffer one = ByteBuffer.allocate(1);
+            if (channel.read(one, streamPos) <= 0) {
+                return -1;
+            }
+            streamPos++;
+            bufferStart = streamPos;
+            return one.get(0) & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkClosed();
+            flushBuffer();
+            bitOffset = 0;
+            int read = channel.read(ByteBuffer.wrap(b, off, len), streamPos);
+            if (read > 0) {
+                streamPos += read;
+            }
+            bufferStart = streamPos;
+            return read;
+        }
+
+        @Override
+        public long length() {
+            try {
+                return Math.max(channel.size(), bufferStart + buffer.position());
+            } catch (IOException e) {
+                return -1L;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flushBuffer();
+                super.close();
+            } finally {
+                channel.close();
+            }
+        }
+
+        /**
+         * 写入位置与缓冲区末尾不连续（seek 过）或空间不足时先把缓冲区写出
+         */
+        private void prepareWrite(int length) throws IOException {
+            if (streamPos != bufferStart + buffer.position() || buffer.remaining() < length) {
+                flushBuffer();
+                bufferStart = streamPos;
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            buffer.flip();
+            long position = bufferStart;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+            bufferStart = streamPos;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,118 @@
+package com.puxinheihei;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 按需遍历目录中的图片文件
+ *
+ * 基于 Files.walkFileTree（内部按目录打开 DirectoryStream），找到一个文件就立即交给调用方，
+ * 不会先把整棵目录树读进内存。调用方在处理队列已满时阻塞，遍历也随之暂停。
+ * 无法访问的目录只打印提示并跳过，不会中断整个遍历。
+ */
+public class ImageFileWalker {
+
+    /**
+     * 接收遍历到的图片文件
+     */
+    @FunctionalInterface
+    public interface Visitor {
+        void visit(Path root, Path file) throws InterruptedException;
+    }
+
+    private final boolean recursive;
+    private final PathMatcher matcher;
+    private final boolean matchRelativePath;
+    private final Set<Path> excludedDirectories = new HashSet<>();
+
+    /**
+     * @param glob     文件过滤模式，为 null 时不过滤；包含 / 时匹配相对路径，否则只匹配文件名
+     * @param excluded 不进入的目录（例如位于输入目录中的输出目录）
+     */
+    public ImageFileWalker(boolean recursive, String glob, Collection<Path> excluded) {
+        this.recursive = recursive;
+        this.matcher = glob == null ? null : FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        this.matchRelativePath = glob != null && glob.contains("/");
+        for (Path path : excluded) {
+            excludedDirectories.add(path.toAbsolutePath().normalize());
+        }
+    }
+
+    /**
+     * 遍历目录，按发现顺序回调
+     */
+    public void walk(Path root, Visitor visitor) throws IOException, InterruptedException {
+        Path start = root.toAbsolutePath().normalize();
+        InterruptedException[] interrupted = new InterruptedException[1];
+
+        Files.walkFileTree(start, EnumSet.noneOf(FileVisitOption.class), recursive ? Integer.MAX_VALUE : 1,
+                new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                        if (!dir.equals(start) && isExcluded(dir)) {
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (!attrs.isRegularFile() || !accepts(start, file)) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        try {
+                            visitor.visit(start, file);
+                            return FileVisitResult.CONTINUE;
+                        } catch (InterruptedException e) {
+                            interrupted[0] = e;
+                            return FileVisitResult.TERMINATE;
+                        }
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        System.out.println("无法访问 " + file + ": " + e.getMessage());
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+
+        if (interrupted[0] != null) {
+            throw interrupted[0];
+        }
+    }
+
+    public boolean isRecursive() {
+        return recursive;
+    }
+
+    /**
+     * 文件是否为需要处理的图片（扩展名和过滤模式）
+     */
+    public boolean accepts(Path root, Path file) {
+        if (!ImageWatermark.isImageFileName(file.getFileName().toString())) {
+            return false;
+        }
+        if (matcher == null) {
+            return true;
+        }
+        return matcher.matches(matchRelativePath ? root.relativize(file) : file.getFileName());
+    }
+
+    /**
+     * 目录是否不应进入
+     */
+    public boolean isExcluded(Path directory) {
+        return excludedDirectories.contains(directory.toAbsolutePath().normalize());
+    }
+}
\ No newline at end of file
@@ -1,22 +1,18 @@
 package com.puxinheihei;
 
-import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import com.drew.imaging.ImageMetadataReader;
-import com.drew.imaging.ImageProcessingException;
-import com.drew.metadata.Directory;
-import com.drew.metadata.Metadata;
-import com.drew.metadata.Tag;
-import com.drew.metadata.exif.ExifSubIFDDirectory;
 import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class ImageWatermark {
 
@@ -27,7 +23,41 @@ public class ImageWatermark {
     private static final String BOTTOM_RIGHT = "bottom-right";
     private static final String CENTER = "center";
 
+    // 预渲染的水印文字，同一批照片的日期大多相同
+    private static final TextStampCache STAMP_CACHE = new TextStampCache(64, 64L * 1024 * 1024);
+
+    // 单线程处理时复用的渲染画布
+    private static final RasterPool RASTER_POOL = new RasterPool(BufferedImage.TYPE_INT_RGB, 1);
+
     public static void main(String[] args) {
+        WatermarkOptions options;
+        try {
+            options = WatermarkOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(WatermarkOptions.usage());
+            System.exit(2);
+            return;
+        }
+        if (options.isHelp()) {
+            System.out.println(WatermarkOptions.usage());
+            return;
+        }
+
+        // 指定了输入时以非交互方式运行，便于脚本调用
+        if (options.hasInputs()) {
+            if (options.isWatch()) {
+                // 正常停止时直接返回，避免在关闭钩子运行期间调用 System.exit
+                int status = WatchFolderDaemon.run(options);
+                if (status != 0) {
+                    System.exit(status);
+                }
+                return;
+            }
+            System.exit(WatermarkBatch.run(options));
+            return;
+        }
+
         Scanner scanner = new Scanner(System.in);
 
         // 获取用户输入的图片目录路径
@@ -80,7 +110,9 @@ public class ImageWatermark {
         String position = scanner.nextLine();
 
         // 处理目录中的所有图片文件
-        processImagesInDirectory(directory, fontSize, color, position);
+        processImagesInDirectory(directory, fontSize, color, position, options.getThreads(),
+                new PixelBudget(options.getMemoryBudget()), options.isLosslessJpeg(), options.getEncodeSettings(),
+                options.isIncremental());
 
         System.out.println("处理完成!");
         scanner.close();
@@ -89,7 +121,7 @@ public class ImageWatermark {
     /**
      * 解析颜色输入
      */
-    private static Color parseColor(String colorInput) {
+    static Color parseColor(String colorInput) {
         if (colorInput == null || colorInput.isEmpty()) {
             return Color.WHITE; // 默认白色
         }
@@ -123,7 +155,9 @@ public class ImageWatermark {
     /**
      * 处理目录中的所有图片
      */
-    private static void processImagesInDirectory(File directory, int fontSize, Color color, String position) {
+    private static void processImagesInDirectory(File directory, int fontSize, Color color, String position,
+                                                 int threads, PixelBudget pixelBudget, boolean losslessJpeg,
+                                                 ImageCodec.EncodeSettings encodeSettings, boolean incremental) {
         // 创建水印输出目录
         File outputDir = new File(directory.getAbsolutePath() + "_watermark");
         if (!outputDir.exists()) {
@@ -142,140 +176,250 @@ public class ImageWatermark {
             return;
         }
 
-        int processedCount = 0;
-        for (File file : files) {
-            if (isImageFile(file)) {
-                try {
-                    // 获取EXIF拍摄时间
-                    String dateTime = getExifDateTime(file);
-
-                    // 如果EXIF中没有日期信息，使用文件最后修改时间
-                    if (dateTime == null) {
-                        dateTime = new SimpleDateFormat("yyyy:MM:dd").format(new Date(file.lastModified()));
-                        System.out.println("文件 " + file.getName() + " 无EXIF信息，使用文件修改时间");
-                    } else {
-                        System.out.println("文件 " + file.getName() + " 从EXIF获取时间: " + dateTime);
-                    }
-
-                    // 添加水印并保存
-                    addWatermarkToImage(file, outputDir, dateTime, fontSize, color, position);
-                    processedCount++;
+        // 读取输出目录中的处理清单；增量模式下跳过没有变化的文件，强制模式下只更新清单
+        WatermarkManifest manifest = null;
+        try {
+            manifest = WatermarkManifest.open(directory, outputDir, fontSize, color, position, losslessJpeg,
+                    encodeSettings);
+            if (incremental) {
+                System.out.println("增量模式，清单中已有 " + manifest.size() + " 条记录");
+            }
+        } catch (IOException e) {
+            System.out.println("无法读取处理清单，将处理全部文件: " + e.getMessage());
+        }
 
-                } catch (Exception e) {
-                    System.out.println("处理文件 " + file.getName() + " 时出错: " + e.getMessage());
-                    e.printStackTrace();
+        WatermarkRunner runner = new WatermarkRunner(threads, fontSize, color, position, pixelBudget,
+                losslessJpeg, encodeSettings, incremental);
+        try {
+            for (File file : files) {
+                if (isImageFile(file)) {
+                    runner.submit(file, outputDir, manifest);
+                }
+            }
+            int processedCount = runner.finish();
+            System.out.println("共处理了 " + processedCount + " 个图片文件");
+            if (runner.getSkippedCount() > 0) {
+                System.out.println("跳过了 " + runner.getSkippedCount() + " 个未变化的图片文件");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            runner.shutdownNow();
+            System.out.println("处理被中断");
+        } finally {
+            if (manifest != null) {
+                try {
+                    manifest.close();
+                } catch (IOException e) {
+                    System.out.println("保存处理清单失败: " + e.getMessage());
                 }
             }
         }
+    }
+
+    /**
+     * 获取水印文本：优先使用EXIF拍摄时间，没有则使用文件最后修改时间
+     */
+    static String resolveWatermarkText(File file) {
+        String dateTime = ExifDateReader.readDate(file);
+
+        // 如果EXIF中没有日期信息，使用文件最后修改时间
+        if (dateTime == null) {
+            dateTime = formatModifiedDate(file.lastModified());
+            System.out.println("文件 " + file.getName() + " 无EXIF信息，使用文件修改时间");
+        } else {
+            System.out.println("文件 " + file.getName() + " 从EXIF获取时间: " + dateTime);
+        }
+        return dateTime;
+    }
 
-        System.out.println("共处理了 " + processedCount + " 个图片文件");
+    /**
+     * 没有EXIF日期时水印使用的修改日期
+     */
+    static String formatModifiedDate(long modifiedMillis) {
+        return new SimpleDateFormat("yyyy:MM:dd").format(new Date(modifiedMillis));
     }
 
     /**
      * 检查文件是否为图片
      */
-    private static boolean isImageFile(File file) {
+    static boolean isImageFile(File file) {
         if (file.isDirectory()) {
             return false;
         }
-        String name = file.getName().toLowerCase();
+        return isImageFileName(file.getName());
+    }
+
+    /**
+     * 按扩展名判断是否为图片
+     */
+    static boolean isImageFileName(String fileName) {
+        String name = fileName.toLowerCase();
         return name.endsWith(".jpg") || name.endsWith(".jpeg") ||
                 name.endsWith(".png") || name.endsWith(".bmp") ||
                 name.endsWith(".gif") || name.endsWith(".tiff");
     }
 
     /**
-     * 从EXIF信息中获取拍摄时间
+     * 添加水印到图片
      */
-    private static String getExifDateTime(File imageFile) {
+    static boolean addWatermarkToImage(File imageFile, File outputDir, String watermarkText,
+                                       int fontSize, Color color, String position, boolean losslessJpeg,
+                                       ImageCodec.EncodeSettings encodeSettings) {
         try {
-            Metadata metadata = ImageMetadataReader.readMetadata(imageFile);
-            ExifSubIFDDirectory directory = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
-
-            if (directory != null) {
-                Date date = directory.getDate(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL);
-                if (date != null) {
-                    return new SimpleDateFormat("yyyy:MM:dd").format(date);
-                }
+            // JPEG 优先只重新编码水印所在的区域
+            if (losslessJpeg && tryStampJpeg(imageFile, outputDir, watermarkText, fontSize, color, position)) {
+                return true;
+            }
 
-                // 如果原始日期时间不存在，尝试其他日期标签
-                date = directory.getDate(ExifSubIFDDirectory.TAG_DATETIME);
-                if (date != null) {
-                    return new SimpleDateFormat("yyyy:MM:dd").format(date);
-                }
+            // 读取原始图片
+            BufferedImage originalImage = ImageCodec.read(imageFile);
+            if (originalImage == null) {
+                System.out.println("无法读取图片: " + imageFile.getName());
+                return false;
             }
-        } catch (ImageProcessingException | IOException e) {
-            System.out.println("无法读取 " + imageFile.getName() + " 的EXIF信息: " + e.getMessage());
-        } catch (Exception e) {
-            System.out.println("处理 " + imageFile.getName() + " 时发生未知错误: " + e.getMessage());
-        }
 
-        return null;
+            BufferedImage watermarkedImage = renderWatermark(originalImage, watermarkText, fontSize, color, position,
+                    RASTER_POOL);
+            writeWatermarkedImage(watermarkedImage, imageFile, outputDir, encodeSettings);
+            RASTER_POOL.release(watermarkedImage);
+            return true;
+
+        } catch (IOException e) {
+            System.out.println("处理图片 " + imageFile.getName() + " 时出错: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
     }
 
     /**
-     * 添加水印到图片
+     * JPEG 快速路径：只对水印覆盖的 MCU 重新编码，其余数据原样保留
+     *
+     * @return 成功写出返回 true；文件不适用或处理失败返回 false，由调用方走普通路径
      */
-    private static void addWatermarkToImage(File imageFile, File outputDir, String watermarkText,
-                                            int fontSize, Color color, String position) {
+    static boolean tryStampJpeg(File imageFile, File outputDir, String watermarkText,
+                                int fontSize, Color color, String position) {
+        String name = imageFile.getName().toLowerCase();
+        if (!name.endsWith(".jpg") && !name.endsWith(".jpeg")) {
+            return false;
+        }
+
+        File outputFile = getOutputFile(imageFile, outputDir);
         try {
-            // 读取原始图片
-            BufferedImage originalImage = ImageIO.read(imageFile);
-            if (originalImage == null) {
-                System.out.println("无法读取图片: " + imageFile.getName());
-                return;
+            if (JpegRegionStamper.stamp(imageFile, outputFile,
+                    watermarkText, fontSize, color, position)) {
+                System.out.println("已处理: " + imageFile.getName() + " -> " + outputFile.getName() + " (局部重编码)");
+                return true;
             }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("局部重编码 " + imageFile.getName() + " 失败，改用完整编码: " + e.getMessage());
+        }
+        return false;
+    }
 
-            // 创建可编辑的图片副本
-            BufferedImage watermarkedImage = new BufferedImage(
-                    originalImage.getWidth(),
-                    originalImage.getHeight(),
-                    BufferedImage.TYPE_INT_RGB
-            );
-
-            Graphics2D g2d = watermarkedImage.createGraphics();
+    /**
+     * 绘制水印
+     *
+     * 不透明的 RGB 图片（JPEG 解码结果通常是 TYPE_3BYTE_BGR）直接在原图上绘制，不再复制；
+     * 其他类型（灰度、调色板、带透明通道）复制到从画布池取出的 TYPE_INT_RGB 画布上。
+     * 返回的图片可能就是传入的原图，用完后交给 {@link RasterPool#release} 归还。
+     */
+    static BufferedImage renderWatermark(BufferedImage originalImage, String watermarkText,
+                                         int fontSize, Color color, String position, RasterPool rasterPool) {
+        BufferedImage watermarkedImage;
+        Graphics2D g2d;
+        if (isDrawableInPlace(originalImage)) {
+            watermarkedImage = originalImage;
+            g2d = watermarkedImage.createGraphics();
+        } else {
+            watermarkedImage = rasterPool.acquire(originalImage.getWidth(), originalImage.getHeight());
+            g2d = watermarkedImage.createGraphics();
+            if (originalImage.getTransparency() != Transparency.OPAQUE) {
+                // 画布是复用的，透明部分要和新建画布一样落在黑色上
+                g2d.setColor(Color.BLACK);
+                g2d.fillRect(0, 0, originalImage.getWidth(), originalImage.getHeight());
+            }
             g2d.drawImage(originalImage, 0, 0, null);
+        }
 
-            // 设置水印字体和颜色
-            Font font = new Font("Arial", Font.BOLD, fontSize);
-            g2d.setFont(font);
-            g2d.setColor(color);
+        drawWatermark(g2d, watermarkText, fontSize, color, position,
+                originalImage.getWidth(), originalImage.getHeight());
+        g2d.dispose();
 
-            // 设置抗锯齿
-            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        return watermarkedImage;
+    }
 
-            // 计算水印位置
-            Point watermarkPosition = calculateWatermarkPosition(g2d, watermarkText,
-                    originalImage.getWidth(),
-                    originalImage.getHeight(),
-                    position);
+    /**
+     * 能否直接在解码结果上绘制：不透明的 8 位 RGB 图片
+     */
+    private static boolean isDrawableInPlace(BufferedImage image) {
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_BGR:
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return true;
+            default:
+                return false;
+        }
+    }
 
-            // 添加水印
-            g2d.drawString(watermarkText, watermarkPosition.x, watermarkPosition.y);
-            g2d.dispose();
+    /**
+     * 在画布上绘制水印文字，位置按整张图片的尺寸计算
+     */
+    static void drawWatermark(Graphics2D g2d, String watermarkText, int fontSize, Color color,
+                              String position, int imageWidth, int imageHeight) {
+        // 同一文字只光栅化一次，之后直接合成缓存的图块
+        TextStampCache.TextStamp stamp = getTextStamp(watermarkText, fontSize, color);
 
-            // 保存水印图片
-            String outputFileName = getOutputFileName(imageFile.getName());
-            File outputFile = new File(outputDir, outputFileName);
-            ImageIO.write(watermarkedImage, getImageFormat(imageFile.getName()), outputFile);
+        // 计算水印位置
+        Point watermarkPosition = calculateWatermarkPosition(stamp, imageWidth, imageHeight, position);
 
-            System.out.println("已处理: " + imageFile.getName() + " -> " + outputFileName);
+        // 添加水印
+        stamp.drawAt(g2d, watermarkPosition.x, watermarkPosition.y);
+    }
 
-        } catch (IOException e) {
-            System.out.println("处理图片 " + imageFile.getName() + " 时出错: " + e.getMessage());
-            e.printStackTrace();
+    /**
+     * 计算水印文字在图片上覆盖的像素范围（包含抗锯齿边缘）
+     */
+    static Rectangle getWatermarkBounds(String watermarkText, int fontSize, Color color, String position,
+                                        int imageWidth, int imageHeight) {
+        TextStampCache.TextStamp stamp = getTextStamp(watermarkText, fontSize, color);
+        Point watermarkPosition = calculateWatermarkPosition(stamp, imageWidth, imageHeight, position);
+        return stamp.getBounds(watermarkPosition.x, watermarkPosition.y);
+    }
+
+    private static TextStampCache.TextStamp getTextStamp(String watermarkText, int fontSize, Color color) {
+        return STAMP_CACHE.get(watermarkText, new Font("Arial", Font.BOLD, fontSize), color, 1f);
+    }
+
+    /**
+     * 保存水印图片到输出目录
+     */
+    static void writeWatermarkedImage(BufferedImage watermarkedImage, File imageFile, File outputDir,
+                                      ImageCodec.EncodeSettings encodeSettings) throws IOException {
+        File outputFile = getOutputFile(imageFile, outputDir);
+        String format = getImageFormat(imageFile.getName());
+        File temp = tempFileFor(outputFile);
+        try {
+            if (!ImageCodec.write(watermarkedImage, format, temp, encodeSettings)) {
+                throw new IOException("没有 " + format + " 格式的编码器");
+            }
+            moveIntoPlace(temp, outputFile);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp.toPath());
+            throw e;
         }
+
+        System.out.println("已处理: " + imageFile.getName() + " -> " + outputFile.getName());
     }
 
     /**
      * 计算水印位置
      */
-    private static Point calculateWatermarkPosition(Graphics2D g2d, String text,
+    private static Point calculateWatermarkPosition(TextStampCache.TextStamp stamp,
                                                     int imageWidth, int imageHeight,
                                                     String position) {
-        FontMetrics metrics = g2d.getFontMetrics();
-        int textWidth = metrics.stringWidth(text);
-        int textHeight = metrics.getHeight();
+        int textWidth = stamp.getTextWidth();
+        int textHeight = stamp.getTextHeight();
 
         int x, y;
 
@@ -308,6 +452,34 @@ public class ImageWatermark {
         return new Point(x, y);
     }
 
+    /**
+     * 写出时使用的临时文件，与输出文件在同一目录中，写完后用 {@link #moveIntoPlace} 替换输出文件，
+     * 中途退出不会留下写了一半的输出文件
+     */
+    static File tempFileFor(File outputFile) {
+        return new File(outputFile.getParentFile(),
+                ".watermark-" + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".part");
+    }
+
+    /**
+     * 将写完的临时文件移动到输出位置，文件系统支持时为原子替换
+     */
+    static void moveIntoPlace(File temp, File outputFile) throws IOException {
+        try {
+            Files.move(temp.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * 源图片对应的输出文件
+     */
+    static File getOutputFile(File imageFile, File outputDir) {
+        return new File(outputDir, getOutputFileName(imageFile.getName()));
+    }
+
     /**
      * 生成输出文件名
      */
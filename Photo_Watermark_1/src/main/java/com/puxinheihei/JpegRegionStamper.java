@@ -0,0 +1,1446 @@
+package com.puxinheihei;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JPEG 局部重编码水印
+ *
+ * 普通路径会把整张 JPEG 解码、复制、绘制后再完整编码，既耗 CPU 又会让整张照片再损失一次画质。
+ * 这里直接在压缩数据层面处理：
+ * <ul>
+ *     <li>只熵解码一遍扫描数据，记录每个 MCU 在码流中的位置，只保留水印区域内 MCU 的量化系数；</li>
+ *     <li>对水印区域的 MCU 做反变换、绘制文字、再变换量化，只替换像素确实变化的 MCU；</li>
+ *     <li>输出时未变化的 MCU 直接按位复制原码流（没有变化的 RST 区间按字节复制），
+ *     只有变化的 MCU 及其后继（DC 差分会变）用原 Huffman 表重新编码。</li>
+ * </ul>
+ * 原 Huffman 表无法编码新符号时，退回到完整熵重编码（系数仍原样保留，使用最优 Huffman 表）。
+ * 原文件的量化表、EXIF、ICC 等元数据段也原样保留（EXIF 方向标记重置为 1，
+ * 与普通路径输出的像素方向保持一致）。
+ *
+ * 仅支持 8 位精度、Huffman 编码、顺序扫描（SOF0/SOF1）、单次交错扫描的三分量 YCbCr 图片。
+ * 其他情况（渐进式、算术编码、灰度、CMYK、多次扫描等）返回 false，由调用方走普通路径。
+ */
+public class JpegRegionStamper {
+
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int DQT = 0xDB;
+    private static final int DHT = 0xC4;
+    private static final int DRI = 0xDD;
+    private static final int APP1 = 0xE1;
+    private static final int APP2 = 0xE2;
+    private static final int APP14 = 0xEE;
+
+    // Z 字形顺序到自然顺序（行优先）的映射
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    // 8 点正交 DCT 基：COS[u][x] = C(u) / 2 * cos((2x + 1) * u * PI / 16)
+    private static final float[][] COS = new float[8][8];
+
+    static {
+        for (int u = 0; u < 8; u++) {
+            double cu = u == 0 ? Math.sqrt(0.5) : 1.0;
+            for (int x = 0; x < 8; x++) {
+                COS[u][x] = (float) (cu / 2 * Math.cos((2 * x + 1) * u * Math.PI / 16));
+            }
+        }
+    }
+
+    private JpegRegionStamper() {
+    }
+
+    /**
+     * 尝试以局部重编码的方式为 JPEG 添加水印
+     *
+     * @return true 表示已写出输出文件；false 表示该文件不适用，调用方应走普通路径
+     */
+    public static boolean stamp(File input, File output, String watermarkText,
+                                int fontSize, Color color, String position) throws IOException {
+        byte[] data = Files.readAllBytes(input.toPath());
+        JpegFile jpeg = JpegFile.parse(data);
+        if (jpeg == null || !jpeg.unstuffScan()) {
+            return false;
+        }
+
+        Rectangle bounds = ImageWatermark.getWatermarkBounds(watermarkText, fontSize, color, position,
+                jpeg.width, jpeg.height);
+        bounds = bounds.intersection(new Rectangle(0, 0, jpeg.width, jpeg.height));
+        if (!bounds.isEmpty()) {
+            jpeg.selectRegion(bounds);
+            jpeg.decodeScan(false);
+            jpeg.stampRegion(watermarkText, fontSize, color, position);
+        }
+
+        File temp = ImageWatermark.tempFileFor(output);
+        try {
+            try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+                jpeg.write(out);
+            }
+            ImageWatermark.moveIntoPlace(temp, output);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp.toPath());
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * 解析后的 JPEG 文件
+     */
+    private static final class JpegFile {
+        private final byte[] data;
+
+        private final int[][] quantTables = new int[4][];
+        private final HuffmanTable[] dcTables = new HuffmanTable[4];
+        private final HuffmanTable[] acTables = new HuffmanTable[4];
+
+        private int width;
+        private int height;
+        private Component[] components;
+        private int maxH;
+        private int maxV;
+        private int mcusX;
+        private int mcusY;
+        private int blocksPerMcu;
+        private int restartInterval;
+
+        // 原样复制的段：SOS 之前除 DHT 和 MPF 以外的所有段
+        private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        // 原始 DHT 段，按位复制码流时必须沿用
+        private final ByteArrayOutputStream originalDht = new ByteArrayOutputStream();
+        private int sosStart;
+        private int sosLength;
+        private int scanStart;
+
+        // 去除 0xFF00 填充和 RST 标记后的扫描数据，以及每个 RST 区间的位置
+        private byte[] scan;
+        private int[] intervalStart;
+        private int[] rawIntervalStart;
+        private int[] rawIntervalEnd;
+
+        // 每个 MCU 在 scan 中的起止位（bit）
+        private long[] mcuBitStart;
+        private long[] mcuBitEnd;
+
+        // 水印区域内（及其后继）MCU 的系数，按 MCU 序号索引
+        private final Map<Integer, McuData> kept = new HashMap<>();
+        private int regionX0;
+        private int regionY0;
+        private int regionX1;
+        private int regionY1;
+
+        // 退回完整重编码时使用的全部系数（按 MCU 顺序排列）
+        private short[] allCoefficients;
+
+        private JpegFile(byte[] data) {
+            this.data = data;
+        }
+
+        /**
+         * 解析 SOS 之前的所有标记段，遇到不支持的格式返回 null
+         */
+        static JpegFile parse(byte[] data) {
+            if (data.length < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != SOI) {
+                return null;
+            }
+
+            JpegFile jpeg = new JpegFile(data);
+            jpeg.header.write(0xFF);
+            jpeg.header.write(SOI);
+
+            int pos = 2;
+            boolean adobeRgb = false;
+            while (pos + 4 <= data.length) {
+                if ((data[pos] & 0xFF) != 0xFF) {
+                    return null;
+                }
+                int marker = data[pos + 1] & 0xFF;
+                if (marker == 0xFF) {
+                    // 填充字节
+                    pos++;
+                    continue;
+                }
+                int length = u16(data, pos + 2);
+                int segmentEnd = pos + 2 + length;
+                if (length < 2 || segmentEnd > data.length) {
+                    return null;
+                }
+                int body = pos + 4;
+
+                switch (marker) {
+                    case 0xC0:
+                    case 0xC1:
+                        if (!jpeg.parseFrame(body)) {
+                            return null;
+                        }
+                        break;
+                    case DQT:
+                        if (!jpeg.parseQuantTables(body, segmentEnd)) {
+                            return null;
+                        }
+                        break;
+                    case DHT:
+                        if (!jpeg.parseHuffmanTables(body, segmentEnd)) {
+                            return null;
+                        }
+                        // DHT 在输出时统一写在 SOS 之前
+                        jpeg.originalDht.write(data, pos, 2 + length);
+                        pos = segmentEnd;
+                        continue;
+                    case DRI:
+                        jpeg.restartInterval = u16(data, body);
+                        break;
+                    case APP1:
+                        if (length >= 16 && data[body] == 'E' && data[body + 1] == 'x' && data[body + 2] == 'i'
+                                && data[body + 3] == 'f') {
+                            byte[] segment = Arrays.copyOfRange(data, pos, segmentEnd);
+                            resetOrientation(segment, 10);
+                            jpeg.header.write(segment, 0, segment.length);
+                            pos = segmentEnd;
+                            continue;
+                        }
+                        break;
+                    case APP2:
+                        // MPF 中记录的附加图像偏移在重新编码后会失效，连同附加图像一起去掉
+                        if (length >= 6 && data[body] == 'M' && data[body + 1] == 'P' && data[body + 2] == 'F') {
+                            pos = segmentEnd;
+                            continue;
+                        }
+                        break;
+                    case APP14:
+                        // Adobe 段 transform = 0 表示 RGB 而不是 YCbCr
+                        if (length >= 14 && data[body] == 'A' && data[body + 1] == 'd' && data[body + 4] == 'e'
+                                && data[body + 11] == 0) {
+                            adobeRgb = true;
+                        }
+                        break;
+                    case SOS:
+                        if (jpeg.components == null || adobeRgb || !jpeg.parseScanHeader(body)) {
+                            return null;
+                        }
+                        jpeg.sosStart = pos;
+                        jpeg.sosLength = 2 + length;
+                        jpeg.scanStart = segmentEnd;
+                        return jpeg;
+                    case EOI:
+                        return null;
+                    default:
+                        // 其他 SOF（渐进式、无损、算术编码等）不支持
+                        if (marker >= 0xC2 && marker <= 0xCF) {
+                            return null;
+                        }
+                        break;
+                }
+
+                jpeg.header.write(data, pos, 2 + length);
+                pos = segmentEnd;
+            }
+            return null;
+        }
+
+        private boolean parseFrame(int body) {
+            int precision = data[body] & 0xFF;
+            height = u16(data, body + 1);
+            width = u16(data, body + 3);
+            int count = data[body + 5] & 0xFF;
+            if (precision != 8 || height == 0 || width == 0 || count != 3) {
+                return false;
+            }
+
+            components = new Component[count];
+            for (int i = 0; i < count; i++) {
+                int offset = body + 6 + i * 3;
+                Component component = new Component();
+                component.id = data[offset] & 0xFF;
+                component.h = (data[offset + 1] & 0xFF) >> 4;
+                component.v = data[offset + 1] & 0x0F;
+                component.quantTable = data[offset + 2] & 0x03;
+                if (component.h < 1 || component.h > 4 || component.v < 1 || component.v > 4) {
+                    return false;
+                }
+                components[i] = component;
+                maxH = Math.max(maxH, component.h);
+                maxV = Math.max(maxV, component.v);
+            }
+
+            // 按 R/G/B 标识的分量是 RGB 存储，不做 YCbCr 处理
+            if (components[0].id == 'R' && components[1].id == 'G' && components[2].id == 'B') {
+                return false;
+            }
+
+            mcusX = (width + 8 * maxH - 1) / (8 * maxH);
+            mcusY = (height + 8 * maxV - 1) / (8 * maxV);
+            for (Component component : components) {
+                // 只支持整数倍的下采样
+                if (maxH % component.h != 0 || maxV % component.v != 0) {
+                    return false;
+                }
+                component.firstBlock = blocksPerMcu;
+                blocksPerMcu += component.h * component.v;
+            }
+            return blocksPerMcu <= 10;
+        }
+
+        private boolean parseQuantTables(int pos, int end) {
+            while (pos < end) {
+                int precision = (data[pos] & 0xFF) >> 4;
+                int id = data[pos] & 0x0F;
+                if (id > 3) {
+                    return false;
+                }
+                pos++;
+                int[] table = new int[64];
+                for (int k = 0; k < 64; k++) {
+                    if (precision == 0) {
+                        table[k] = data[pos++] & 0xFF;
+                    } else {
+                        table[k] = u16(data, pos);
+                        pos += 2;
+                    }
+                }
+                quantTables[id] = table;
+            }
+            return true;
+        }
+
+        private boolean parseHuffmanTables(int pos, int end) {
+            while (pos < end) {
+                int tableClass = (data[pos] & 0xFF) >> 4;
+                int id = data[pos] & 0x0F;
+                if (id > 3 || tableClass > 1) {
+                    return false;
+                }
+                int[] bits = new int[17];
+                int total = 0;
+                for (int l = 1; l <= 16; l++) {
+                    bits[l] = data[pos + l] & 0xFF;
+                    total += bits[l];
+                }
+                pos += 17;
+                if (total > 256 || pos + total > end) {
+                    return false;
+                }
+                int[] values = new int[total];
+                for (int i = 0; i < total; i++) {
+                    values[i] = data[pos + i] & 0xFF;
+                }
+                pos += total;
+
+                HuffmanTable table = new HuffmanTable(bits, values);
+                if (tableClass == 0) {
+                    dcTables[id] = table;
+                } else {
+                    acTables[id] = table;
+                }
+            }
+            return true;
+        }
+
+        private boolean parseScanHeader(int body) {
+            int count = data[body] & 0xFF;
+            if (count != components.length) {
+                // 非交错或多次扫描
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                int id = data[body + 1 + i * 2] & 0xFF;
+                int tables = data[body + 2 + i * 2] & 0xFF;
+                Component component = components[i];
+                if (component.id != id) {
+                    return false;
+                }
+                component.dcTable = tables >> 4;
+                component.acTable = tables & 0x0F;
+                if (component.dcTable > 3 || component.acTable > 3
+                        || dcTables[component.dcTable] == null || acTables[component.acTable] == null
+                        || quantTables[component.quantTable] == null) {
+                    return false;
+                }
+            }
+            int spectralStart = data[body + 1 + count * 2] & 0xFF;
+            int spectralEnd = data[body + 2 + count * 2] & 0xFF;
+            int approximation = data[body + 3 + count * 2] & 0xFF;
+            return spectralStart == 0 && spectralEnd == 63 && approximation == 0;
+        }
+
+        private int mcuCount() {
+            return mcusX * mcusY;
+        }
+
+        private int intervalCount() {
+            return restartInterval > 0 ? (mcuCount() + restartInterval - 1) / restartInterval : 1;
+        }
+
+        private int intervalOf(int mcu) {
+            return restartInterval > 0 ? mcu / restartInterval : 0;
+        }
+
+        private boolean startsInterval(int mcu) {
+            return mcu == 0 || (restartInterval > 0 && mcu % restartInterval == 0);
+        }
+
+        /**
+         * 去掉扫描数据中的 0xFF00 填充和 RST 标记，记录每个 RST 区间的原始字节范围。
+         * 扫描之后必须紧跟 EOI，否则（多次扫描、DNL 等）不支持。
+         */
+        boolean unstuffScan() {
+            int intervals = intervalCount();
+            scan = new byte[data.length - scanStart];
+            intervalStart = new int[intervals];
+            rawIntervalStart = new int[intervals];
+            rawIntervalEnd = new int[intervals];
+
+            int length = 0;
+            int interval = 0;
+            rawIntervalStart[0] = scanStart;
+            int pos = scanStart;
+            while (pos < data.length) {
+                int b = data[pos] & 0xFF;
+                if (b != 0xFF) {
+                    scan[length++] = (byte) b;
+                    pos++;
+                    continue;
+                }
+                if (pos + 1 >= data.length) {
+                    return false;
+                }
+                int next = data[pos + 1] & 0xFF;
+                if (next == 0) {
+                    scan[length++] = (byte) 0xFF;
+                    pos += 2;
+                } else if (next == 0xFF) {
+                    pos++;
+                } else if (next >= 0xD0 && next <= 0xD7) {
+                    rawIntervalEnd[interval] = pos;
+                    interval++;
+                    if (interval >= intervals) {
+                        return false;
+                    }
+                    pos += 2;
+                    rawIntervalStart[interval] = pos;
+                    intervalStart[interval] = length;
+                } else {
+                    rawIntervalEnd[interval] = pos;
+                    return next == EOI && interval == intervals - 1;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * 根据水印范围确定需要处理的 MCU 矩形，并预先登记需要保留系数的 MCU
+         */
+        void selectRegion(Rectangle bounds) {
+            int mcuWidth = 8 * maxH;
+            int mcuHeight = 8 * maxV;
+            regionX0 = bounds.x / mcuWidth;
+            regionY0 = bounds.y / mcuHeight;
+            regionX1 = Math.min(mcusX, (bounds.x + bounds.width + mcuWidth - 1) / mcuWidth);
+            regionY1 = Math.min(mcusY, (bounds.y + bounds.height + mcuHeight - 1) / mcuHeight);
+
+            for (int my = regionY0; my < regionY1; my++) {
+                for (int mx = regionX0; mx < regionX1; mx++) {
+                    int mcu = my * mcusX + mx;
+                    kept.putIfAbsent(mcu, new McuData(blocksPerMcu, components.length));
+                    // 后继 MCU 的 DC 差分可能变化，同样需要保留
+                    if (mcu + 1 < mcuCount() && !startsInterval(mcu + 1)) {
+                        kept.putIfAbsent(mcu + 1, new McuData(blocksPerMcu, components.length));
+                    }
+                }
+            }
+        }
+
+        /**
+         * 熵解码整个扫描
+         *
+         * @param keepAll false 时只记录各 MCU 的码流位置并保留区域内的系数；true 时保存全部系数
+         */
+        void decodeScan(boolean keepAll) throws IOException {
+            BitReader reader = new BitReader(scan);
+            int[] predictors = new int[components.length];
+            int total = mcuCount();
+            if (keepAll) {
+                allCoefficients = new short[total * blocksPerMcu * 64];
+            } else {
+                mcuBitStart = new long[total];
+                mcuBitEnd = new long[total];
+            }
+
+            for (int mcu = 0; mcu < total; mcu++) {
+                if (mcu > 0 && startsInterval(mcu)) {
+                    reader.seek(intervalStart[intervalOf(mcu)]);
+                    Arrays.fill(predictors, 0);
+                }
+
+                short[] target = null;
+                int base = 0;
+                if (keepAll) {
+                    target = allCoefficients;
+                    base = mcu * blocksPerMcu * 64;
+                } else {
+                    mcuBitStart[mcu] = reader.bitPosition();
+                    McuData mcuData = kept.get(mcu);
+                    if (mcuData != null) {
+                        target = mcuData.coefficients;
+                        System.arraycopy(predictors, 0, mcuData.startPredictors, 0, predictors.length);
+                    }
+                }
+
+                for (int c = 0; c < components.length; c++) {
+                    Component component = components[c];
+                    HuffmanTable dc = dcTables[component.dcTable];
+                    HuffmanTable ac = acTables[component.acTable];
+                    int blocks = component.h * component.v;
+                    for (int b = 0; b < blocks; b++) {
+                        int offset = base + (component.firstBlock + b) * 64;
+                        predictors[c] = decodeBlock(reader, dc, ac, target, offset, predictors[c]);
+                    }
+                }
+
+                if (!keepAll) {
+                    mcuBitEnd[mcu] = reader.bitPosition();
+                }
+            }
+        }
+
+        private static int decodeBlock(BitReader reader, HuffmanTable dc, HuffmanTable ac,
+                                       short[] coefficients, int offset, int predictor) throws IOException {
+            int size = reader.decode(dc);
+            int diff = size == 0 ? 0 : extend(reader.receive(size), size);
+            predictor += diff;
+            if (coefficients != null) {
+                coefficients[offset] = (short) predictor;
+            }
+
+            for (int k = 1; k < 64; ) {
+                int symbol = reader.decode(ac);
+                int run = symbol >> 4;
+                size = symbol & 0x0F;
+                if (size == 0) {
+                    if (run != 15) {
+                        break;
+                    }
+                    k += 16;
+                    continue;
+                }
+                k += run;
+                if (k > 63) {
+                    throw new IOException("JPEG 数据损坏");
+                }
+                int value = extend(reader.receive(size), size);
+                if (coefficients != null) {
+                    coefficients[offset + k] = (short) value;
+                }
+                k++;
+            }
+            return predictor;
+        }
+
+        /**
+         * 在水印区域所在的 MCU 上绘制文字，只替换内容确实发生变化的 MCU
+         */
+        void stampRegion(String watermarkText, int fontSize, Color color, String position) {
+            int mcuWidth = 8 * maxH;
+            int mcuHeight = 8 * maxV;
+            int regionX = regionX0 * mcuWidth;
+            int regionY = regionY0 * mcuHeight;
+            int regionWidth = (regionX1 - regionX0) * mcuWidth;
+            int regionHeight = (regionY1 - regionY0) * mcuHeight;
+
+            // 还原区域像素
+            float[][] planes = new float[components.length][];
+            for (int c = 0; c < components.length; c++) {
+                planes[c] = decodePlane(c);
+            }
+            int[] original = toRgb(planes, regionWidth, regionHeight);
+
+            BufferedImage region = new BufferedImage(regionWidth, regionHeight, BufferedImage.TYPE_INT_RGB);
+            region.setRGB(0, 0, regionWidth, regionHeight, original, 0, regionWidth);
+
+            Graphics2D g2d = region.createGraphics();
+            g2d.translate(-regionX, -regionY);
+            ImageWatermark.drawWatermark(g2d, watermarkText, fontSize, color, position, width, height);
+            g2d.dispose();
+
+            int[] stamped = region.getRGB(0, 0, regionWidth, regionHeight, null, 0, regionWidth);
+
+            // 逐个 MCU 比较，只有像素变化的 MCU 才重新变换量化
+            for (int my = regionY0; my < regionY1; my++) {
+                for (int mx = regionX0; mx < regionX1; mx++) {
+                    int px = (mx - regionX0) * mcuWidth;
+                    int py = (my - regionY0) * mcuHeight;
+                    if (mcuChanged(original, stamped, regionWidth, px, py, mcuWidth, mcuHeight)) {
+                        int mcu = my * mcusX + mx;
+                        McuData mcuData = kept.get(mcu);
+                        encodeMcu(stamped, regionWidth, px, py, mcuData);
+                        mcuData.changed = true;
+                        mcuData.reencode = true;
+                        McuData next = kept.get(mcu + 1);
+                        if (next != null) {
+                            next.reencode = true;
+                        }
+                    }
+                }
+            }
+        }
+
+        private static boolean mcuChanged(int[] original, int[] stamped, int stride,
+                                          int px, int py, int mcuWidth, int mcuHeight) {
+            for (int y = py; y < py + mcuHeight; y++) {
+                int row = y * stride;
+                for (int x = px; x < px + mcuWidth; x++) {
+                    if (original[row + x] != stamped[row + x]) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * 反量化并反变换区域内某个分量的所有块，得到该分量的采样平面
+         */
+        private float[] decodePlane(int componentIndex) {
+            Component component = components[componentIndex];
+            int blocksX = (regionX1 - regionX0) * component.h;
+            int blocksY = (regionY1 - regionY0) * component.v;
+            int planeWidth = blocksX * 8;
+            float[] plane = new float[planeWidth * blocksY * 8];
+            int[] quant = quantTables[component.quantTable];
+            float[] block = new float[64];
+            float[] samples = new float[64];
+
+            for (int by = 0; by < blocksY; by++) {
+                for (int bx = 0; bx < blocksX; bx++) {
+                    int mcu = (regionY0 + by / component.v) * mcusX + regionX0 + bx / component.h;
+                    short[] coefficients = kept.get(mcu).coefficients;
+                    int offset = (component.firstBlock + (by % component.v) * component.h + bx % component.h) * 64;
+
+                    Arrays.fill(block, 0);
+                    for (int k = 0; k < 64; k++) {
+                        block[ZIGZAG[k]] = coefficients[offset + k] * quant[k];
+                    }
+                    inverseDct(block, samples);
+                    for (int y = 0; y < 8; y++) {
+                        System.arraycopy(samples, y * 8, plane, (by * 8 + y) * planeWidth + bx * 8, 8);
+                    }
+                }
+            }
+            return plane;
+        }
+
+        /**
+         * 将各分量平面上采样并转换为 RGB
+         */
+        private int[] toRgb(float[][] planes, int regionWidth, int regionHeight) {
+            int[] rgb = new int[regionWidth * regionHeight];
+            for (int y = 0; y < regionHeight; y++) {
+                for (int x = 0; x < regionWidth; x++) {
+                    float luma = sample(planes[0], components[0], regionWidth, x, y);
+                    float cb = sample(planes[1], components[1], regionWidth, x, y) - 128;
+                    float cr = sample(planes[2], components[2], regionWidth, x, y) - 128;
+                    int r = clamp(luma + 1.402f * cr);
+                    int g = clamp(luma - 0.344136f * cb - 0.714136f * cr);
+                    int b = clamp(luma + 1.772f * cb);
+                    rgb[y * regionWidth + x] = (r << 16) | (g << 8) | b;
+                }
+            }
+            return rgb;
+        }
+
+        private float sample(float[] plane, Component component, int regionWidth, int x, int y) {
+            int planeWidth = regionWidth * component.h / maxH;
+            int sx = x * component.h / maxH;
+            int sy = y * component.v / maxV;
+            return plane[sy * planeWidth + sx] + 128;
+        }
+
+        /**
+         * 将绘制后的一个 MCU 转回 YCbCr、下采样、正变换并量化，写回该 MCU 的系数
+         */
+        private void encodeMcu(int[] rgb, int stride, int px, int py, McuData mcuData) {
+            int mcuWidth = 8 * maxH;
+            int mcuHeight = 8 * maxV;
+            float[][] ycc = new float[3][mcuWidth * mcuHeight];
+            for (int y = 0; y < mcuHeight; y++) {
+                for (int x = 0; x < mcuWidth; x++) {
+                    int pixel = rgb[(py + y) * stride + px + x];
+                    float r = (pixel >> 16) & 0xFF;
+                    float g = (pixel >> 8) & 0xFF;
+                    float b = pixel & 0xFF;
+                    int i = y * mcuWidth + x;
+                    ycc[0][i] = 0.299f * r + 0.587f * g + 0.114f * b;
+                    ycc[1][i] = -0.168736f * r - 0.331264f * g + 0.5f * b + 128;
+                    ycc[2][i] = 0.5f * r - 0.418688f * g - 0.081312f * b + 128;
+                }
+            }
+
+            float[] samples = new float[64];
+            float[] block = new float[64];
+            for (int c = 0; c < components.length; c++) {
+                Component component = components[c];
+                int scaleX = maxH / component.h;
+                int scaleY = maxV / component.v;
+                int[] quant = quantTables[component.quantTable];
+
+                for (int v = 0; v < component.v; v++) {
+                    for (int h = 0; h < component.h; h++) {
+                        // 盒式下采样
+                        for (int y = 0; y < 8; y++) {
+                            for (int x = 0; x < 8; x++) {
+                                float sum = 0;
+                                for (int dy = 0; dy < scaleY; dy++) {
+                                    int row = ((v * 8 + y) * scaleY + dy) * mcuWidth;
+                                    for (int dx = 0; dx < scaleX; dx++) {
+                                        sum += ycc[c][row + (h * 8 + x) * scaleX + dx];
+                                    }
+                                }
+                                samples[y * 8 + x] = sum / (scaleX * scaleY) - 128;
+                            }
+                        }
+
+                        forwardDct(samples, block);
+                        int offset = (component.firstBlock + v * component.h + h) * 64;
+                        for (int k = 0; k < 64; k++) {
+                            int value = Math.round(block[ZIGZAG[k]] / quant[k]);
+                            mcuData.coefficients[offset + k] = (short) Math.max(-1023, Math.min(1023, value));
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * 写出文件：原样复制的头部 + DHT + SOS + 扫描数据 + EOI
+         */
+        void write(OutputStream out) throws IOException {
+            ByteArrayOutputStream dht = originalDht;
+            BitWriter writer;
+            try {
+                writer = spliceScan();
+            } catch (UnencodableSymbolException e) {
+                // 原 Huffman 表缺少需要的符号，对全部系数重新做熵编码
+                decodeScan(true);
+                for (Map.Entry<Integer, McuData> entry : kept.entrySet()) {
+                    if (entry.getValue().changed) {
+                        System.arraycopy(entry.getValue().coefficients, 0, allCoefficients,
+                                entry.getKey() * blocksPerMcu * 64, blocksPerMcu * 64);
+                    }
+                }
+                dht = new ByteArrayOutputStream();
+                writer = reencodeScan(dht);
+            }
+
+            header.writeTo(out);
+            dht.writeTo(out);
+            out.write(data, sosStart, sosLength);
+            writer.writeTo(out);
+            out.write(0xFF);
+            out.write(EOI);
+        }
+
+        /**
+         * 拼接扫描数据：未变化的 RST 区间按字节复制，未变化的 MCU 按位复制，
+         * 其余 MCU 用原 Huffman 表重新编码
+         */
+        private BitWriter spliceScan() {
+            BitWriter writer = new BitWriter(data.length - scanStart + 1024);
+            int intervals = intervalCount();
+            int total = mcuCount();
+            boolean[] dirtyIntervals = new boolean[intervals];
+            for (Map.Entry<Integer, McuData> entry : kept.entrySet()) {
+                if (entry.getValue().reencode) {
+                    dirtyIntervals[intervalOf(entry.getKey())] = true;
+                }
+            }
+
+            int[] predictors = new int[components.length];
+            for (int interval = 0; interval < intervals; interval++) {
+                if (interval > 0) {
+                    writer.writeMarker(0xD0 + ((interval - 1) & 7));
+                }
+                if (!dirtyIntervals[interval]) {
+                    writer.writeRaw(data, rawIntervalStart[interval], rawIntervalEnd[interval]);
+                    continue;
+                }
+
+                int first = restartInterval > 0 ? interval * restartInterval : 0;
+                int last = restartInterval > 0 ? Math.min(total, first + restartInterval) : total;
+                boolean predictorsValid = false;
+                int mcu = first;
+                while (mcu < last) {
+                    McuData mcuData = kept.get(mcu);
+                    if (mcuData != null && mcuData.reencode) {
+                        if (!predictorsValid) {
+                            System.arraycopy(mcuData.startPredictors, 0, predictors, 0, predictors.length);
+                        }
+                        encodeMcu(writer, mcuData.coefficients, 0, predictors, dcTables, acTables);
+                        predictorsValid = true;
+                        mcu++;
+                        continue;
+                    }
+
+                    // 合并连续未变化的 MCU，一次按位复制
+                    int runEnd = mcu + 1;
+                    while (runEnd < last && !isReencoded(runEnd)) {
+                        runEnd++;
+                    }
+                    writer.copyBits(scan, mcuBitStart[mcu], mcuBitEnd[runEnd - 1]);
+                    predictorsValid = false;
+                    mcu = runEnd;
+                }
+                writer.flush();
+            }
+            return writer;
+        }
+
+        private boolean isReencoded(int mcu) {
+            McuData mcuData = kept.get(mcu);
+            return mcuData != null && mcuData.reencode;
+        }
+
+        /**
+         * 使用按实际符号频率生成的最优 Huffman 表重新编码全部系数
+         */
+        private BitWriter reencodeScan(ByteArrayOutputStream dht) {
+            int[][] dcFrequencies = new int[4][];
+            int[][] acFrequencies = new int[4][];
+            for (Component component : components) {
+                if (dcFrequencies[component.dcTable] == null) {
+                    dcFrequencies[component.dcTable] = new int[257];
+                }
+                if (acFrequencies[component.acTable] == null) {
+                    acFrequencies[component.acTable] = new int[257];
+                }
+            }
+            encodeAll(null, dcFrequencies, acFrequencies, null, null);
+
+            HuffmanTable[] dcEncoders = new HuffmanTable[4];
+            HuffmanTable[] acEncoders = new HuffmanTable[4];
+            ByteArrayOutputStream specs = new ByteArrayOutputStream();
+            for (int id = 0; id < 4; id++) {
+                if (dcFrequencies[id] != null) {
+                    dcEncoders[id] = HuffmanTable.optimal(dcFrequencies[id]);
+                    dcEncoders[id].writeSpec(specs, 0, id);
+                }
+                if (acFrequencies[id] != null) {
+                    acEncoders[id] = HuffmanTable.optimal(acFrequencies[id]);
+                    acEncoders[id].writeSpec(specs, 1, id);
+                }
+            }
+            dht.write(0xFF);
+            dht.write(DHT);
+            dht.write((specs.size() + 2) >> 8);
+            dht.write((specs.size() + 2) & 0xFF);
+            dht.write(specs.toByteArray(), 0, specs.size());
+
+            BitWriter writer = new BitWriter(data.length - scanStart + 1024);
+            encodeAll(writer, null, null, dcEncoders, acEncoders);
+            return writer;
+        }
+
+        /**
+         * 按扫描顺序遍历所有 MCU：writer 为 null 时只统计频率，否则按给定编码表写出
+         */
+        private void encodeAll(BitWriter writer, int[][] dcFrequencies, int[][] acFrequencies,
+                               HuffmanTable[] dcEncoders, HuffmanTable[] acEncoders) {
+            int[] predictors = new int[components.length];
+            int total = mcuCount();
+            for (int mcu = 0; mcu < total; mcu++) {
+                if (mcu > 0 && startsInterval(mcu)) {
+                    if (writer != null) {
+                        writer.flush();
+                        writer.writeMarker(0xD0 + ((intervalOf(mcu) - 1) & 7));
+                    }
+                    Arrays.fill(predictors, 0);
+                }
+
+                int base = mcu * blocksPerMcu * 64;
+                if (writer == null) {
+                    countMcu(allCoefficients, base, predictors, dcFrequencies, acFrequencies);
+                } else {
+                    encodeMcu(writer, allCoefficients, base, predictors, dcEncoders, acEncoders);
+                }
+            }
+            if (writer != null) {
+                writer.flush();
+            }
+        }
+
+        private void countMcu(short[] coefficients, int base, int[] predictors,
+                              int[][] dcFrequencies, int[][] acFrequencies) {
+            for (int c = 0; c < components.length; c++) {
+                Component component = components[c];
+                int[] dcFrequency = dcFrequencies[component.dcTable];
+                int[] acFrequency = acFrequencies[component.acTable];
+                int blocks = component.h * component.v;
+                for (int b = 0; b < blocks; b++) {
+                    int offset = base + (component.firstBlock + b) * 64;
+                    int dc = coefficients[offset];
+                    dcFrequency[bitLength(dc - predictors[c])]++;
+                    predictors[c] = dc;
+
+                    int run = 0;
+                    for (int k = 1; k < 64; k++) {
+                        int value = coefficients[offset + k];
+                        if (value == 0) {
+                            run++;
+                            continue;
+                        }
+                        while (run > 15) {
+                            acFrequency[0xF0]++;
+                            run -= 16;
+                        }
+                        acFrequency[(run << 4) | bitLength(value)]++;
+                        run = 0;
+                    }
+                    if (run > 0) {
+                        acFrequency[0x00]++;
+                    }
+                }
+            }
+        }
+
+        private void encodeMcu(BitWriter writer, short[] coefficients, int base, int[] predictors,
+                               HuffmanTable[] dcEncoders, HuffmanTable[] acEncoders) {
+            for (int c = 0; c < components.length; c++) {
+                Component component = components[c];
+                HuffmanTable dcTable = dcEncoders[component.dcTable];
+                HuffmanTable acTable = acEncoders[component.acTable];
+                int blocks = component.h * component.v;
+                for (int b = 0; b < blocks; b++) {
+                    int offset = base + (component.firstBlock + b) * 64;
+                    int dc = coefficients[offset];
+                    int diff = dc - predictors[c];
+                    predictors[c] = dc;
+                    int size = bitLength(diff);
+                    writer.writeSymbol(dcTable, size);
+                    if (size > 0) {
+                        writer.write(diff < 0 ? diff - 1 : diff, size);
+                    }
+
+                    int run = 0;
+                    for (int k = 1; k < 64; k++) {
+                        int value = coefficients[offset + k];
+                        if (value == 0) {
+                            run++;
+                            continue;
+                        }
+                        while (run > 15) {
+                            writer.writeSymbol(acTable, 0xF0);
+                            run -= 16;
+                        }
+                        size = bitLength(value);
+                        writer.writeSymbol(acTable, (run << 4) | size);
+                        writer.write(value < 0 ? value - 1 : value, size);
+                        run = 0;
+                    }
+                    if (run > 0) {
+                        writer.writeSymbol(acTable, 0x00);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 帧中的一个颜色分量
+     */
+    private static final class Component {
+        private int id;
+        private int h;
+        private int v;
+        private int quantTable;
+        private int dcTable;
+        private int acTable;
+        // 本分量第一个块在 MCU 内的序号
+        private int firstBlock;
+    }
+
+    /**
+     * 水印区域内一个 MCU 的系数（Z 字形顺序）和解码时的 DC 预测值
+     */
+    private static final class McuData {
+        private final short[] coefficients;
+        private final int[] startPredictors;
+        // 像素发生了变化
+        private boolean changed;
+        // 需要重新编码（自身变化或前一个 MCU 变化导致 DC 差分变化）
+        private boolean reencode;
+
+        McuData(int blocks, int componentCount) {
+            this.coefficients = new short[blocks * 64];
+            this.startPredictors = new int[componentCount];
+        }
+    }
+
+    /**
+     * 原 Huffman 表中没有需要的符号
+     */
+    private static final class UnencodableSymbolException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        UnencodableSymbolException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Huffman 表，同时支持解码（查找表）和编码（码字/码长）
+     */
+    private static final class HuffmanTable {
+        private static final int LOOKUP_BITS = 9;
+
+        private final int[] bits;
+        private final int[] values;
+
+        // 解码用
+        private final int[] lookup = new int[1 << LOOKUP_BITS];
+        private final int[] maxCode = new int[18];
+        private final int[] valuePointer = new int[17];
+        private final int[] minCode = new int[17];
+
+        // 编码用，码长为 0 表示该符号没有码字
+        private final int[] codes = new int[256];
+        private final int[] sizes = new int[256];
+
+        HuffmanTable(int[] bits, int[] values) {
+            this.bits = bits;
+            this.values = values;
+
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                valuePointer[length] = k;
+                minCode[length] = code;
+                for (int i = 0; i < bits[length]; i++) {
+                    int symbol = values[k];
+                    codes[symbol] = code;
+                    sizes[symbol] = length;
+                    if (length <= LOOKUP_BITS) {
+                        int shift = LOOKUP_BITS - length;
+                        int base = code << shift;
+                        for (int j = 0; j < (1 << shift); j++) {
+                            lookup[base + j] = (length << 8) | symbol;
+                        }
+                    }
+                    code++;
+                    k++;
+                }
+                maxCode[length] = bits[length] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+
+        /**
+         * 按符号频率生成码长不超过 16 的最优 Huffman 表（JPEG 标准附录 K.2）
+         */
+        static HuffmanTable optimal(int[] frequencies) {
+            long[] freq = new long[257];
+            for (int i = 0; i < 256; i++) {
+                freq[i] = frequencies[i];
+            }
+            // 保留一个码点，保证不会出现全 1 的码字
+            freq[256] = 1;
+
+            int[] codeSize = new int[257];
+            int[] others = new int[257];
+            Arrays.fill(others, -1);
+
+            while (true) {
+                int c1 = -1;
+                long v = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (freq[i] > 0 && freq[i] <= v) {
+                        v = freq[i];
+                        c1 = i;
+                    }
+                }
+                int c2 = -1;
+                v = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (freq[i] > 0 && freq[i] <= v && i != c1) {
+                        v = freq[i];
+                        c2 = i;
+                    }
+                }
+                if (c2 < 0) {
+                    break;
+                }
+
+                freq[c1] += freq[c2];
+                freq[c2] = 0;
+
+                codeSize[c1]++;
+                while (others[c1] >= 0) {
+                    c1 = others[c1];
+                    codeSize[c1]++;
+                }
+                others[c1] = c2;
+
+                codeSize[c2]++;
+                while (others[c2] >= 0) {
+                    c2 = others[c2];
+                    codeSize[c2]++;
+                }
+            }
+
+            int[] lengthCounts = new int[33];
+            for (int i = 0; i <= 256; i++) {
+                if (codeSize[i] > 0) {
+                    lengthCounts[codeSize[i]]++;
+                }
+            }
+
+            // 将超过 16 位的码长调整到 16 位以内
+            for (int i = 32; i > 16; i--) {
+                while (lengthCounts[i] > 0) {
+                    int j = i - 2;
+                    while (lengthCounts[j] == 0) {
+                        j--;
+                    }
+                    lengthCounts[i] -= 2;
+                    lengthCounts[i - 1]++;
+                    lengthCounts[j + 1] += 2;
+                    lengthCounts[j]--;
+                }
+            }
+
+            // 去掉保留的码点（位于最长码长中）
+            int longest = 16;
+            while (lengthCounts[longest] == 0) {
+                longest--;
+            }
+            lengthCounts[longest]--;
+
+            int[] bits = new int[17];
+            System.arraycopy(lengthCounts, 0, bits, 0, 17);
+
+            int total = 0;
+            for (int length = 1; length <= 16; length++) {
+                total += bits[length];
+            }
+            int[] values = new int[total];
+            int k = 0;
+            for (int length = 1; length <= 32 && k < total; length++) {
+                for (int symbol = 0; symbol < 256; symbol++) {
+                    if (codeSize[symbol] == length) {
+                        values[k++] = symbol;
+                    }
+                }
+            }
+            return new HuffmanTable(bits, values);
+        }
+
+        void writeSpec(ByteArrayOutputStream out, int tableClass, int id) {
+            out.write((tableClass << 4) | id);
+            for (int length = 1; length <= 16; length++) {
+                out.write(bits[length]);
+            }
+            for (int value : values) {
+                out.write(value);
+            }
+        }
+    }
+
+    /**
+     * 读取去除填充后的扫描数据
+     */
+    private static final class BitReader {
+        private final byte[] data;
+        private int position;
+        private long buffer;
+        private int bitCount;
+
+        BitReader(byte[] data) {
+            this.data = data;
+        }
+
+        private void fill() {
+            while (bitCount <= 56) {
+                int b = position < data.length ? data[position] & 0xFF : 0;
+                position++;
+                buffer = (buffer << 8) | b;
+                bitCount += 8;
+            }
+        }
+
+        long bitPosition() {
+            return ((long) position << 3) - bitCount;
+        }
+
+        void seek(int bytePosition) {
+            position = bytePosition;
+            buffer = 0;
+            bitCount = 0;
+        }
+
+        int decode(HuffmanTable table) throws IOException {
+            if (bitCount < 16) {
+                fill();
+            }
+            int look = (int) (buffer >>> (bitCount - HuffmanTable.LOOKUP_BITS)) & ((1 << HuffmanTable.LOOKUP_BITS) - 1);
+            int entry = table.lookup[look];
+            if (entry != 0) {
+                bitCount -= entry >> 8;
+                return entry & 0xFF;
+            }
+
+            for (int length = HuffmanTable.LOOKUP_BITS + 1; length <= 16; length++) {
+                int code = (int) (buffer >>> (bitCount - length)) & ((1 << length) - 1);
+                if (code <= table.maxCode[length]) {
+                    bitCount -= length;
+                    return table.values[table.valuePointer[length] + code - table.minCode[length]];
+                }
+            }
+            throw new IOException("JPEG Huffman 数据损坏");
+        }
+
+        int receive(int size) {
+            if (bitCount < size) {
+                fill();
+            }
+            bitCount -= size;
+            return (int) (buffer >>> bitCount) & ((1 << size) - 1);
+        }
+    }
+
+    /**
+     * 熵编码数据写出，自动插入 0xFF00 填充
+     */
+    private static final class BitWriter {
+        private byte[] bytes;
+        private int length;
+        private long buffer;
+        private int bitCount;
+
+        BitWriter(int capacity) {
+            this.bytes = new byte[Math.max(1024, capacity)];
+        }
+
+        void write(int value, int size) {
+            buffer = (buffer << size) | (value & ((1L << size) - 1));
+            bitCount += size;
+            while (bitCount >= 8) {
+                int b = (int) (buffer >>> (bitCount - 8)) & 0xFF;
+                put(b);
+                if (b == 0xFF) {
+                    put(0);
+                }
+                bitCount -= 8;
+            }
+            buffer &= (1L << bitCount) - 1;
+        }
+
+        void writeSymbol(HuffmanTable table, int symbol) {
+            int size = table.sizes[symbol];
+            if (size == 0) {
+                throw new UnencodableSymbolException();
+            }
+            write(table.codes[symbol], size);
+        }
+
+        /**
+         * 从去除填充的数据中复制 [from, to) 范围内的位
+         */
+        void copyBits(byte[] source, long from, long to) {
+            while (from < to && (from & 7) != 0) {
+                write((source[(int) (from >>> 3)] >> (7 - (int) (from & 7))) & 1, 1);
+                from++;
+            }
+            int start = (int) (from >>> 3);
+            int end = (int) (to >>> 3);
+            if (bitCount == 0) {
+                // 字节对齐时直接复制，只需处理 0xFF 填充
+                ensureCapacity((end - start) * 2);
+                for (int i = start; i < end; i++) {
+                    byte b = source[i];
+                    bytes[length++] = b;
+                    if (b == (byte) 0xFF) {
+                        bytes[length++] = 0;
+                    }
+                }
+            } else {
+                for (int i = start; i < end; i++) {
+                    write(source[i] & 0xFF, 8);
+                }
+            }
+            from = (long) end << 3;
+            while (from < to) {
+                write((source[(int) (from >>> 3)] >> (7 - (int) (from & 7))) & 1, 1);
+                from++;
+            }
+        }
+
+        /**
+         * 原样复制已经带填充的字节（调用时必须字节对齐）
+         */
+        void writeRaw(byte[] source, int start, int end) {
+            ensureCapacity(end - start);
+            System.arraycopy(source, start, bytes, length, end - start);
+            length += end - start;
+        }
+
+        void writeMarker(int marker) {
+            put(0xFF);
+            put(marker);
+        }
+
+        /**
+         * 用 1 填充到字节边界
+         */
+        void flush() {
+            if (bitCount > 0) {
+                write((1 << (8 - bitCount)) - 1, 8 - bitCount);
+            }
+        }
+
+        private void put(int b) {
+            ensureCapacity(1);
+            bytes[length++] = (byte) b;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(bytes, 0, length);
+        }
+    }
+
+    /**
+     * 将 EXIF IFD0 中的方向标记（0x0112）改为 1
+     *
+     * 普通路径经 ImageIO 写出时会丢弃 EXIF，查看器按存储方向显示像素；
+     * 这里保留了 EXIF，需要去掉旋转信息才能得到相同的显示效果。
+     */
+    private static void resetOrientation(byte[] segment, int tiffStart) {
+        if (tiffStart + 8 > segment.length) {
+            return;
+        }
+        boolean littleEndian = segment[tiffStart] == 'I';
+        long ifdOffset = readInt(segment, tiffStart + 4, littleEndian);
+        if (ifdOffset < 8 || tiffStart + ifdOffset + 2 > segment.length) {
+            return;
+        }
+        int ifd = (int) (tiffStart + ifdOffset);
+        int count = readShort(segment, ifd, littleEndian);
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > segment.length) {
+                return;
+            }
+            int tag = readShort(segment, entry, littleEndian);
+            int type = readShort(segment, entry + 2, littleEndian);
+            if (tag == 0x0112 && type == 3) {
+                segment[entry + 8] = (byte) (littleEndian ? 1 : 0);
+                segment[entry + 9] = (byte) (littleEndian ? 0 : 1);
+                return;
+            }
+        }
+    }
+
+    private static int readShort(byte[] data, int offset, boolean littleEndian) {
+        int b0 = data[offset] & 0xFF;
+        int b1 = data[offset + 1] & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private static long readInt(byte[] data, int offset, boolean littleEndian) {
+        long value = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = data[offset + (littleEndian ? 3 - i : i)] & 0xFF;
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    private static void inverseDct(float[] coefficients, float[] samples) {
+        float[] temp = new float[64];
+        // 列方向：temp[y][u] = sum_v COS[v][y] * F[v][u]
+        for (int u = 0; u < 8; u++) {
+            for (int y = 0; y < 8; y++) {
+                float sum = 0;
+                for (int v = 0; v < 8; v++) {
+                    sum += COS[v][y] * coefficients[v * 8 + u];
+                }
+                temp[y * 8 + u] = sum;
+            }
+        }
+        // 行方向：f[y][x] = sum_u COS[u][x] * temp[y][u]
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                float sum = 0;
+                for (int u = 0; u < 8; u++) {
+                    sum += COS[u][x] * temp[y * 8 + u];
+                }
+                samples[y * 8 + x] = sum;
+            }
+        }
+    }
+
+    private static void forwardDct(float[] samples, float[] coefficients) {
+        float[] temp = new float[64];
+        // 行方向：temp[y][u] = sum_x COS[u][x] * f[y][x]
+        for (int y = 0; y < 8; y++) {
+            for (int u = 0; u < 8; u++) {
+                float sum = 0;
+                for (int x = 0; x < 8; x++) {
+                    sum += COS[u][x] * samples[y * 8 + x];
+                }
+                temp[y * 8 + u] = sum;
+            }
+        }
+        // 列方向：F[v][u] = sum_y COS[v][y] * temp[y][u]
+        for (int u = 0; u < 8; u++) {
+            for (int v = 0; v < 8; v++) {
+                float sum = 0;
+                for (int y = 0; y < 8; y++) {
+                    sum += COS[v][y] * temp[y * 8 + u];
+                }
+                coefficients[v * 8 + u] = sum;
+            }
+        }
+    }
+
+    private static int bitLength(int value) {
+        int magnitude = Math.abs(value);
+        return magnitude == 0 ? 0 : 32 - Integer.numberOfLeadingZeros(magnitude);
+    }
+
+    private static int extend(int value, int size) {
+        return value < (1 << (size - 1)) ? value - (1 << size) + 1 : value;
+    }
+
+    private static int clamp(float value) {
+        int rounded = Math.round(value);
+        return rounded < 0 ? 0 : Math.min(255, rounded);
+    }
+
+    private static int u16(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+}
\ No newline at end of file
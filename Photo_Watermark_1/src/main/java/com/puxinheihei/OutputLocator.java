@@ -0,0 +1,90 @@
+package com.puxinheihei;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 按命令行参数确定输出位置
+ *
+ * 批处理和监视模式共用：每个输入对应一个输出根目录，mirror 模式下按源文件的相对路径创建子目录。
+ */
+public class OutputLocator {
+
+    private final WatermarkOptions options;
+    // mirror 模式下已经创建过的输出子目录
+    private final Set<Path> createdDirectories = new HashSet<>();
+
+    public OutputLocator(WatermarkOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * 输入为文件时以其所在目录作为源根目录
+     */
+    public File sourceRootOf(File input) {
+        File absolute = input.getAbsoluteFile();
+        return absolute.isFile() ? absolute.getParentFile() : absolute;
+    }
+
+    /**
+     * 源根目录对应的输出根目录
+     */
+    public File outputRootFor(File sourceRoot) {
+        File output = options.getOutput();
+        if (output == null) {
+            return new File(sourceRoot.getPath() + "_watermark");
+        }
+        return options.getInputs().size() > 1 ? new File(output, sourceRoot.getName()) : output;
+    }
+
+    /**
+     * 检查不同的输入是否会写到同一个输出根目录（例如 -o 下两个同名的输入目录）
+     *
+     * @param sourceRoots 每个输入的源根目录
+     * @return 冲突的说明，没有冲突时返回 null
+     */
+    public String findOutputConflict(Iterable<File> sourceRoots) {
+        Map<Path, Path> sourcesByOutput = new HashMap<>();
+        for (File sourceRoot : sourceRoots) {
+            Path source = sourceRoot.toPath().toAbsolutePath().normalize();
+            Path output = outputRootFor(sourceRoot).toPath().toAbsolutePath().normalize();
+            Path previous = sourcesByOutput.putIfAbsent(output, source);
+            if (previous != null && !previous.equals(source)) {
+                return "输入 " + previous + " 和 " + source + " 的输出目录相同: " + output;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 图片的输出目录：flat 为输出根目录，mirror 为对应的子目录
+     *
+     * @return 无法创建子目录时返回 null
+     */
+    public File outputDirFor(File outputRoot, Path root, Path file) {
+        if (options.getLayout() == WatermarkOptions.Layout.FLAT) {
+            return outputRoot;
+        }
+        Path parent = root.relativize(file).getParent();
+        if (parent == null) {
+            return outputRoot;
+        }
+        Path directory = outputRoot.toPath().resolve(parent);
+        if (createdDirectories.add(directory)) {
+            try {
+                Files.createDirectories(directory);
+            } catch (IOException e) {
+                createdDirectories.remove(directory);
+                System.out.println("无法创建输出目录: " + directory + "，跳过 " + file.getFileName());
+                return null;
+            }
+        }
+        return directory.toFile();
+    }
+}
\ No newline at end of file
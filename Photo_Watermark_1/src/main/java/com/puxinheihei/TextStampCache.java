@@ -0,0 +1,205 @@
+package com.puxinheihei;
+
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * 预渲染文字水印缓存
+ *
+ * 同一目录中的照片大多是同一天拍的，水印文字相同。字形光栅化（抗锯齿）只在第一次遇到某个
+ * （文字, 字体, 字号, 颜色, 不透明度）组合时进行一次，结果保存为预乘 ARGB 图块，
+ * 之后每张图片只需把图块合成到目标图片上。
+ *
+ * 缓存按最近最少使用淘汰，同时限制条目数和图块占用的总字节数。多线程共享时按整体加锁，
+ * 未命中时在锁外渲染，偶尔重复渲染同一个图块不影响结果。
+ */
+public class TextStampCache {
+
+    private final int maxEntries;
+    private final long maxBytes;
+
+    private final LinkedHashMap<Key, TextStamp> stamps = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    public TextStampCache(int maxEntries, long maxBytes) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxBytes = Math.max(1, maxBytes);
+    }
+
+    /**
+     * 获取文字图块，不存在时渲染并放入缓存
+     */
+    public TextStamp get(String text, Font font, Color color, float opacity) {
+        Key key = new Key(text, font.getName(), font.getStyle(), font.getSize(), color.getRGB(), opacity);
+        synchronized (this) {
+            TextStamp stamp = stamps.get(key);
+            if (stamp != null) {
+                return stamp;
+            }
+        }
+
+        TextStamp stamp = TextStamp.render(text, font, color, opacity);
+        synchronized (this) {
+            TextStamp existing = stamps.putIfAbsent(key, stamp);
+            if (existing != null) {
+                return existing;
+            }
+            totalBytes += stamp.getBytes();
+            evict();
+        }
+        return stamp;
+    }
+
+    public synchronized int size() {
+        return stamps.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized void clear() {
+        stamps.clear();
+        totalBytes = 0;
+    }
+
+    /**
+     * 淘汰最久未使用的图块，至少保留刚放入的一个
+     */
+    private void evict() {
+        Iterator<Map.Entry<Key, TextStamp>> iterator = stamps.entrySet().iterator();
+        while ((stamps.size() > maxEntries || totalBytes > maxBytes) && stamps.size() > 1) {
+            TextStamp removed = iterator.next().getValue();
+            iterator.remove();
+            totalBytes -= removed.getBytes();
+        }
+    }
+
+    /**
+     * 一段已光栅化的文字
+     *
+     * 图块包含抗锯齿边缘和超出逻辑边界的字形部分，originX/originY 为基线起点在图块中的坐标。
+     */
+    public static final class TextStamp {
+        private final BufferedImage image;
+        private final int originX;
+        private final int originY;
+        private final int textWidth;
+        private final int textHeight;
+
+        private TextStamp(BufferedImage image, int originX, int originY, int textWidth, int textHeight) {
+            this.image = image;
+            this.originX = originX;
+            this.originY = originY;
+            this.textWidth = textWidth;
+            this.textHeight = textHeight;
+        }
+
+        static TextStamp render(String text, Font font, Color color, float opacity) {
+            // 用 1x1 画布取得与目标图片一致的字体度量
+            BufferedImage scratch = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB_PRE);
+            Graphics2D measure = scratch.createGraphics();
+            Rectangle bounds;
+            FontMetrics metrics;
+            try {
+                measure.setFont(font);
+                measure.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                metrics = measure.getFontMetrics();
+                bounds = new Rectangle(0, -metrics.getAscent(), metrics.stringWidth(text),
+                        metrics.getAscent() + metrics.getDescent());
+
+                // 合并字形的实际像素范围，部分字形会超出逻辑边界
+                FontRenderContext frc = measure.getFontRenderContext();
+                bounds.add(font.createGlyphVector(frc, text).getPixelBounds(frc, 0, 0));
+                bounds.grow(2, 2);
+            } finally {
+                measure.dispose();
+            }
+
+            BufferedImage image = new BufferedImage(Math.max(1, bounds.width), Math.max(1, bounds.height),
+                    BufferedImage.TYPE_INT_ARGB_PRE);
+            Graphics2D g2d = image.createGraphics();
+            try {
+                g2d.setFont(font);
+                g2d.setColor(color);
+                g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                if (opacity < 1f) {
+                    g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, opacity));
+                }
+                g2d.drawString(text, -bounds.x, -bounds.y);
+            } finally {
+                g2d.dispose();
+            }
+
+            return new TextStamp(image, -bounds.x, -bounds.y, metrics.stringWidth(text), metrics.getHeight());
+        }
+
+        /**
+         * 将图块合成到画布上，(x, y) 为文字基线起点
+         */
+        public void drawAt(Graphics2D g2d, int x, int y) {
+            g2d.drawImage(image, x - originX, y - originY, null);
+        }
+
+        /**
+         * 文字基线起点为 (x, y) 时图块覆盖的像素范围
+         */
+        public Rectangle getBounds(int x, int y) {
+            return new Rectangle(x - originX, y - originY, image.getWidth(), image.getHeight());
+        }
+
+        public int getTextWidth() {
+            return textWidth;
+        }
+
+        public int getTextHeight() {
+            return textHeight;
+        }
+
+        long getBytes() {
+            return (long) image.getWidth() * image.getHeight() * 4;
+        }
+    }
+
+    private static final class Key {
+        private final String text;
+        private final String fontName;
+        private final int style;
+        private final int size;
+        private final int rgba;
+        private final float opacity;
+
+        private Key(String text, String fontName, int style, int size, int rgba, float opacity) {
+            this.text = text;
+            this.fontName = fontName;
+            this.style = style;
+            this.size = size;
+            this.rgba = rgba;
+            this.opacity = opacity;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return style == key.style && size == key.size && rgba == key.rgba
+                    && Float.compare(opacity, key.opacity) == 0
+                    && text.equals(key.text) && fontName.equals(key.fontName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(text, fontName, style, size, rgba, opacity);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,136 @@
+package com.puxinheihei;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 监视模式的检查点
+ *
+ * 记录每个已完整处理过的目录（相对源根目录）及其当时的修改时间。目录的修改时间只在其中
+ * 增加、删除、重命名条目时变化，因此重启后修改时间没变的目录不需要重新列出文件，
+ * 只要沿着记录中的子目录继续检查即可：整棵树只需要每个目录一次 stat。
+ *
+ * 保存在输出目录中，制表符分隔：相对路径、修改时间（毫秒）。根目录的相对路径为空字符串。
+ */
+public class WatchCheckpoint {
+
+    public static final String FILE_NAME = ".watch_checkpoint.tsv";
+
+    private final Path file;
+    private final Map<String, Long> directories = new HashMap<>();
+    private final Map<String, Set<String>> children = new HashMap<>();
+    private boolean dirty;
+
+    private WatchCheckpoint(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * 读取输出目录中的检查点，不存在时返回空检查点
+     */
+    public static WatchCheckpoint load(File outputRoot) throws IOException {
+        WatchCheckpoint checkpoint = new WatchCheckpoint(outputRoot.toPath().resolve(FILE_NAME));
+        if (!Files.exists(checkpoint.file)) {
+            return checkpoint;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(checkpoint.file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.lastIndexOf('\t');
+                if (tab < 0 || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    checkpoint.put(line.substring(0, tab), Long.parseLong(line.substring(tab + 1)));
+                } catch (NumberFormatException e) {
+                    // 跳过损坏的行
+                }
+            }
+        }
+        checkpoint.dirty = false;
+        return checkpoint;
+    }
+
+    /**
+     * 目录上次完整处理时的修改时间，没有记录返回 null
+     */
+    public Long getModified(String directory) {
+        return directories.get(directory);
+    }
+
+    /**
+     * 记录中该目录的直接子目录
+     */
+    public List<String> getChildren(String directory) {
+        Set<String> names = children.get(directory);
+        return names == null ? Collections.emptyList() : new ArrayList<>(names);
+    }
+
+    public void put(String directory, long modified) {
+        Long previous = directories.put(directory, modified);
+        if (previous == null && !directory.isEmpty()) {
+            children.computeIfAbsent(parentOf(directory), key -> new LinkedHashSet<>()).add(directory);
+        }
+        if (previous == null || previous != modified) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * 删除目录及其所有子目录的记录
+     */
+    public void remove(String directory) {
+        if (directories.remove(directory) == null) {
+            return;
+        }
+        dirty = true;
+        Set<String> siblings = children.get(parentOf(directory));
+        if (siblings != null) {
+            siblings.remove(directory);
+        }
+        Set<String> descendants = children.remove(directory);
+        if (descendants != null) {
+            for (String child : new ArrayList<>(descendants)) {
+                remove(child);
+            }
+        }
+    }
+
+    /**
+     * 有变化时写回文件（先写临时文件再原子替换）
+     */
+    public void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        Path temp = file.resolveSibling(FILE_NAME + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write("#directory\tmtime");
+            writer.newLine();
+            for (Map.Entry<String, Long> entry : directories.entrySet()) {
+                writer.write(entry.getKey() + "\t" + entry.getValue());
+                writer.newLine();
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    static String parentOf(String directory) {
+        int slash = directory.lastIndexOf('/');
+        return slash < 0 ? "" : directory.substring(0, slash);
+    }
+}
\ No newline at end of file
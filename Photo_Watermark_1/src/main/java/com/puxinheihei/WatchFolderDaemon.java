@@ -0,0 +1,586 @@
+package com.puxinheihei;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 监视模式：持续处理新到达的图片
+ *
+ * 用 WatchService 监听输入目录（递归时包括所有子目录），新文件先进入等待区，
+ * 大小和修改时间在 --settle 秒内都没有变化（JPEG 还要求已经写到 EOI 标记）才认为写入完成，
+ * 然后按批交给 {@link WatermarkRunner} 处理。处理结果仍然记在输出目录的处理清单中。
+ *
+ * WatchService 在 NFS、SMB 等网络文件系统上收不到其他机器写入产生的事件，
+ * 所以另外每隔 --poll-interval 秒重新扫描一次。扫描借助 {@link WatchCheckpoint}
+ * 跳过修改时间没有变化的目录，只列出有新条目的目录；检查点持久保存，重启后同样适用。
+ *
+ * 收到 SIGTERM/SIGINT 时不再提交新文件，等已提交的文件处理完后退出，并保存清单和检查点。
+ * 退出时不中断工作线程（中断会让正在进行的文件读写抛出 ClosedByInterruptException）。
+ */
+public class WatchFolderDaemon {
+
+    // 每批最多处理的图片数，批与批之间更新检查点
+    private static final int BATCH_SIZE = 256;
+    // 写入文件的同时目录修改时间可能不变（文件系统时间精度），刚变化过的目录暂不记入检查点
+    private static final long MTIME_GRANULARITY_MILLIS = 2000;
+    // JPEG 一直没有 EOI 标记（例如结尾有填充数据）或文件一直为空时，最多等待 settle 的倍数，
+    // 但不少于 MIN_MAX_WAIT_MILLIS（--settle 0 时仍要等写到 EOI）
+    private static final int MAX_WAIT_FACTOR = 10;
+    private static final long MIN_MAX_WAIT_MILLIS = 10_000;
+    // 等待事件时至少每隔这么久检查一次是否需要退出
+    private static final long STOP_CHECK_MILLIS = 1000;
+
+    private final WatermarkOptions options;
+    private final OutputLocator locator;
+    private final ImageFileWalker filter;
+    private final PixelBudget pixelBudget;
+    private final long settleMillis;
+    private final long maxWaitMillis;
+    private final long pollMillis;
+
+    private final List<WatchedRoot> roots = new ArrayList<>();
+    private final Map<WatchKey, Registration> registrations = new HashMap<>();
+    private final Set<Path> registeredDirectories = new HashSet<>();
+    // 等待写入完成的文件，按发现顺序
+    private final Map<Path, Candidate> candidates = new LinkedHashMap<>();
+
+    // 整个监视期间共用，工作线程和内存预算不随每批重建
+    private WatermarkRunner runner;
+    private WatchService watchService;
+    private boolean watchLimitReported;
+    private boolean rescanRequested;
+    private volatile boolean stopping;
+
+    private int processedCount;
+    private int failedCount;
+
+    WatchFolderDaemon(WatermarkOptions options) {
+        this.options = options;
+        this.locator = new OutputLocator(options);
+        List<Path> outputRoots = new ArrayList<>();
+        for (File input : options.getInputs()) {
+            outputRoots.add(locator.outputRootFor(input.getAbsoluteFile()).toPath());
+        }
+        this.filter = new ImageFileWalker(options.isRecursive(), options.getGlob(), outputRoots);
+        this.pixelBudget = new PixelBudget(options.getMemoryBudget());
+        this.settleMillis = options.getSettleSeconds() * 1000L;
+        this.maxWaitMillis = Math.max(settleMillis * MAX_WAIT_FACTOR, MIN_MAX_WAIT_MILLIS);
+        this.pollMillis = options.getPollIntervalSeconds() * 1000L;
+    }
+
+    /**
+     * 监视所有输入目录，直到进程被终止
+     *
+     * @return 进程退出码：输入不是目录或无法初始化时为 1
+     */
+    public static int run(WatermarkOptions options) {
+        return new WatchFolderDaemon(options).run();
+    }
+
+    int run() {
+        for (File input : options.getInputs()) {
+            if (!input.isDirectory()) {
+                System.out.println("监视模式的输入必须是目录: " + input.getAbsolutePath());
+                return 1;
+            }
+        }
+        String conflict = locator.findOutputConflict(options.getInputs());
+        if (conflict != null) {
+            System.out.println(conflict + "，请分别指定输出目录");
+            return 1;
+        }
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Thread shutdownHook = new Thread(() -> {
+            stop();
+            try {
+                stopped.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "watermark-watch-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        runner = new WatermarkRunner(options.getThreads(), options.getFontSize(), options.getColor(),
+                options.getPosition(), pixelBudget, options.isLosslessJpeg(), options.getEncodeSettings(),
+                options.isIncremental());
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            for (File input : options.getInputs()) {
+                roots.add(openRoot(input.getAbsoluteFile()));
+            }
+            watchLoop();
+            return 0;
+        } catch (IOException e) {
+            System.out.println("无法启动监视: " + e.getMessage());
+            return 1;
+        } finally {
+            close();
+            System.out.println("监视结束，共处理了 " + processedCount + " 个图片文件"
+                    + (failedCount > 0 ? "，失败 " + failedCount + " 个" : ""));
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * 请求退出：不再提交新文件，已提交的文件处理完后 {@link #run()} 返回
+     */
+    void stop() {
+        stopping = true;
+    }
+
+    private WatchedRoot openRoot(File sourceRoot) throws IOException {
+        File outputRoot = locator.outputRootFor(sourceRoot);
+        if (!outputRoot.isDirectory() && !outputRoot.mkdirs()) {
+            throw new IOException("无法创建输出目录: " + outputRoot.getAbsolutePath());
+        }
+        WatermarkManifest manifest = WatermarkManifest.open(sourceRoot, outputRoot, options.getFontSize(),
+                options.getColor(), options.getPosition(), options.isLosslessJpeg(), options.getEncodeSettings());
+        WatchCheckpoint checkpoint = WatchCheckpoint.load(outputRoot);
+        System.out.println("监视目录: " + sourceRoot.getAbsolutePath() + " -> " + outputRoot.getAbsolutePath());
+        return new WatchedRoot(sourceRoot.toPath().normalize(), outputRoot, manifest, checkpoint);
+    }
+
+    private void watchLoop() {
+        // 启动时按检查点扫描，只列出上次退出后有变化的目录
+        long lastScan = System.currentTimeMillis();
+        scanAll();
+        processReady();
+
+        while (!stopping && !Thread.currentThread().isInterrupted()) {
+            long now = System.currentTimeMillis();
+            long timeout = Math.min(STOP_CHECK_MILLIS, Math.max(0, lastScan + pollMillis - now));
+            if (!candidates.isEmpty()) {
+                timeout = Math.min(timeout, Math.max(100, settleMillis / 2));
+            }
+
+            try {
+                WatchKey key = watchService.poll(timeout, TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    handleEvents(key);
+                    key = watchService.poll();
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (rescanRequested || System.currentTimeMillis() - lastScan >= pollMillis) {
+                rescanRequested = false;
+                lastScan = System.currentTimeMillis();
+                scanAll();
+            }
+            processReady();
+        }
+    }
+
+    private void scanAll() {
+        for (WatchedRoot root : roots) {
+            scanDirectory(root, root.path, true);
+        }
+    }
+
+    /**
+     * 扫描目录，把需要处理的图片放入等待区
+     *
+     * @param prune 为 true 时修改时间与检查点一致的目录不列出文件，只继续检查记录中的子目录
+     */
+    private void scanDirectory(WatchedRoot root, Path dir, boolean prune) {
+        if (!dir.equals(root.path) && filter.isExcluded(dir)) {
+            return;
+        }
+        String key = root.keyOf(dir);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(dir, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            // 目录已被删除
+            root.checkpoint.remove(key);
+            root.scannedDirectories.remove(key);
+            root.unlistedDirectories.remove(key);
+            return;
+        }
+        if (!attributes.isDirectory()) {
+            return;
+        }
+        register(root, dir);
+
+        long modified = attributes.lastModifiedTime().toMillis();
+        Long recorded = root.checkpoint.getModified(key);
+        if (prune && recorded != null && recorded == modified && !root.scannedDirectories.containsKey(key)) {
+            if (filter.isRecursive()) {
+                for (String child : root.checkpoint.getChildren(key)) {
+                    scanDirectory(root, root.path.resolve(child), true);
+                }
+            }
+            return;
+        }
+
+        // 记下列出之前的修改时间，列出期间新增的文件会让下次扫描再列一遍
+        root.scannedDirectories.put(key, modified);
+        root.unlistedDirectories.remove(key);
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                BasicFileAttributes entryAttributes;
+                try {
+                    entryAttributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    continue;
+                }
+                if (entryAttributes.isDirectory()) {
+                    if (filter.isRecursive()) {
+                        scanDirectory(root, entry, prune);
+                    }
+                } else if (entryAttributes.isRegularFile() && filter.accepts(root.path, entry)) {
+                    offer(root, entry);
+                }
+            }
+        } catch (IOException e) {
+            root.scannedDirectories.remove(key);
+            root.unlistedDirectories.add(key);
+            System.out.println("无法访问 " + dir + ": " + e.getMessage());
+        }
+    }
+
+    private void register(WatchedRoot root, Path dir) {
+        if (registeredDirectories.contains(dir)) {
+            return;
+        }
+        try {
+            WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            registrations.put(key, new Registration(root, dir));
+            registeredDirectories.add(dir);
+        } catch (IOException e) {
+            // 例如超出 inotify 监听数量上限，这些目录只能靠定期扫描
+            if (!watchLimitReported) {
+                watchLimitReported = true;
+                System.out.println("无法监听目录 " + dir + "（" + e.getMessage() + "），改为依赖定期扫描");
+            }
+        }
+    }
+
+    private void handleEvents(WatchKey key) {
+        Registration registration = registrations.get(key);
+        if (registration == null) {
+            key.cancel();
+            return;
+        }
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                rescanRequested = true;
+                continue;
+            }
+            Path child = registration.dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                candidates.remove(child);
+                continue;
+            }
+            if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && filter.isRecursive()) {
+                    // 新目录注册监听之前可能已经写入了文件，需要列一遍
+                    scanDirectory(registration.root, child, false);
+                }
+            } else if (filter.accepts(registration.root.path, child)) {
+                offer(registration.root, child);
+            }
+        }
+        if (!key.reset()) {
+            registrations.remove(key);
+            registeredDirectories.remove(registration.dir);
+        }
+    }
+
+    /**
+     * 把文件放入等待区；清单显示已处理且没有变化的文件直接忽略
+     */
+    private void offer(WatchedRoot root, Path file) {
+        Candidate existing = candidates.get(file);
+        if (existing != null) {
+            // 仍在写入，重新计时
+            existing.changedAt = System.currentTimeMillis();
+            return;
+        }
+        if (options.isIncremental() && root.manifest != null) {
+            File outputDir = locator.outputDirFor(root.outputRoot, root.path, file);
+            if (outputDir == null) {
+                return;
+            }
+            if (!root.manifest.needsProcessing(file.toFile(), ImageWatermark.getOutputFile(file.toFile(), outputDir))) {
+                return;
+            }
+        }
+        candidates.put(file, new Candidate(root, file, System.currentTimeMillis()));
+    }
+
+    /**
+     * 处理已经写入完成的文件，然后更新检查点
+     */
+    private void processReady() {
+        while (!stopping) {
+            long now = System.currentTimeMillis();
+            List<Candidate> batch = new ArrayList<>();
+            Iterator<Candidate> iterator = candidates.values().iterator();
+            while (iterator.hasNext() && batch.size() < BATCH_SIZE) {
+                Candidate candidate = iterator.next();
+                if (!candidate.observe(now)) {
+                    iterator.remove();
+                } else if (candidate.isAbandoned(now)) {
+                    // 一直为空的文件不再等待，以免一直挡住检查点；之后写入内容会重新产生事件
+                    iterator.remove();
+                    System.out.println("文件 " + candidate.file.getFileName() + " 一直为空，不再等待");
+                } else if (candidate.isReady(now)) {
+                    iterator.remove();
+                    batch.add(candidate);
+                }
+            }
+            if (batch.isEmpty()) {
+                commitCheckpoints();
+                return;
+            }
+            if (!processBatch(batch)) {
+                return;
+            }
+            commitCheckpoints();
+        }
+    }
+
+    /**
+     * @return 正在退出或被中断时返回 false
+     */
+    private boolean processBatch(List<Candidate> batch) {
+        int submittedBefore = runner.getSubmittedCount();
+        try {
+            int processedBefore = runner.awaitIdle();
+            for (Candidate candidate : batch) {
+                if (stopping) {
+                    // 未提交的文件下次启动时重新发现
+                    break;
+                }
+                File outputDir = locator.outputDirFor(candidate.root.outputRoot, candidate.root.path, candidate.file);
+                if (outputDir != null) {
+                    runner.submit(candidate.file.toFile(), outputDir, candidate.root.manifest);
+                }
+            }
+            // 已提交的文件总是处理完，不中断正在进行的读写
+            int processed = runner.awaitIdle() - processedBefore;
+            int submitted = runner.getSubmittedCount() - submittedBefore;
+            processedCount += processed;
+            failedCount += submitted - processed;
+            if (submitted > 0) {
+                System.out.println("本批处理了 " + processed + " 个图片文件"
+                        + (submitted > processed ? "，失败 " + (submitted - processed) + " 个" : ""));
+            }
+            return !stopping;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 已列出的目录记入检查点
+     *
+     * 目录本身或任何下级目录中还有等待中的文件、下级目录还没有记入检查点或列出失败时，暂不记入：
+     * 检查点中的子目录列表只包含已记入的目录，父目录先记入会让重启后的扫描跳过这个子目录。
+     */
+    private void commitCheckpoints() {
+        Map<WatchedRoot, Set<String>> blockedDirectories = new HashMap<>();
+        for (Candidate candidate : candidates.values()) {
+            blockWithAncestors(blockedDirectories.computeIfAbsent(candidate.root, key -> new HashSet<>()),
+                    candidate.root.keyOf(candidate.file.getParent()));
+        }
+
+        long now = System.currentTimeMillis();
+        for (WatchedRoot root : roots) {
+            Set<String> blocked = blockedDirectories.computeIfAbsent(root, key -> new HashSet<>());
+            for (String directory : root.unlistedDirectories) {
+                blockWithAncestors(blocked, directory);
+            }
+            for (Map.Entry<String, Long> entry : root.scannedDirectories.entrySet()) {
+                if (now - entry.getValue() <= MTIME_GRANULARITY_MILLIS) {
+                    blockWithAncestors(blocked, entry.getKey());
+                }
+            }
+
+            Iterator<Map.Entry<String, Long>> iterator = root.scannedDirectories.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Long> entry = iterator.next();
+                if (!blocked.contains(entry.getKey())) {
+                    root.checkpoint.put(entry.getKey(), entry.getValue());
+                    iterator.remove();
+                }
+            }
+            try {
+                root.checkpoint.save();
+                if (root.manifest != null) {
+                    root.manifest.flush();
+                }
+            } catch (IOException e) {
+                System.out.println("保存检查点失败: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void blockWithAncestors(Set<String> blocked, String directory) {
+        while (blocked.add(directory) && !directory.isEmpty()) {
+            directory = WatchCheckpoint.parentOf(directory);
+        }
+    }
+
+    private void close() {
+        try {
+            runner.finish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (WatchedRoot root : roots) {
+            try {
+                root.checkpoint.save();
+                root.manifest.close();
+            } catch (IOException e) {
+                System.out.println("保存处理清单失败: " + e.getMessage());
+            }
+        }
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+    }
+
+    /**
+     * 一个输入目录及其输出、清单和检查点
+     */
+    private static final class WatchedRoot {
+        private final Path path;
+        private final File outputRoot;
+        private final WatermarkManifest manifest;
+        private final WatchCheckpoint checkpoint;
+        // 已经列出但还没有记入检查点的目录及列出前的修改时间
+        private final Map<String, Long> scannedDirectories = new HashMap<>();
+        // 列出失败的目录，重新列出成功之前其上级目录都不记入检查点
+        private final Set<String> unlistedDirectories = new HashSet<>();
+
+        private WatchedRoot(Path path, File outputRoot, WatermarkManifest manifest, WatchCheckpoint checkpoint) {
+            this.path = path;
+            this.outputRoot = outputRoot;
+            this.manifest = manifest;
+            this.checkpoint = checkpoint;
+        }
+
+        private String keyOf(Path dir) {
+            return path.relativize(dir).toString().replace(File.separatorChar, '/');
+        }
+    }
+
+    private static final class Registration {
+        private final WatchedRoot root;
+        private final Path dir;
+
+        private Registration(WatchedRoot root, Path dir) {
+            this.root = root;
+            this.dir = dir;
+        }
+    }
+
+    /**
+     * 等待写入完成的文件
+     */
+    private final class Candidate {
+        private final WatchedRoot root;
+        private final Path file;
+        private final long firstSeen;
+        private long size = -1;
+        private long modified = -1;
+        private long changedAt;
+
+        private Candidate(WatchedRoot root, Path file, long now) {
+            this.root = root;
+            this.file = file;
+            this.firstSeen = now;
+        }
+
+        /**
+         * 读取当前大小和修改时间
+         *
+         * @return 文件已不存在时返回 false
+         */
+        private boolean observe(long now) {
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (IOException e) {
+                return false;
+            }
+            long currentSize = attributes.size();
+            long currentModified = attributes.lastModifiedTime().toMillis();
+            if (currentSize != size || currentModified != modified) {
+                // 第一次看到时以文件自身的修改时间为准，早已写完的文件不必再等
+                changedAt = size < 0 ? Math.min(now, Math.max(currentModified, changedAt)) : now;
+                size = currentSize;
+                modified = currentModified;
+            }
+            return true;
+        }
+
+        private boolean isReady(long now) {
+            if (size <= 0 || now - changedAt < settleMillis) {
+                return false;
+            }
+            return !isJpeg() || endsWithEoi() || now - firstSeen >= maxWaitMillis;
+        }
+
+        /**
+         * 文件一直为空（例如创建后放弃写入）
+         */
+        private boolean isAbandoned(long now) {
+            return size == 0 && now - changedAt >= maxWaitMillis;
+        }
+
+        private boolean isJpeg() {
+            String name = file.getFileName().toString().toLowerCase();
+            return name.endsWith(".jpg") || name.endsWith(".jpeg");
+        }
+
+        private boolean endsWithEoi() {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long length = channel.size();
+                if (length < 2) {
+                    return false;
+                }
+                ByteBuffer tail = ByteBuffer.allocate(2);
+                while (tail.hasRemaining() && channel.read(tail, length - 2 + tail.position()) > 0) {
+                    // 读满两个字节
+                }
+                return tail.get(0) == (byte) 0xFF && tail.get(1) == (byte) 0xD9;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+}
\ No newline at end of file
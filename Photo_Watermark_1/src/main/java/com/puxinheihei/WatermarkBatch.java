@@ -0,0 +1,148 @@
+package com.puxinheihei;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 非交互批处理
+ *
+ * 依次遍历每个输入，边发现文件边提交给 {@link WatermarkRunner}，
+ * 目录树再大也会立即开始处理。每个输入目录对应一个输出目录和一份处理清单。
+ */
+public class WatermarkBatch {
+
+    private final WatermarkOptions options;
+    private final OutputLocator locator;
+    // 每个输出根目录一份处理清单
+    private final Map<File, WatermarkManifest> manifests = new LinkedHashMap<>();
+
+    private WatermarkBatch(WatermarkOptions options) {
+        this.options = options;
+        this.locator = new OutputLocator(options);
+    }
+
+    /**
+     * 按命令行参数处理所有输入
+     *
+     * @return 进程退出码：0 全部成功，1 有文件处理失败或输入不存在
+     */
+    public static int run(WatermarkOptions options) {
+        return new WatermarkBatch(options).run();
+    }
+
+    private int run() {
+        List<File> sourceRoots = new ArrayList<>();
+        List<Path> outputRoots = new ArrayList<>();
+        for (File input : options.getInputs()) {
+            sourceRoots.add(locator.sourceRootOf(input));
+            outputRoots.add(locator.outputRootFor(locator.sourceRootOf(input)).toPath());
+        }
+        String conflict = locator.findOutputConflict(sourceRoots);
+        if (conflict != null) {
+            System.out.println(conflict + "，请分别指定输出目录");
+            return 1;
+        }
+
+        PixelBudget pixelBudget = new PixelBudget(options.getMemoryBudget());
+        WatermarkRunner runner = new WatermarkRunner(options.getThreads(), options.getFontSize(), options.getColor(),
+                options.getPosition(), pixelBudget, options.isLosslessJpeg(), options.getEncodeSettings(),
+                options.isIncremental());
+        ImageFileWalker walker = new ImageFileWalker(options.isRecursive(), options.getGlob(), outputRoots);
+
+        int missingInputs = 0;
+        int processedCount = 0;
+        try {
+            for (File input : options.getInputs()) {
+                if (!processInput(input, runner, walker)) {
+                    missingInputs++;
+                }
+            }
+            processedCount = runner.finish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            runner.shutdownNow();
+            System.out.println("处理被中断");
+            return 1;
+        } finally {
+            for (WatermarkManifest manifest : manifests.values()) {
+                try {
+                    manifest.close();
+                } catch (IOException e) {
+                    System.out.println("保存处理清单失败: " + e.getMessage());
+                }
+            }
+        }
+
+        int failedCount = runner.getSubmittedCount() - processedCount;
+        System.out.println("共处理了 " + processedCount + " 个图片文件");
+        if (runner.getSkippedCount() > 0) {
+            System.out.println("跳过了 " + runner.getSkippedCount() + " 个未变化的图片文件");
+        }
+        if (failedCount > 0) {
+            System.out.println("处理失败 " + failedCount + " 个图片文件");
+        }
+        return failedCount > 0 || missingInputs > 0 ? 1 : 0;
+    }
+
+    /**
+     * 处理一个输入（目录或单个文件）
+     *
+     * @return 输入不存在时返回 false
+     */
+    private boolean processInput(File input, WatermarkRunner runner, ImageFileWalker walker)
+            throws InterruptedException {
+        if (!input.exists()) {
+            System.out.println("输入不存在: " + input.getAbsolutePath());
+            return false;
+        }
+
+        File sourceRoot = locator.sourceRootOf(input);
+        File outputRoot = locator.outputRootFor(sourceRoot);
+        if (!outputRoot.isDirectory() && !outputRoot.mkdirs()) {
+            System.out.println("无法创建输出目录: " + outputRoot.getAbsolutePath());
+            return false;
+        }
+        WatermarkManifest manifest = openManifest(sourceRoot, outputRoot);
+
+        if (input.isFile()) {
+            if (ImageWatermark.isImageFile(input)) {
+                runner.submit(input, outputRoot, manifest);
+            }
+            return true;
+        }
+
+        System.out.println("处理目录: " + input.getAbsolutePath() + " -> " + outputRoot.getAbsolutePath());
+        try {
+            walker.walk(input.toPath(), (root, file) -> {
+                File outputDir = locator.outputDirFor(outputRoot, root, file);
+                if (outputDir != null) {
+                    runner.submit(file.toFile(), outputDir, manifest);
+                }
+            });
+        } catch (IOException e) {
+            System.out.println("遍历目录 " + input.getAbsolutePath() + " 失败: " + e.getMessage());
+        }
+        return true;
+    }
+
+    private WatermarkManifest openManifest(File sourceRoot, File outputRoot) {
+        WatermarkManifest existing = manifests.get(outputRoot);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            WatermarkManifest manifest = WatermarkManifest.open(sourceRoot, outputRoot, options.getFontSize(),
+                    options.getColor(), options.getPosition(), options.isLosslessJpeg(), options.getEncodeSettings());
+            manifests.put(outputRoot, manifest);
+            return manifest;
+        } catch (IOException e) {
+            System.out.println("无法读取处理清单，将处理全部文件: " + e.getMessage());
+            return null;
+        }
+    }
+}
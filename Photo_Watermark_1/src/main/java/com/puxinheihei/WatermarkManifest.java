@@ -0,0 +1,322 @@
+package com.puxinheihei;
+
+import java.awt.*;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 已处理文件清单，用于增量处理
+ *
+ * 清单保存在输出目录中（制表符分隔的文本），每行记录一个源文件：
+ * 相对路径、大小、修改时间、内容 SHA-256、水印参数指纹、输出文件（相对输出目录）。
+ *
+ * 判断是否需要重新处理时：
+ * <ul>
+ *     <li>没有记录、参数变化或输出文件不存在：需要处理；</li>
+ *     <li>大小和修改时间都没变：直接跳过，不读取文件内容；</li>
+ *     <li>大小没变但修改时间变了：计算内容哈希，相同则只更新修改时间；
+ *     但没有 EXIF 日期的文件水印文字取自修改时间，修改日期变了仍需处理。</li>
+ * </ul>
+ * 这样二十万张的目录再次运行时，未变化的文件只需要一次 stat。
+ *
+ * 处理过程中每完成一个文件就追加一行，中途退出也不会丢失已完成的记录；
+ * {@link #close()} 时重写为每个文件一行的紧凑格式。
+ */
+public class WatermarkManifest implements AutoCloseable {
+
+    public static final String FILE_NAME = ".watermark_manifest.tsv";
+
+    private static final String HEADER = "#path\tsize\tmtime\tsha256\tparams\toutput";
+
+    private final Path sourceRoot;
+    private final Path outputRoot;
+    private final Path manifestFile;
+    private final String paramsFingerprint;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private BufferedWriter appender;
+    private int appendedCount;
+
+    private WatermarkManifest(Path sourceRoot, Path outputRoot, String paramsFingerprint) {
+        this.sourceRoot = sourceRoot.toAbsolutePath().normalize();
+        this.outputRoot = outputRoot.toAbsolutePath().normalize();
+        this.manifestFile = this.outputRoot.resolve(FILE_NAME);
+        this.paramsFingerprint = paramsFingerprint;
+    }
+
+    /**
+     * 打开输出目录中的清单，不存在时创建空清单
+     */
+    public static WatermarkManifest open(File sourceRoot, File outputDir, int fontSize, Color color,
+                                         String position, boolean losslessJpeg,
+                                         ImageCodec.EncodeSettings encodeSettings) throws IOException {
+        String params = "fontSize=" + fontSize
+                + ";color=" + Integer.toHexString(color.getRGB())
+                + ";position=" + position.toLowerCase()
+                + ";jpeg=" + (losslessJpeg ? "region" : "full");
+        // 默认编码参数不计入指纹，已有的清单仍然有效
+        if (!encodeSettings.equals(ImageCodec.EncodeSettings.DEFAULT)) {
+            params += ";quality=" + encodeSettings.getQuality()
+                    + ";progressive=" + encodeSettings.isProgressive()
+                    + ";subsampling=" + encodeSettings.getSubsampling();
+        }
+        WatermarkManifest manifest = new WatermarkManifest(sourceRoot.toPath(), outputDir.toPath(),
+                toHex(sha256(params.getBytes(StandardCharsets.UTF_8))).substring(0, 16));
+        manifest.load();
+        return manifest;
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(manifestFile)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(manifestFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 6) {
+                    continue;
+                }
+                try {
+                    // 后出现的记录覆盖前面的记录
+                    entries.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            fields[3], fields[4], fields[5]));
+                } catch (NumberFormatException e) {
+                    // 跳过损坏的行
+                }
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * 判断源文件是否需要处理
+     */
+    public boolean needsProcessing(File imageFile, File outputFile) {
+        String key = relativeKey(imageFile);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null || !entry.params.equals(paramsFingerprint)
+                || !entry.output.equals(outputKey(outputFile)) || !outputFile.exists()) {
+            return true;
+        }
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(imageFile.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return true;
+        }
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        if (size != entry.size) {
+            return true;
+        }
+        if (modified == entry.modified) {
+            return false;
+        }
+
+        // 修改时间变化但大小相同（例如复制或 touch），比较内容
+        try {
+            String hash = hashFile(imageFile.toPath());
+            if (!hash.equals(entry.hash)) {
+                return true;
+            }
+            // 没有 EXIF 日期时水印文字就是修改日期，已有输出中的日期过期了
+            if (!ImageWatermark.formatModifiedDate(modified).equals(ImageWatermark.formatModifiedDate(entry.modified))
+                    && ExifDateReader.readDate(imageFile) == null) {
+                return true;
+            }
+            record(key, new Entry(size, modified, hash, entry.params, entry.output));
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * 读取源文件的大小、修改时间和内容哈希，在读取图片之前调用
+     *
+     * 处理完成后记录这里得到的值，而不是写出后再读取：处理期间源文件被修改时，
+     * 清单中记下的是实际处理的版本，下次运行能发现变化并重新处理。
+     */
+    public static SourceState captureSource(File imageFile) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(imageFile.toPath(), BasicFileAttributes.class);
+        String hash = hashFile(imageFile.toPath());
+        return new SourceState(attributes.size(), attributes.lastModifiedTime().toMillis(), hash);
+    }
+
+    /**
+     * 记录处理成功的文件
+     *
+     * @param source 处理前用 {@link #captureSource} 取得的源文件状态
+     */
+    public void recordProcessed(File imageFile, File outputFile, SourceState source) {
+        try {
+            record(relativeKey(imageFile), new Entry(source.size, source.modified, source.hash,
+                    paramsFingerprint, outputKey(outputFile)));
+        } catch (IOException e) {
+            System.out.println("无法记录 " + imageFile.getName() + " 的处理状态: " + e.getMessage());
+        }
+    }
+
+    private synchronized void record(String key, Entry entry) throws IOException {
+        if (key.indexOf('\t') >= 0 || key.indexOf('\n') >= 0) {
+            // 无法写入制表符分隔的清单，这类文件每次都会重新处理
+            return;
+        }
+        entries.put(key, entry);
+        if (appender == null) {
+            boolean exists = Files.exists(manifestFile);
+            appender = Files.newBufferedWriter(manifestFile, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            if (!exists) {
+                appender.write(HEADER);
+                appender.newLine();
+            }
+        }
+        appender.write(format(key, entry));
+        appender.newLine();
+        appendedCount++;
+        // 定期刷新，异常退出时最多丢失最近几条记录
+        if (appendedCount % 64 == 0) {
+            appender.flush();
+        }
+    }
+
+    /**
+     * 将已追加的记录写到磁盘，长时间运行时每批处理完调用
+     */
+    public synchronized void flush() throws IOException {
+        if (appender != null) {
+            appender.flush();
+        }
+    }
+
+    /**
+     * 关闭追加写入，并将清单重写为紧凑格式
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (appender == null) {
+            return;
+        }
+        appender.close();
+        appender = null;
+
+        Path temp = manifestFile.resolveSibling(FILE_NAME + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writer.write(format(entry.getKey(), entry.getValue()));
+                writer.newLine();
+            }
+        }
+        Files.move(temp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private String relativeKey(File imageFile) {
+        Path path = imageFile.toPath().toAbsolutePath().normalize();
+        Path relative = path.startsWith(sourceRoot) ? sourceRoot.relativize(path) : path;
+        return relative.toString().replace(File.separatorChar, '/');
+    }
+
+    private String outputKey(File outputFile) {
+        Path path = outputFile.toPath().toAbsolutePath().normalize();
+        Path relative = path.startsWith(outputRoot) ? outputRoot.relativize(path) : path;
+        return relative.toString().replace(File.separatorChar, '/');
+    }
+
+    private static String format(String key, Entry entry) {
+        return key + "\t" + entry.size + "\t" + entry.modified + "\t" + entry.hash + "\t"
+                + entry.params + "\t" + entry.output;
+    }
+
+    static String hashFile(Path path) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream input = Files.newInputStream(path)) {
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static byte[] sha256(byte[] data) {
+        return newDigest().digest(data);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 不可用", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0x0F, 16)).append(Character.forDigit(b & 0x0F, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * 处理前读取的源文件状态
+     */
+    public static final class SourceState {
+        private final long size;
+        private final long modified;
+        private final String hash;
+
+        private SourceState(long size, long modified, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * 清单中一个源文件的记录
+     */
+    private static final class Entry {
+        private final long size;
+        private final long modified;
+        private final String hash;
+        private final String params;
+        private final String output;
+
+        private Entry(long size, long modified, String hash, String params, String output) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.params = params;
+            this.output = output;
+        }
+    }
+}
\ No newline at end of file
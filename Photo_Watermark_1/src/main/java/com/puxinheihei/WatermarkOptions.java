@@ -0,0 +1,269 @@
+package com.puxinheihei;
+
+import java.awt.*;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 命令行参数
+ *
+ * 指定了 --input 时以非交互方式运行；否则进入原来的交互模式，
+ * 此时只有 --threads、--memory-budget、--full-reencode、--jpeg-quality、--progressive、--chroma、--force 生效。
+ * 同时指定 --watch 时持续监视输入目录，见 {@link WatchFolderDaemon}。
+ */
+public class WatermarkOptions {
+
+    /**
+     * 输出目录结构
+     */
+    public enum Layout {
+        // 所有图片直接放在输出目录中
+        FLAT,
+        // 保持输入目录中的子目录结构
+        MIRROR
+    }
+
+    private static final List<String> POSITIONS =
+            Arrays.asList("top-left", "top-right", "bottom-left", "bottom-right", "center");
+
+    private final List<File> inputs = new ArrayList<>();
+    private boolean recursive;
+    private String glob;
+    private File output;
+    // 没有指定时递归处理用 mirror，否则用 flat
+    private Layout layout;
+    private int threads = 1;
+    private int fontSize = 300;
+    private Color color = Color.WHITE;
+    private String position = "bottom-right";
+    private long memoryBudget = PixelBudget.defaultBudgetBytes();
+    private boolean losslessJpeg = true;
+    private ImageCodec.EncodeSettings encodeSettings = ImageCodec.EncodeSettings.DEFAULT;
+    private boolean incremental = true;
+    private boolean watch;
+    private int pollIntervalSeconds = 30;
+    private int settleSeconds = 5;
+    private boolean help;
+
+    /**
+     * 解析命令行参数
+     *
+     * @throws IllegalArgumentException 参数无法识别或格式错误
+     */
+    public static WatermarkOptions parse(String[] args) {
+        WatermarkOptions options = new WatermarkOptions();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "-i":
+                case "--input":
+                    options.inputs.add(new File(value(args, ++i, arg)));
+                    break;
+                case "-r":
+                case "--recursive":
+                    options.recursive = true;
+                    break;
+                case "--glob":
+                    options.glob = value(args, ++i, arg);
+                    break;
+                case "-o":
+                case "--output":
+                    options.output = new File(value(args, ++i, arg));
+                    break;
+                case "--layout":
+                    String layout = value(args, ++i, arg);
+                    try {
+                        options.layout = Layout.valueOf(layout.toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("无效的输出结构: " + layout + "（可选 flat, mirror）");
+                    }
+                    break;
+                case "-t":
+                case "--threads":
+                    options.threads = Math.max(1, intValue(args, ++i, arg));
+                    break;
+                case "--font-size":
+                    options.fontSize = Math.max(1, intValue(args, ++i, arg));
+                    break;
+                case "--color":
+                    options.color = ImageWatermark.parseColor(value(args, ++i, arg));
+                    break;
+                case "--position":
+                    options.position = value(args, ++i, arg).toLowerCase();
+                    if (!POSITIONS.contains(options.position)) {
+                        throw new IllegalArgumentException("无效的水印位置: " + options.position);
+                    }
+                    break;
+                case "--memory-budget":
+                    options.memoryBudget = Math.max(1, intValue(args, ++i, arg)) * 1024L * 1024;
+                    break;
+                case "--jpeg-quality":
+                    int quality = intValue(args, ++i, arg);
+                    if (quality < 0 || quality > 100) {
+                        throw new IllegalArgumentException("JPEG 质量需要 0 到 100: " + quality);
+                    }
+                    options.encodeSettings = new ImageCodec.EncodeSettings(quality / 100f,
+                            options.encodeSettings.isProgressive(), options.encodeSettings.getSubsampling());
+                    break;
+                case "--progressive":
+                    options.encodeSettings = new ImageCodec.EncodeSettings(options.encodeSettings.getQuality(),
+                            true, options.encodeSettings.getSubsampling());
+                    break;
+                case "--chroma":
+                    options.encodeSettings = new ImageCodec.EncodeSettings(options.encodeSettings.getQuality(),
+                            options.encodeSettings.isProgressive(),
+                            ImageCodec.ChromaSubsampling.parse(value(args, ++i, arg)));
+                    break;
+                case "--full-reencode":
+                    options.losslessJpeg = false;
+                    break;
+                case "--force":
+                    options.incremental = false;
+                    break;
+                case "--watch":
+                    options.watch = true;
+                    break;
+                case "--poll-interval":
+                    options.pollIntervalSeconds = Math.max(1, intValue(args, ++i, arg));
+                    break;
+                case "--settle":
+                    options.settleSeconds = Math.max(0, intValue(args, ++i, arg));
+                    break;
+                case "-h":
+                case "--help":
+                    options.help = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("无法识别的参数: " + arg);
+            }
+        }
+        if (options.recursive && options.layout == Layout.FLAT) {
+            // 不同子目录中的同名文件会写到同一个输出文件
+            throw new IllegalArgumentException("--layout flat 不能与 --recursive 同时使用，请使用 --layout mirror");
+        }
+        if (options.watch && options.inputs.isEmpty() && !options.help) {
+            throw new IllegalArgumentException("--watch 需要用 --input 指定监视的目录");
+        }
+        return options;
+    }
+
+    private static String value(String[] args, int index, String name) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("参数 " + name + " 缺少取值");
+        }
+        return args[index];
+    }
+
+    private static int intValue(String[] args, int index, String name) {
+        String value = value(args, index, name);
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("参数 " + name + " 需要整数: " + value);
+        }
+    }
+
+    public static String usage() {
+        return String.join(System.lineSeparator(),
+                "用法: ImageWatermark [选项]",
+                "  不指定 --input 时进入交互模式",
+                "",
+                "  -i, --input <路径>        输入目录或图片文件，可重复指定",
+                "  -r, --recursive           递归处理子目录",
+                "      --glob <模式>          只处理匹配的文件，例如 *.jpg 或 2024/**/*.jpg（含 / 时匹配相对路径）",
+                "  -o, --output <目录>       输出目录，默认为 <输入目录>_watermark；多个输入时在其中按输入目录名分开",
+                "      --layout <flat|mirror> 输出结构：flat 全部放在输出目录，mirror 保持子目录结构；默认 flat，递归时为 mirror",
+                "  -t, --threads <N>         并行线程数，默认 1",
+                "      --font-size <N>       字体大小，默认 300",
+                "      --color <颜色>         black, white, red, blue, green 或 R,G,B，默认 white",
+                "      --position <位置>      top-left, top-right, bottom-left, bottom-right, center，默认 bottom-right",
+                "      --memory-budget <MB>  并行解码的内存预算，默认最大堆的 60%",
+                "      --full-reencode       JPEG 也完整解码重新编码，不使用局部重编码",
+                "      --jpeg-quality <0-100> 完整编码 JPEG 时的质量，默认 75（局部重编码保留原图的量化表）",
+                "      --progressive         完整编码时输出渐进式 JPEG，文件通常更小，编码更慢",
+                "      --chroma <444|422|420> 完整编码 JPEG 时的色度抽样，默认 420",
+                "      --force               忽略处理清单，重新处理所有图片",
+                "      --watch               持续监视输入目录，处理新到达的图片，直到进程被终止",
+                "      --poll-interval <秒>  监视模式下定期重新扫描的间隔（网络文件系统收不到变更事件），默认 30",
+                "      --settle <秒>         文件大小和修改时间保持不变多久才认为写入完成，默认 5",
+                "  -h, --help                显示帮助");
+    }
+
+    public boolean hasInputs() {
+        return !inputs.isEmpty();
+    }
+
+    public List<File> getInputs() {
+        return Collections.unmodifiableList(inputs);
+    }
+
+    public boolean isRecursive() {
+        return recursive;
+    }
+
+    public String getGlob() {
+        return glob;
+    }
+
+    public File getOutput() {
+        return output;
+    }
+
+    public Layout getLayout() {
+        if (layout != null) {
+            return layout;
+        }
+        return recursive ? Layout.MIRROR : Layout.FLAT;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getFontSize() {
+        return fontSize;
+    }
+
+    public Color getColor() {
+        return color;
+    }
+
+    public String getPosition() {
+        return position;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public boolean isLosslessJpeg() {
+        return losslessJpeg;
+    }
+
+    public ImageCodec.EncodeSettings getEncodeSettings() {
+        return encodeSettings;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public boolean isWatch() {
+        return watch;
+    }
+
+    public int getPollIntervalSeconds() {
+        return pollIntervalSeconds;
+    }
+
+    public int getSettleSeconds() {
+        return settleSeconds;
+    }
+
+    public boolean isHelp() {
+        return help;
+    }
+}
\ No newline at end of file
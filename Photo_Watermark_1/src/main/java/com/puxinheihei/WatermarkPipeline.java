@@ -0,0 +1,325 @@
+package com.puxinheihei;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多阶段并行水印流水线
+ *
+ * 解码（EXIF + 图片解码）、渲染（绘制水印）、编码（写出图片）三个阶段
+ * 各自运行在固定大小的线程池上，阶段之间通过有界队列衔接。
+ * 下游处理不过来时上游会阻塞，因此同时驻留在内存中的图片数量是有上限的。
+ */
+public class WatermarkPipeline {
+
+    // 队列结束标记
+    private static final Job POISON = new Job(null, null, null);
+
+    private final int fontSize;
+    private final Color color;
+    private final String position;
+    private final PixelBudget pixelBudget;
+    private final boolean losslessJpeg;
+    private final ImageCodec.EncodeSettings encodeSettings;
+
+    private final int decodeThreads;
+    private final int renderThreads;
+    private final int encodeThreads;
+
+    private final BlockingQueue<Job> decodeQueue;
+    private final BlockingQueue<Job> renderQueue;
+    private final BlockingQueue<Job> encodeQueue;
+
+    private final ExecutorService decodePool;
+    private final ExecutorService renderPool;
+    private final ExecutorService encodePool;
+
+    private final AtomicInteger decodeRemaining;
+    private final AtomicInteger renderRemaining;
+    private final AtomicInteger encodeRemaining;
+
+    private final AtomicInteger processedCount = new AtomicInteger();
+    // 已提交和已结束（成功或失败）的任务数，用于等待当前已提交的任务全部结束
+    private final Object idleLock = new Object();
+    private long submittedJobs;
+    private long finishedJobs;
+
+    // 渲染阶段取出的画布在编码阶段写完后归还，空闲画布计入内存预算
+    private final RasterPool rasterPool;
+
+    public WatermarkPipeline(int threads, int fontSize, Color color, String position,
+                             PixelBudget pixelBudget, boolean losslessJpeg,
+                             ImageCodec.EncodeSettings encodeSettings) {
+        this.fontSize = fontSize;
+        this.color = color;
+        this.position = position;
+        this.pixelBudget = pixelBudget;
+        this.losslessJpeg = losslessJpeg;
+        this.encodeSettings = encodeSettings;
+
+        // 解码和编码是主要的CPU/IO开销，渲染只是画一行字，分配较少的线程
+        this.decodeThreads = Math.max(1, threads);
+        this.renderThreads = Math.max(1, threads / 2);
+        this.encodeThreads = Math.max(1, threads);
+
+        // 队列容量限制了排队中的已解码图片数量
+        int capacity = Math.max(2, threads * 2);
+        this.decodeQueue = new ArrayBlockingQueue<>(capacity);
+        this.renderQueue = new ArrayBlockingQueue<>(capacity);
+        this.encodeQueue = new ArrayBlockingQueue<>(capacity);
+
+        this.decodePool = Executors.newFixedThreadPool(decodeThreads, namedThreadFactory("watermark-decode"));
+        this.renderPool = Executors.newFixedThreadPool(renderThreads, namedThreadFactory("watermark-render"));
+        this.encodePool = Executors.newFixedThreadPool(encodeThreads, namedThreadFactory("watermark-encode"));
+
+        this.rasterPool = new RasterPool(BufferedImage.TYPE_INT_RGB, encodeThreads, pixelBudget);
+
+        this.decodeRemaining = new AtomicInteger(decodeThreads);
+        this.renderRemaining = new AtomicInteger(renderThreads);
+        this.encodeRemaining = new AtomicInteger(encodeThreads);
+    }
+
+    /**
+     * 启动各阶段的工作线程
+     */
+    public void start() {
+        for (int i = 0; i < decodeThreads; i++) {
+            decodePool.execute(() -> runStage(decodeQueue, this::decode, renderQueue, decodeRemaining, renderThreads));
+        }
+        for (int i = 0; i < renderThreads; i++) {
+            renderPool.execute(() -> runStage(renderQueue, this::render, encodeQueue, renderRemaining, encodeThreads));
+        }
+        for (int i = 0; i < encodeThreads; i++) {
+            encodePool.execute(() -> runStage(encodeQueue, this::encode, null, encodeRemaining, 0));
+        }
+    }
+
+    /**
+     * 提交一张图片，队列已满时阻塞
+     */
+    public void submit(File imageFile, File outputDir) throws InterruptedException {
+        submit(imageFile, outputDir, null);
+    }
+
+    /**
+     * 提交一张图片，队列已满时阻塞
+     *
+     * @param manifest 处理成功后要更新的清单，可以为 null
+     */
+    public void submit(File imageFile, File outputDir, WatermarkManifest manifest)
+            throws InterruptedException {
+        synchronized (idleLock) {
+            submittedJobs++;
+        }
+        try {
+            decodeQueue.put(new Job(imageFile, outputDir, manifest));
+        } catch (InterruptedException e) {
+            jobFinished();
+            throw e;
+        }
+    }
+
+    /**
+     * 等待已提交的图片全部处理完（成功或失败），工作线程继续运行，之后可以继续提交
+     *
+     * @return 到目前为止成功处理的图片数量
+     */
+    public int awaitIdle() throws InterruptedException {
+        synchronized (idleLock) {
+            while (finishedJobs < submittedJobs) {
+                idleLock.wait();
+            }
+        }
+        return processedCount.get();
+    }
+
+    /**
+     * 通知没有更多输入，并等待所有图片处理完成
+     *
+     * @return 成功处理的图片数量
+     */
+    public int awaitCompletion() throws InterruptedException {
+        for (int i = 0; i < decodeThreads; i++) {
+            decodeQueue.put(POISON);
+        }
+        decodePool.shutdown();
+        renderPool.shutdown();
+        encodePool.shutdown();
+        decodePool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        renderPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        encodePool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        rasterPool.clear();
+        return processedCount.get();
+    }
+
+    /**
+     * 立即停止所有阶段
+     */
+    public void shutdownNow() {
+        decodePool.shutdownNow();
+        renderPool.shutdownNow();
+        encodePool.shutdownNow();
+    }
+
+    public int getProcessedCount() {
+        return processedCount.get();
+    }
+
+    /**
+     * 单个阶段的工作循环：从输入队列取任务，处理后放入下游队列。
+     * 本阶段最后一个线程退出时（包括因错误退出），向下游发送结束标记。
+     */
+    private void runStage(BlockingQueue<Job> input, StageTask task, BlockingQueue<Job> output,
+                          AtomicInteger remaining, int downstreamThreads) {
+        try {
+            while (true) {
+                Job job = input.take();
+                if (job == POISON) {
+                    break;
+                }
+
+                boolean passedOn = false;
+                try {
+                    Job next = null;
+                    try {
+                        next = task.process(job);
+                    } catch (Exception | OutOfMemoryError e) {
+                        // 内存不足只影响这一张图片，任务结束后内存即可回收
+                        System.out.println("处理文件 " + job.imageFile.getName() + " 时出错: " + e);
+                        e.printStackTrace();
+                    }
+                    if (next != null && output != null) {
+                        output.put(next);
+                        passedOn = true;
+                    }
+                } finally {
+                    if (!passedOn) {
+                        // 任务结束（完成或失败），归还内存预算
+                        pixelBudget.release(job.reservation);
+                        job.reservation = 0;
+                        job.image = null;
+                        jobFinished();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (remaining.decrementAndGet() == 0 && output != null) {
+                try {
+                    for (int i = 0; i < downstreamThreads; i++) {
+                        output.put(POISON);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * 解码阶段：预留内存预算，读取EXIF时间和原始图片。
+     * JPEG 局部重编码成功时直接在本阶段完成，不再进入后续阶段。
+     */
+    private Job decode(Job job) throws Exception {
+        job.reservation = pixelBudget.acquire(job.imageFile);
+        if (job.manifest != null) {
+            job.source = WatermarkManifest.captureSource(job.imageFile);
+        }
+        job.watermarkText = ImageWatermark.resolveWatermarkText(job.imageFile);
+        if (losslessJpeg && ImageWatermark.tryStampJpeg(job.imageFile, job.outputDir,
+                job.watermarkText, fontSize, color, position)) {
+            completed(job);
+            return null;
+        }
+        job.image = ImageCodec.read(job.imageFile);
+        if (job.image == null) {
+            System.out.println("无法读取图片: " + job.imageFile.getName());
+            return null;
+        }
+        return job;
+    }
+
+    /**
+     * 渲染阶段：绘制水印
+     */
+    private Job render(Job job) {
+        job.image = ImageWatermark.renderWatermark(job.image, job.watermarkText, fontSize, color, position,
+                rasterPool);
+        return job;
+    }
+
+    /**
+     * 编码阶段：写出图片文件
+     */
+    private Job encode(Job job) throws Exception {
+        try {
+            ImageWatermark.writeWatermarkedImage(job.image, job.imageFile, job.outputDir, encodeSettings);
+        } finally {
+            // 先归还这张图片的预算，画布放回池中时再按空闲缓冲区预留
+            pixelBudget.release(job.reservation);
+            job.reservation = 0;
+            rasterPool.release(job.image);
+            job.image = null;
+        }
+        completed(job);
+        return null;
+    }
+
+    private void jobFinished() {
+        synchronized (idleLock) {
+            finishedJobs++;
+            idleLock.notifyAll();
+        }
+    }
+
+    private void completed(Job job) {
+        processedCount.incrementAndGet();
+        if (job.manifest != null) {
+            job.manifest.recordProcessed(job.imageFile, ImageWatermark.getOutputFile(job.imageFile, job.outputDir),
+                    job.source);
+        }
+    }
+
+    private static ThreadFactory namedThreadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @FunctionalInterface
+    private interface StageTask {
+        Job process(Job job) throws Exception;
+    }
+
+    /**
+     * 流水线中流转的单张图片任务
+     */
+    private static class Job {
+        private final File imageFile;
+        private final File outputDir;
+        private final WatermarkManifest manifest;
+        // 解码前读取的源文件状态，没有清单时为 null
+        private WatermarkManifest.SourceState source;
+        private String watermarkText;
+        private BufferedImage image;
+        private int reservation;
+
+        private Job(File imageFile, File outputDir, WatermarkManifest manifest) {
+            this.imageFile = imageFile;
+            this.outputDir = outputDir;
+            this.manifest = manifest;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,122 @@
+package com.puxinheihei;
+
+import java.awt.*;
+import java.io.File;
+
+/**
+ * 图片处理调度
+ *
+ * 单线程时在调用线程上逐张处理；多线程时交给 {@link WatermarkPipeline}，队列已满时 submit 阻塞。
+ * 调用方可以边发现文件边提交，不需要先收集完整的文件列表。
+ * 提交时按处理清单跳过没有变化的文件，处理成功后更新清单。
+ */
+public class WatermarkRunner {
+
+    private final int fontSize;
+    private final Color color;
+    private final String position;
+    private final boolean losslessJpeg;
+    private final ImageCodec.EncodeSettings encodeSettings;
+    private final boolean incremental;
+
+    // 单线程模式下为 null
+    private final WatermarkPipeline pipeline;
+
+    private int serialProcessedCount;
+    private int submittedCount;
+    private int skippedCount;
+
+    public WatermarkRunner(int threads, int fontSize, Color color, String position, PixelBudget pixelBudget,
+                           boolean losslessJpeg, ImageCodec.EncodeSettings encodeSettings, boolean incremental) {
+        this.fontSize = fontSize;
+        this.color = color;
+        this.position = position;
+        this.losslessJpeg = losslessJpeg;
+        this.encodeSettings = encodeSettings;
+        this.incremental = incremental;
+
+        if (threads > 1) {
+            System.out.println("使用流水线模式处理，线程数: " + threads
+                    + "，内存预算: " + pixelBudget.getCapacityBytes() / (1024 * 1024) + " MB");
+            pipeline = new WatermarkPipeline(threads, fontSize, color, position, pixelBudget, losslessJpeg,
+                    encodeSettings);
+            pipeline.start();
+        } else {
+            pipeline = null;
+        }
+    }
+
+    /**
+     * 提交一张图片
+     *
+     * @param manifest 输出目录的处理清单，可以为 null
+     */
+    public void submit(File imageFile, File outputDir, WatermarkManifest manifest) throws InterruptedException {
+        File outputFile = ImageWatermark.getOutputFile(imageFile, outputDir);
+        if (incremental && manifest != null && !manifest.needsProcessing(imageFile, outputFile)) {
+            skippedCount++;
+            return;
+        }
+        submittedCount++;
+
+        if (pipeline != null) {
+            pipeline.submit(imageFile, outputDir, manifest);
+            return;
+        }
+
+        try {
+            // 读取图片之前记下源文件状态，处理成功后写入清单
+            WatermarkManifest.SourceState source = manifest != null ? WatermarkManifest.captureSource(imageFile) : null;
+
+            // 获取水印文本（拍摄时间）
+            String dateTime = ImageWatermark.resolveWatermarkText(imageFile);
+
+            // 添加水印并保存
+            if (ImageWatermark.addWatermarkToImage(imageFile, outputDir, dateTime, fontSize, color, position,
+                    losslessJpeg, encodeSettings)) {
+                serialProcessedCount++;
+                if (manifest != null) {
+                    manifest.recordProcessed(imageFile, outputFile, source);
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("处理文件 " + imageFile.getName() + " 时出错: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 等待所有已提交的图片处理完成
+     *
+     * @return 成功处理的图片数量
+     */
+    public int finish() throws InterruptedException {
+        return pipeline != null ? pipeline.awaitCompletion() : serialProcessedCount;
+    }
+
+    /**
+     * 等待已提交的图片处理完成，之后可以继续提交（长时间运行时每批调用）
+     *
+     * @return 到目前为止成功处理的图片数量
+     */
+    public int awaitIdle() throws InterruptedException {
+        return pipeline != null ? pipeline.awaitIdle() : serialProcessedCount;
+    }
+
+    /**
+     * 立即停止处理
+     */
+    public void shutdownNow() {
+        if (pipeline != null) {
+            pipeline.shutdownNow();
+        }
+    }
+
+    public int getSubmittedCount() {
+        return submittedCount;
+    }
+
+    public int getSkippedCount() {
+        return skippedCount;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,90 @@
+package com.puxinheihei;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * EXIF 日期读取基准测试
+ *
+ * 对指定目录中的所有图片分别使用 metadata-extractor 完整解析和 {@link ExifDateReader} 快速路径读取日期，
+ * 比较每个文件的平均耗时，并检查两种方式的结果是否一致。
+ *
+ * 用法：java -cp ... com.puxinheihei.ExifDateBenchmark &lt;图片目录&gt; [轮数]
+ */
+public class ExifDateBenchmark {
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("用法: ExifDateBenchmark <图片目录> [轮数]");
+            return;
+        }
+        File directory = new File(args[0]);
+        int rounds = args.length > 1 ? Math.max(1, Integer.parseInt(args[1])) : 3;
+
+        File[] listed = directory.listFiles();
+        List<File> files = new ArrayList<>();
+        if (listed != null) {
+            for (File file : listed) {
+                if (ImageWatermark.isImageFile(file)) {
+                    files.add(file);
+                }
+            }
+        }
+        if (files.isEmpty()) {
+            System.out.println("目录中没有图片文件: " + directory.getAbsolutePath());
+            return;
+        }
+        System.out.println("图片数量: " + files.size() + "，轮数: " + rounds);
+
+        // 先完整跑一遍两种方式，预热 JIT 和文件缓存，同时检查结果
+        int mismatches = 0;
+        int fallbacks = 0;
+        int withDate = 0;
+        for (File file : files) {
+            String expected = ExifDateReader.readWithMetadataExtractor(file);
+            String actual;
+            try {
+                actual = ExifDateReader.readFast(file);
+            } catch (Exception e) {
+                fallbacks++;
+                actual = ExifDateReader.readDate(file);
+            }
+            if (actual != null) {
+                withDate++;
+            }
+            if (!Objects.equals(expected, actual)) {
+                mismatches++;
+                System.out.println("结果不一致: " + file.getName() + " metadata-extractor=" + expected
+                        + " 快速路径=" + actual);
+            }
+        }
+        System.out.println("有EXIF日期: " + withDate + "，回退到 metadata-extractor: " + fallbacks
+                + "，结果不一致: " + mismatches);
+
+        long extractorNanos = 0;
+        long fastNanos = 0;
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (File file : files) {
+                ExifDateReader.readWithMetadataExtractor(file);
+            }
+            long middle = System.nanoTime();
+            for (File file : files) {
+                ExifDateReader.readDate(file);
+            }
+            long end = System.nanoTime();
+
+            extractorNanos += middle - start;
+            fastNanos += end - middle;
+            System.out.printf("第 %d 轮: metadata-extractor %.1f μs/文件, 快速路径 %.1f μs/文件%n", round + 1,
+                    (middle - start) / 1000.0 / files.size(), (end - middle) / 1000.0 / files.size());
+        }
+
+        double extractorAverage = extractorNanos / 1000.0 / files.size() / rounds;
+        double fastAverage = fastNanos / 1000.0 / files.size() / rounds;
+        System.out.printf("平均: metadata-extractor %.1f μs/文件, 快速路径 %.1f μs/文件, 加速 %.1f 倍%n",
+                extractorAverage, fastAverage, extractorAverage / fastAverage);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,211 @@
+package com.puxinheihei;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.NodeList;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JpegRegionStamperTest {
+
+    private static final String TEXT = "2024-05-01";
+    private static final int FONT_SIZE = 28;
+    private static final String POSITION = "bottom-right";
+    private static final String JPEG_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+    // 宽高都不是 MCU 的整数倍，覆盖右侧和底部不完整的 MCU
+    private static final int WIDTH = 250;
+    private static final int HEIGHT = 170;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void stampsBaseline420() throws IOException {
+        roundTrip(true, 0);
+    }
+
+    @Test
+    void stampsBaseline444() throws IOException {
+        roundTrip(false, 0);
+    }
+
+    @Test
+    void stampsWithRestartInterval420() throws IOException {
+        roundTrip(true, 5);
+    }
+
+    @Test
+    void stampsWithRestartInterval444() throws IOException {
+        roundTrip(false, 7);
+    }
+
+    @Test
+    void rejectsProgressive() throws IOException {
+        File input = dir.resolve("progressive.jpg").toFile();
+        File output = dir.resolve("out.jpg").toFile();
+        writeJpeg(sourceImage(), input, true, 0, true);
+
+        assertFalse(JpegRegionStamper.stamp(input, output, TEXT, FONT_SIZE, Color.WHITE, POSITION));
+        assertFalse(output.exists());
+    }
+
+    /**
+     * 加水印后输出能正常解码，水印区域以外的像素与原图完全相同，区域内确实画上了文字；
+     * 有 RST 标记时，水印区域之前的 RST 区间按字节原样复制
+     */
+    private void roundTrip(boolean subsample, int restartInterval) throws IOException {
+        File input = dir.resolve("input.jpg").toFile();
+        File output = dir.resolve("output.jpg").toFile();
+        writeJpeg(sourceImage(), input, subsample, restartInterval, false);
+
+        assertTrue(JpegRegionStamper.stamp(input, output, TEXT, FONT_SIZE, Color.WHITE, POSITION));
+
+        BufferedImage original = ImageIO.read(input);
+        BufferedImage stamped = ImageIO.read(output);
+        assertNotNull(stamped, "输出无法解码");
+        assertEquals(WIDTH, stamped.getWidth());
+        assertEquals(HEIGHT, stamped.getHeight());
+
+        int mcuSize = subsample ? 16 : 8;
+        Rectangle bounds = ImageWatermark.getWatermarkBounds(TEXT, FONT_SIZE, Color.WHITE, POSITION, WIDTH, HEIGHT)
+                .intersection(new Rectangle(0, 0, WIDTH, HEIGHT));
+        int mcuX0 = bounds.x / mcuSize;
+        int mcuY0 = bounds.y / mcuSize;
+        int mcuX1 = (bounds.x + bounds.width - 1) / mcuSize;
+        int mcuY1 = (bounds.y + bounds.height - 1) / mcuSize;
+        // 解码器对色度做平滑上采样时会用到相邻 MCU，比较时再向外留出一个 MCU
+        Rectangle touched = new Rectangle((mcuX0 - 1) * mcuSize, (mcuY0 - 1) * mcuSize,
+                (mcuX1 - mcuX0 + 3) * mcuSize, (mcuY1 - mcuY0 + 3) * mcuSize);
+
+        int changedInside = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                boolean same = original.getRGB(x, y) == stamped.getRGB(x, y);
+                if (touched.contains(x, y)) {
+                    changedInside += same ? 0 : 1;
+                } else if (!same) {
+                    fail("水印区域以外的像素 (" + x + ", " + y + ") 发生了变化");
+                }
+            }
+        }
+        assertTrue(changedInside > 0, "没有画上水印");
+
+        if (restartInterval > 0) {
+            byte[] before = Files.readAllBytes(input.toPath());
+            byte[] after = Files.readAllBytes(output.toPath());
+            int mcusX = (WIDTH + mcuSize - 1) / mcuSize;
+            int untouchedIntervals = (mcuY0 * mcusX + mcuX0) / restartInterval;
+            assertTrue(untouchedIntervals > 0);
+
+            int scanBefore = scanStart(before);
+            int scanAfter = scanStart(after);
+            int prefix = restartMarkerEnd(before, scanBefore, untouchedIntervals) - scanBefore;
+            for (int i = 0; i < prefix; i++) {
+                assertEquals(before[scanBefore + i], after[scanAfter + i], "扫描数据第 " + i + " 个字节不同");
+            }
+        }
+    }
+
+    /**
+     * 渐变加噪声，让各个 MCU 的系数互不相同
+     */
+    private static BufferedImage sourceImage() {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int r = Math.min(255, x + random.nextInt(24));
+                int g = Math.min(255, y + random.nextInt(24));
+                int b = Math.min(255, (x + y) / 2 + random.nextInt(24));
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    private static void writeJpeg(BufferedImage image, File file, boolean subsample, int restartInterval,
+                                  boolean progressive) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(0.9f);
+            if (progressive) {
+                param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            }
+
+            IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+            IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(JPEG_FORMAT);
+            if (!subsample) {
+                NodeList components = root.getElementsByTagName("componentSpec");
+                for (int i = 0; i < components.getLength(); i++) {
+                    IIOMetadataNode component = (IIOMetadataNode) components.item(i);
+                    component.setAttribute("HsamplingFactor", "1");
+                    component.setAttribute("VsamplingFactor", "1");
+                }
+            }
+            if (restartInterval > 0) {
+                IIOMetadataNode markers = (IIOMetadataNode) root.getElementsByTagName("markerSequence").item(0);
+                IIOMetadataNode dri = new IIOMetadataNode("dri");
+                dri.setAttribute("interval", Integer.toString(restartInterval));
+                markers.insertBefore(dri, markers.getFirstChild());
+            }
+            metadata.setFromTree(JPEG_FORMAT, root);
+
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, metadata), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * 扫描数据的起始位置（SOS 段之后）
+     */
+    private static int scanStart(byte[] data) {
+        int pos = 2;
+        while (pos + 4 <= data.length) {
+            int marker = data[pos + 1] & 0xFF;
+            int length = ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+            if (marker == 0xDA) {
+                return pos + 2 + length;
+            }
+            pos += 2 + length;
+        }
+        throw new AssertionError("没有找到 SOS");
+    }
+
+    /**
+     * 第 count 个 RST 标记之后的位置
+     */
+    private static int restartMarkerEnd(byte[] data, int scanStart, int count) {
+        int seen = 0;
+        for (int pos = scanStart; pos + 1 < data.length; pos++) {
+            int next = data[pos + 1] & 0xFF;
+            if ((data[pos] & 0xFF) == 0xFF && next >= 0xD0 && next <= 0xD7) {
+                seen++;
+                if (seen == count) {
+                    return pos + 2;
+                }
+            }
+        }
+        throw new AssertionError("RST 标记不足 " + count + " 个");
+    }
+}
@@ -0,0 +1,113 @@
+package com.puxinheihei;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WatchFolderDaemonTest {
+
+    private static final long TIMEOUT_MILLIS = 20_000;
+
+    @TempDir
+    Path dir;
+
+    /**
+     * 子目录中还有等待写入完成的文件时退出，重启后这个子目录仍要被扫描到
+     */
+    @Test
+    void findsPendingSubdirectoryAfterRestart() throws Exception {
+        Path source = dir.resolve("in");
+        Path output = dir.resolve("out");
+        Path parent = source.resolve("p");
+        Path child = parent.resolve("s");
+        Files.createDirectories(child);
+
+        long old = System.currentTimeMillis() - 120_000;
+        writeJpeg(parent.resolve("done.jpg"));
+        Files.setLastModifiedTime(parent.resolve("done.jpg"), FileTime.fromMillis(old));
+        // 刚修改过，--settle 60 时一直在等待区
+        writeJpeg(child.resolve("pending.jpg"));
+        for (Path directory : new Path[]{child, parent, source}) {
+            Files.setLastModifiedTime(directory, FileTime.fromMillis(old));
+        }
+
+        String[] args = {"-i", source.toString(), "-r", "-o", output.toString(),
+                "--watch", "--settle", "60", "--poll-interval", "1"};
+
+        WatchFolderDaemon first = new WatchFolderDaemon(WatermarkOptions.parse(args));
+        Thread firstThread = start(first);
+        assertNotNull(awaitOutput(output, "done_watermarked.jpg"), "没有处理已写完的文件");
+        // 处理完一批后会更新检查点，再等一次轮询
+        Thread.sleep(1500);
+        first.stop();
+        firstThread.join(TIMEOUT_MILLIS);
+        assertFalse(firstThread.isAlive());
+        assertNull(findOutput(output, "pending_watermarked.jpg"));
+
+        // 重启时文件早已写完
+        Files.setLastModifiedTime(child.resolve("pending.jpg"), FileTime.fromMillis(old));
+        WatchFolderDaemon second = new WatchFolderDaemon(WatermarkOptions.parse(args));
+        Thread secondThread = start(second);
+        try {
+            assertNotNull(awaitOutput(output, "pending_watermarked.jpg"), "重启后没有扫描到子目录");
+        } finally {
+            second.stop();
+            secondThread.join(TIMEOUT_MILLIS);
+        }
+
+        WatchCheckpoint checkpoint = WatchCheckpoint.load(findOutput(output, WatchCheckpoint.FILE_NAME)
+                .getParentFile());
+        assertNotNull(checkpoint.getModified("p/s"));
+        assertTrue(checkpoint.getChildren("p").contains("p/s"));
+    }
+
+    private static Thread start(WatchFolderDaemon daemon) {
+        Thread thread = new Thread(daemon::run, "watch-test");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static File awaitOutput(Path output, String name) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            File file = findOutput(output, name);
+            if (file != null) {
+                return file;
+            }
+            Thread.sleep(100);
+        }
+        return null;
+    }
+
+    private static File findOutput(Path output, String name) throws IOException {
+        if (!Files.isDirectory(output)) {
+            return null;
+        }
+        try (Stream<Path> files = Files.walk(output)) {
+            Optional<Path> found = files.filter(path -> path.getFileName().toString().equals(name)).findFirst();
+            return found.map(Path::toFile).orElse(null);
+        }
+    }
+
+    private static void writeJpeg(Path file) throws IOException {
+        BufferedImage image = new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, (x << 16) | (y << 8) | ((x + y) & 0xFF));
+            }
+        }
+        assertTrue(ImageIO.write(image, "jpg", file.toFile()));
+    }
+}
@@ -2,10 +2,16 @@ package com.puxinheihei.controller;
 
 import com.puxinheihei.entity.ImageFile;
 import com.puxinheihei.entity.WatermarkConfig;
+import com.puxinheihei.service.ImageExporter;
+import com.puxinheihei.service.ImageImporter;
 import com.puxinheihei.service.ImageService;
 import com.puxinheihei.service.WatermarkService;
+import com.puxinheihei.service.PreviewRenderer;
 import com.puxinheihei.service.TemplateService;
+import com.puxinheihei.service.ThumbnailCache;
+import com.puxinheihei.service.ThumbnailLoader;
 import com.puxinheihei.util.ConfigManager;
+import com.puxinheihei.util.ImageCodec;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
@@ -16,6 +22,8 @@ import javafx.scene.control.*;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.Region;
+import javafx.scene.layout.StackPane;
 import javafx.scene.layout.VBox;
 import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
@@ -25,31 +33,55 @@ import lombok.extern.slf4j.Slf4j;
 
 import java.io.File;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.ResourceBundle;
 
 @Slf4j
 public class MainController implements Initializable {
 
+    // 列表单元格高度：缩略图 80，两行文字，间距和边框
+    private static final double IMAGE_CELL_HEIGHT = 132;
+
     // 添加这个字段
     private WatermarkController watermarkController;
 
     @FXML private BorderPane previewPane;
     @FXML private Label previewPlaceholder;
-    @FXML private VBox imageListContainer;
+    @FXML private ListView<ImageFile> imageListView;
     @FXML private Label imageCountLabel;
     @FXML private Label statusLabel;
     @FXML private ComboBox<String> outputFormatComboBox;
+    @FXML private Spinner<Integer> jpegQualitySpinner;
+    @FXML private CheckBox progressiveCheckBox;
     @FXML private TextField prefixField;
     @FXML private TextField suffixField;
+    @FXML private ProgressBar importProgressBar;
+    @FXML private Button cancelImportButton;
+    @FXML private ProgressBar exportProgressBar;
+    @FXML private Button pauseExportButton;
+    @FXML private Button cancelExportButton;
+    @FXML private Label thumbnailMemoryLabel;
 
     private ImageService imageService;
     private WatermarkService watermarkService;
     private TemplateService templateService;
+    private PreviewRenderer previewRenderer;
+    private ImageImporter imageImporter;
+    private ThumbnailCache thumbnailCache;
+    private ThumbnailLoader thumbnailLoader;
+    // 正在进行的导入，没有时为 null
+    private ImageImporter.Task importTask;
+    private ImageExporter imageExporter;
+    // 正在进行的导出，没有时为 null
+    private ImageExporter.Job exportJob;
 
     private WatermarkConfig currentConfig;
     private ImageFile selectedImage;
     private ImageView previewImageView;
+    // 拖动时叠加在预览图上的水印，松开鼠标后才重新合成整张预览图
+    private ImageView overlayView;
+    private StackPane previewStack;
 
     @Override
     public void initialize(URL location, ResourceBundle resources) {
@@ -58,6 +90,22 @@ public class MainController implements Initializable {
             imageService = new ImageService();
             watermarkService = new WatermarkService();
             templateService = new TemplateService();
+            previewRenderer = new PreviewRenderer(watermarkService);
+            imageImporter = new ImageImporter(imageService);
+            imageExporter = new ImageExporter(watermarkService, ImageExporter.defaultThreads());
+            thumbnailCache = new ThumbnailCache(ThumbnailCache.defaultBudgetBytes());
+            thumbnailLoader = new ThumbnailLoader(imageService, thumbnailCache);
+            thumbnailCache.residentBytesProperty().addListener((obs, oldBytes, newBytes) -> updateThumbnailMemory());
+            updateThumbnailMemory();
+
+            // 图片列表只为可见的行创建单元格，滚动时复用
+            imageListView.setCellFactory(listView -> new ImageListCell());
+            imageListView.setFixedCellSize(IMAGE_CELL_HEIGHT);
+            imageListView.getSelectionModel().selectedItemProperty().addListener((obs, oldImage, newImage) -> {
+                if (newImage != null) {
+                    selectImage(newImage);
+                }
+            });
 
             // 暂时注释配置加载
             // currentConfig = ConfigManager.loadLastConfig();
@@ -69,10 +117,26 @@ public class MainController implements Initializable {
             previewImageView.setSmooth(true);
             previewImageView.setCache(true);
 
+            overlayView = new ImageView();
+            overlayView.setSmooth(true);
+            overlayView.setManaged(false);
+            overlayView.setMouseTransparent(true);
+            overlayView.setVisible(false);
+
+            // 叠加节点自行定位，容器大小始终等于预览图，在预览区域中居中
+            previewStack = new StackPane(previewImageView, overlayView);
+            previewStack.setAlignment(javafx.geometry.Pos.TOP_LEFT);
+            previewStack.setMaxSize(Region.USE_PREF_SIZE, Region.USE_PREF_SIZE);
+
             // 初始化输出格式
             outputFormatComboBox.getItems().addAll("JPEG", "PNG");
             outputFormatComboBox.setValue("JPEG");
 
+            // JPEG 编码参数：质量越高文件越大，渐进式文件更小但编码更慢
+            jpegQualitySpinner.setValueFactory(new SpinnerValueFactory.IntegerSpinnerValueFactory(1, 100, 75));
+            jpegQualitySpinner.disableProperty().bind(outputFormatComboBox.valueProperty().isNotEqualTo("JPEG"));
+            progressiveCheckBox.disableProperty().bind(outputFormatComboBox.valueProperty().isNotEqualTo("JPEG"));
+
             // 初始化前缀后缀
             prefixField.setText("wm_");
             suffixField.setText("_watermarked");
@@ -101,9 +165,7 @@ public class MainController implements Initializable {
 
             List<File> files = fileChooser.showOpenMultipleDialog(getStage());
             if (files != null && !files.isEmpty()) {
-                imageService.addImageFiles(files);
-                refreshImageList();
-                updateStatus("成功导入 " + files.size() + " 张图片");
+                startImport(files);
             }
         } catch (Exception e) {
             log.error("导入图片失败", e);
@@ -119,14 +181,8 @@ public class MainController implements Initializable {
 
             File folder = directoryChooser.showDialog(getStage());
             if (folder != null && folder.isDirectory()) {
-                List<File> imageFiles = imageService.scanImageFilesFromFolder(folder);
-                if (!imageFiles.isEmpty()) {
-                    imageService.addImageFiles(imageFiles);
-                    refreshImageList();
-                    updateStatus("成功从文件夹导入 " + imageFiles.size() + " 张图片");
-                } else {
-                    showWarning("所选文件夹中没有找到支持的图片文件");
-                }
+                // 扫描也在后台进行
+                startImport(List.of(folder));
             }
         } catch (Exception e) {
             log.error("导入文件夹失败", e);
@@ -134,6 +190,68 @@ public class MainController implements Initializable {
         }
     }
 
+    @FXML
+    private void handleCancelImport() {
+        if (importTask != null) {
+            importTask.cancel();
+            updateStatus("正在取消导入...");
+        }
+    }
+
+    /**
+     * 在后台导入图片，导入过程中列表逐步增加
+     */
+    private void startImport(List<File> sources) {
+        if (importTask != null) {
+            showWarning("正在导入图片，请等待完成或先取消");
+            return;
+        }
+
+        importProgressBar.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
+        setImportControlsVisible(true);
+        updateStatus("正在导入...");
+
+        ImageImporter.Task[] task = new ImageImporter.Task[1];
+        task[0] = imageImporter.start(sources, new ImageImporter.Listener() {
+            @Override
+            public void onBatch(List<ImageFile> imageFiles) {
+                // 清空列表后到达的结果不再显示
+                if (importTask != task[0]) return;
+                imageListView.getItems().addAll(imageFiles);
+                updateImageCount();
+            }
+
+            @Override
+            public void onProgress(int processed, int discovered) {
+                if (importTask != task[0]) return;
+                if (discovered > 0) {
+                    importProgressBar.setProgress((double) processed / discovered);
+                }
+                updateStatus("正在导入 " + processed + "/" + discovered + " ...");
+            }
+
+            @Override
+            public void onFinished(int added, int failed, boolean cancelled) {
+                if (importTask != task[0]) return;
+                importTask = null;
+                setImportControlsVisible(false);
+                if (added == 0 && failed == 0 && !cancelled) {
+                    showWarning("没有找到新的图片文件");
+                }
+                updateStatus((cancelled ? "导入已取消，" : "") + "成功导入 " + added + " 张图片"
+                        + (failed > 0 ? "，" + failed + " 张无法读取" : ""));
+            }
+        });
+        importTask = task[0];
+    }
+
+    private void setImportControlsVisible(boolean visible) {
+        importProgressBar.setVisible(visible);
+        importProgressBar.setManaged(visible);
+        cancelImportButton.setVisible(visible);
+        cancelImportButton.setManaged(visible);
+    }
+
     @FXML
     private void handleExportImages() {
         if (imageService.getImageFiles().isEmpty()) {
@@ -141,6 +259,11 @@ public class MainController implements Initializable {
             return;
         }
 
+        if (exportJob != null) {
+            showWarning("正在导出图片，请等待完成或先取消");
+            return;
+        }
+
         try {
             DirectoryChooser directoryChooser = new DirectoryChooser();
             directoryChooser.setTitle("选择输出文件夹");
@@ -155,27 +278,11 @@ public class MainController implements Initializable {
                 String outputFormat = outputFormatComboBox.getValue();
                 String prefix = prefixField.getText();
                 String suffix = suffixField.getText();
+                watermarkService.setEncodeSettings(new ImageCodec.EncodeSettings(
+                        jpegQualitySpinner.getValue() / 100f, progressiveCheckBox.isSelected(),
+                        ImageCodec.ChromaSubsampling.YUV420));
 
-                int successCount = 0;
-                List<ImageFile> imageFiles = imageService.getImageFiles();
-
-                // 批量导出，每张图片使用自己的水印配置
-                for (ImageFile imageFile : imageFiles) {
-                    boolean success = watermarkService.exportSingleImage(
-                            imageFile,
-                            outputDir,
-                            imageFile.getWatermarkConfig(), // 使用图片自己的配置
-                            outputFormat,
-                            prefix,
-                            suffix
-                    );
-                    if (success) {
-                        successCount++;
-                    }
-                }
-
-                updateStatus("成功导出 " + successCount + " 张图片到 " + outputDir.getAbsolutePath());
-                showInfo("导出完成", "成功导出 " + successCount + " 张图片");
+                startExport(imageService.getImageFiles(), outputDir, outputFormat, prefix, suffix);
             }
         } catch (Exception e) {
             log.error("导出图片失败", e);
@@ -183,6 +290,121 @@ public class MainController implements Initializable {
         }
     }
 
+    /**
+     * 在后台导出，每张图片使用自己的水印配置（开始时复制），状态栏显示进度
+     */
+    private void startExport(List<ImageFile> imageFiles, File outputDir, String outputFormat,
+                             String prefix, String suffix) {
+        List<ImageExporter.Result> failures = new ArrayList<>();
+        exportProgressBar.setProgress(0);
+        pauseExportButton.setText("暂停");
+        setExportControlsVisible(true);
+        updateStatus("正在导出 " + imageFiles.size() + " 张图片...");
+
+        exportJob = imageExporter.start(imageFiles, outputDir, outputFormat, prefix, suffix,
+                new ImageExporter.Listener() {
+                    @Override
+                    public void onResults(List<ImageExporter.Result> results) {
+                        for (ImageExporter.Result result : results) {
+                            if (!result.isSuccess()) {
+                                failures.add(result);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onProgress(ImageExporter.Progress progress) {
+                        exportProgressBar.setProgress(progress.getFraction());
+                        updateStatus(formatExportProgress(progress));
+                    }
+
+                    @Override
+                    public void onFinished(ImageExporter.Progress progress, boolean cancelled) {
+                        exportJob = null;
+                        setExportControlsVisible(false);
+                        String summary = (cancelled ? "导出已取消，" : "") + "成功导出 " + progress.getSucceeded()
+                                + " 张图片" + (progress.getFailed() > 0 ? "，失败 " + progress.getFailed() + " 张" : "")
+                                + (progress.getSkipped() > 0 ? "，跳过已导出的 " + progress.getSkipped() + " 张" : "");
+                        updateStatus(summary + " 到 " + outputDir.getAbsolutePath());
+                        if (failures.isEmpty()) {
+                            showInfo("导出完成", summary);
+                        } else {
+                            showError(summary + "\n" + formatExportFailures(failures));
+                        }
+                    }
+                });
+    }
+
+    private static String formatExportProgress(ImageExporter.Progress progress) {
+        StringBuilder text = new StringBuilder(progress.isPaused() ? "导出已暂停 " : "正在导出 ")
+                .append(progress.getProcessed()).append('/').append(progress.getTotal());
+        if (progress.getFailed() > 0) {
+            text.append("（失败 ").append(progress.getFailed()).append("）");
+        }
+        if (progress.getSkipped() > 0) {
+            text.append("，跳过已导出的 ").append(progress.getSkipped()).append(" 张");
+        }
+        if (progress.getImagesPerSecond() > 0) {
+            text.append(String.format("，%.1f 张/秒", progress.getImagesPerSecond()));
+        }
+        if (progress.getRemainingMillis() >= 0 && !progress.isPaused()) {
+            long seconds = (progress.getRemainingMillis() + 999) / 1000;
+            text.append("，剩余约 ").append(seconds >= 60 ? seconds / 60 + " 分 " + seconds % 60 + " 秒" : seconds + " 秒");
+        }
+        return text.toString();
+    }
+
+    /**
+     * 失败的文件和原因，最多列出前几个
+     */
+    private static String formatExportFailures(List<ImageExporter.Result> failures) {
+        int shown = Math.min(5, failures.size());
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < shown; i++) {
+            ImageExporter.Result failure = failures.get(i);
+            text.append("\n").append(failure.getImageFile().getFileName()).append(": ").append(failure.getError());
+        }
+        if (failures.size() > shown) {
+            text.append("\n... 另有 ").append(failures.size() - shown).append(" 张");
+        }
+        return text.toString();
+    }
+
+    @FXML
+    private void handlePauseExport() {
+        if (exportJob == null) {
+            return;
+        }
+        if (exportJob.isPaused()) {
+            exportJob.resume();
+            pauseExportButton.setText("暂停");
+        } else {
+            exportJob.pause();
+            pauseExportButton.setText("继续");
+        }
+    }
+
+    @FXML
+    private void handleCancelExport() {
+        if (exportJob != null) {
+            exportJob.cancel();
+            pauseExportButton.setDisable(true);
+            cancelExportButton.setDisable(true);
+            updateStatus("正在取消导出，等待正在写入的图片完成...");
+        }
+    }
+
+    private void setExportControlsVisible(boolean visible) {
+        exportProgressBar.setVisible(visible);
+        exportProgressBar.setManaged(visible);
+        pauseExportButton.setVisible(visible);
+        pauseExportButton.setManaged(visible);
+        pauseExportButton.setDisable(false);
+        cancelExportButton.setVisible(visible);
+        cancelExportButton.setManaged(visible);
+        cancelExportButton.setDisable(false);
+    }
+
     @FXML
     private void handleExportAll() {
         handleExportImages();
@@ -197,23 +419,20 @@ public class MainController implements Initializable {
             return;
         }
 
-        try {
-            // 应用水印到预览图
-            Image watermarkedImage = watermarkService.applyWatermarkToPreview(selectedImage, currentConfig);
-            if (watermarkedImage != null) {
-                previewImageView.setImage(watermarkedImage);
-                previewPane.setCenter(previewImageView);
-                adjustPreviewSize();
+        // 保存当前配置到图片
+        selectedImage.setWatermarkConfig(currentConfig);
 
-                // 保存当前配置到图片
-                selectedImage.setWatermarkConfig(currentConfig);
-
-                updateStatus("水印应用成功");
+        // 应用水印到预览图（后台渲染）
+        previewRenderer.request(selectedImage, currentConfig, watermarkedImage -> {
+            if (watermarkedImage == null) {
+                showError("应用水印失败");
+                return;
             }
-        } catch (Exception e) {
-            log.error("应用水印失败", e);
-            showError("应用水印失败: " + e.getMessage());
-        }
+            previewImageView.setImage(watermarkedImage);
+            previewPane.setCenter(previewStack);
+            adjustPreviewSize();
+            updateStatus("水印应用成功");
+        });
     }
 
     @FXML
@@ -252,6 +471,14 @@ public class MainController implements Initializable {
 
     @FXML
     private void handleClearList() {
+        // 先停止正在进行的导入，之后到达的结果会被忽略
+        if (importTask != null) {
+            importTask.cancel();
+            importTask = null;
+            setImportControlsVisible(false);
+        }
+        thumbnailLoader.clear();
+        thumbnailCache.clear();
         imageService.clearImageFiles();
         refreshImageList();
         clearPreview();
@@ -327,57 +554,77 @@ public class MainController implements Initializable {
     }
 
     private void refreshImageList() {
-        imageListContainer.getChildren().clear();
-
-        for (ImageFile imageFile : imageService.getImageFiles()) {
-            VBox imageItem = createImageListItem(imageFile);
-            imageListContainer.getChildren().add(imageItem);
-        }
-
+        imageListView.getItems().setAll(imageService.getImageFiles());
         updateImageCount();
     }
 
-    private VBox createImageListItem(ImageFile imageFile) {
-        VBox item = new VBox(5);
-        item.getStyleClass().add("image-item");
-        item.setPrefWidth(280);
+    /**
+     * 图片列表的单元格
+     *
+     * 单元格只按可见行数创建，滚动时绑定到新的图片；缩略图在绑定时从缓存中取，没有时按需加载。
+     * 绑定期间缩略图标记为可见，缓存超出预算时不会丢弃它。
+     */
+    private class ImageListCell extends ListCell<ImageFile> {
+        private final VBox item = new VBox(5);
+        private final ImageView thumbnailView = new ImageView();
+        private final Label fileNameLabel = new Label();
+        private final Label fileInfoLabel = new Label();
+        // 当前绑定的图片，加载线程据此判断请求是否过时
+        private volatile ImageFile boundImage;
 
-        // 缩略图
-        ImageView thumbnailView = new ImageView(imageFile.getThumbnail());
-        thumbnailView.setFitWidth(120);
-        thumbnailView.setFitHeight(80);
-        thumbnailView.setPreserveRatio(true);
+        private ImageListCell() {
+            item.getStyleClass().add("image-item");
 
-        // 文件名
-        Label fileNameLabel = new Label(imageFile.getFileName());
-        fileNameLabel.setStyle("-fx-font-weight: bold;");
+            // 缩略图
+            thumbnailView.setFitWidth(120);
+            thumbnailView.setFitHeight(80);
+            thumbnailView.setPreserveRatio(true);
 
-        // 文件信息
-        Label fileInfoLabel = new Label(
-                String.format("%.1f KB", imageFile.getFileSize() / 1024.0)
-        );
-        fileInfoLabel.setStyle("-fx-text-fill: #666; -fx-font-size: 10px;");
+            // 文件名
+            fileNameLabel.setStyle("-fx-font-weight: bold;");
 
-        item.getChildren().addAll(thumbnailView, fileNameLabel, fileInfoLabel);
+            // 文件信息
+            fileInfoLabel.setStyle("-fx-text-fill: #666; -fx-font-size: 10px;");
+
+            item.getChildren().addAll(thumbnailView, fileNameLabel, fileInfoLabel);
+        }
 
-        // 点击事件
-        item.setOnMouseClicked(event -> {
-            if (event.getClickCount() == 1) {
-                selectImageItem(item, imageFile);
+        @Override
+        protected void updateItem(ImageFile imageFile, boolean empty) {
+            super.updateItem(imageFile, empty);
+            ImageFile previous = boundImage;
+            boundImage = empty ? null : imageFile;
+            if (previous != boundImage) {
+                if (boundImage != null) {
+                    thumbnailCache.retain(boundImage.getFilePath());
+                }
+                if (previous != null) {
+                    thumbnailCache.release(previous.getFilePath());
+                }
+            }
+            if (empty || imageFile == null) {
+                thumbnailView.setImage(null);
+                setGraphic(null);
+                return;
             }
-        });
 
-        return item;
-    }
+            fileNameLabel.setText(imageFile.getFileName());
+            fileInfoLabel.setText(String.format("%.1f KB", imageFile.getFileSize() / 1024.0));
 
-    private void selectImageItem(VBox item, ImageFile imageFile) {
-        // 清除之前的选择
-        for (var child : imageListContainer.getChildren()) {
-            child.getStyleClass().remove("selected");
+            Image thumbnail = thumbnailCache.get(imageFile.getFilePath());
+            thumbnailView.setImage(thumbnail);
+            if (thumbnail == null) {
+                thumbnailLoader.request(imageFile, () -> boundImage == imageFile, loaded -> {
+                    if (getItem() == imageFile) {
+                        thumbnailView.setImage(loaded);
+                    }
+                });
+            }
+            setGraphic(item);
         }
+    }
 
-        // 设置当前选择
-        item.getStyleClass().add("selected");
+    private void selectImage(ImageFile imageFile) {
         selectedImage = imageFile;
 
         // 切换到当前图片的水印配置
@@ -394,39 +641,22 @@ public class MainController implements Initializable {
     }
 
     private void showImagePreview(ImageFile imageFile) {
-        try {
-            // 先清除之前的图片
-            previewImageView.setImage(null);
-
-            // 直接加载图片
-            String imagePath = "file:" + imageFile.getFilePath();
-            System.out.println("加载图片路径: " + imagePath);
-
-            Image originalImage = new Image(imagePath);
-
-            if (originalImage.isError()) {
-                Throwable exception = originalImage.getException();
-                if (exception != null) {
-                    log.error("图片加载错误: {}", exception.getMessage());
-                    showError("图片加载错误: " + exception.getMessage());
-                } else {
-                    log.error("未知图片加载错误");
-                    showError("无法加载图片");
-                }
+        // 先清除之前的图片
+        previewImageView.setImage(null);
+        overlayView.setVisible(false);
+        updateStatus("正在加载预览: " + imageFile.getFileName());
+
+        // 加载和绘制都在后台进行，完成后再显示
+        previewRenderer.request(imageFile, imageFile.getWatermarkConfig(), watermarkedImage -> {
+            if (watermarkedImage == null) {
+                log.error("加载预览图失败: {}", imageFile.getFilePath());
+                showError("加载预览图失败: " + imageFile.getFileName());
                 previewPane.setCenter(previewPlaceholder);
                 return;
             }
 
-            // 应用水印到预览图
-            Image watermarkedImage = watermarkService.applyWatermarkToPreview(imageFile, imageFile.getWatermarkConfig());
-            if (watermarkedImage != null) {
-                previewImageView.setImage(watermarkedImage);
-            } else {
-                // 如果水印应用失败，显示原图
-                previewImageView.setImage(originalImage);
-            }
-
-            previewPane.setCenter(previewImageView);
+            previewImageView.setImage(watermarkedImage);
+            previewPane.setCenter(previewStack);
 
             // 添加鼠标拖拽事件
             setupDragHandling();
@@ -435,12 +665,7 @@ public class MainController implements Initializable {
             adjustPreviewSize();
 
             updateStatus("预览加载完成: " + imageFile.getFileName());
-
-        } catch (Exception e) {
-            log.error("加载预览图失败: {}", imageFile.getFilePath(), e);
-            showError("加载预览图失败: " + imageFile.getFileName());
-            previewPane.setCenter(previewPlaceholder);
-        }
+        });
     }
 
     /**
@@ -460,18 +685,24 @@ public class MainController implements Initializable {
 
                 // 设置鼠标样式为移动
                 previewImageView.setCursor(javafx.scene.Cursor.MOVE);
+
+                // 换成不带水印的底图，拖动过程中只移动叠加的水印
+                beginOverlayPreview();
             }
         });
 
         previewImageView.setOnMouseDragged(event -> {
-            if (isDragging[0]) {
+            if (isDragging[0] && previewImageView.getImage() != null && selectedImage != null) {
                 // 计算拖拽距离
                 double dragX = event.getX();
                 double dragY = event.getY();
 
-                // 计算相对于原图的位置
-                double scaleX = previewImageView.getImage().getWidth() / previewImageView.getFitWidth();
-                double scaleY = previewImageView.getImage().getHeight() / previewImageView.getFitHeight();
+                // 计算相对于原图的位置（预览图是缩小的副本，按原图尺寸换算）
+                Image image = previewImageView.getImage();
+                double sourceWidth = selectedImage.getWidth() > 0 ? selectedImage.getWidth() : image.getWidth();
+                double sourceHeight = selectedImage.getHeight() > 0 ? selectedImage.getHeight() : image.getHeight();
+                double scaleX = sourceWidth / previewImageView.getFitWidth();
+                double scaleY = sourceHeight / previewImageView.getFitHeight();
 
                 int imageX = (int) (dragX * scaleX);
                 int imageY = (int) (dragY * scaleY);
@@ -488,10 +719,12 @@ public class MainController implements Initializable {
                     }
                 });
 
-                // 实时应用水印（提供视觉反馈）
-                applyWatermarkInRealTime();
-
-                System.out.println("拖拽水印位置: " + imageX + ", " + imageY);
+                // 移动叠加的水印（提供视觉反馈）；底图还没加载时退回到重新合成
+                if (overlayView.isVisible()) {
+                    updateOverlay();
+                } else {
+                    applyWatermarkInRealTime();
+                }
             }
         });
 
@@ -499,27 +732,60 @@ public class MainController implements Initializable {
             if (isDragging[0]) {
                 isDragging[0] = false;
                 previewImageView.setCursor(javafx.scene.Cursor.DEFAULT);
-                System.out.println("拖拽结束");
+
+                // 松开后合成一次完整的预览图
+                applyWatermarkInRealTime();
+                log.debug("拖拽结束，水印位置: {}, {}", currentConfig.getCustomX(), currentConfig.getCustomY());
             }
         });
     }
 
     /**
      * 实时应用水印（用于拖拽时的视觉反馈）
+     *
+     * 渲染在后台进行，连续拖动时只渲染最新的位置，不会阻塞界面。
+     * 合成结果显示时一并隐藏叠加的水印。
      */
     private void applyWatermarkInRealTime() {
         if (selectedImage == null) return;
 
-        try {
-            // 应用水印到预览图
-            Image watermarkedImage = watermarkService.applyWatermarkToPreview(selectedImage, currentConfig);
+        previewRenderer.request(selectedImage, currentConfig, watermarkedImage -> {
+            overlayView.setVisible(false);
             if (watermarkedImage != null) {
                 previewImageView.setImage(watermarkedImage);
-                previewPane.setCenter(previewImageView);
+                previewPane.setCenter(previewStack);
             }
-        } catch (Exception e) {
-            log.error("实时应用水印失败", e);
+        });
+    }
+
+    /**
+     * 开始叠加预览：显示不带水印的底图，水印作为单独的节点叠加在上面
+     */
+    private void beginOverlayPreview() {
+        Image base = watermarkService.getPreviewBase(selectedImage);
+        if (base == null || selectedImage.getWidth() <= 0) {
+            return;
         }
+        // 丢弃还没显示的合成结果，避免覆盖底图
+        previewRenderer.cancel();
+        previewImageView.setImage(base);
+        overlayView.setVisible(true);
+        updateOverlay();
+    }
+
+    /**
+     * 按当前配置更新叠加水印的图块和位置（原图坐标换算到显示坐标）
+     */
+    private void updateOverlay() {
+        WatermarkService.Overlay overlay = watermarkService.createOverlay(
+                selectedImage.getWidth(), selectedImage.getHeight(), currentConfig);
+        double scale = previewImageView.getFitWidth() / selectedImage.getWidth();
+        java.awt.Rectangle bounds = overlay.getBounds();
+        overlayView.setImage(overlay.getImage());
+        overlayView.setLayoutX(bounds.x * scale);
+        overlayView.setLayoutY(bounds.y * scale);
+        overlayView.setFitWidth(bounds.width * scale);
+        overlayView.setFitHeight(bounds.height * scale);
     }
 
     /**
@@ -562,6 +828,9 @@ public class MainController implements Initializable {
 
         previewImageView.setFitWidth(fitWidth);
         previewImageView.setFitHeight(fitHeight);
+        if (overlayView.isVisible()) {
+            updateOverlay();
+        }
 
         System.out.println("设置预览尺寸: " + fitWidth + "x" + fitHeight);
     }
@@ -581,16 +850,27 @@ public class MainController implements Initializable {
     }
 
     private void clearPreview() {
+        previewRenderer.cancel();
+        watermarkService.releasePreview();
         previewImageView.setImage(null);
+        overlayView.setVisible(false);
         previewPane.setCenter(previewPlaceholder);
         selectedImage = null;
     }
 
     private void updateImageCount() {
-        int count = imageService.getImageFiles().size();
+        int count = imageService.getImageCount();
         imageCountLabel.setText("共 " + count + " 张图片");
     }
 
+    /**
+     * 状态栏显示内存中缩略图占用的字节数和预算
+     */
+    private void updateThumbnailMemory() {
+        thumbnailMemoryLabel.setText(String.format("缩略图内存: %.1f / %.0f MB",
+                thumbnailCache.getResidentBytes() / (1024.0 * 1024), thumbnailCache.getMaxBytes() / (1024.0 * 1024)));
+    }
+
     private void updateStatus(String message) {
         statusLabel.setText(message);
         log.info("状态更新: {}", message);
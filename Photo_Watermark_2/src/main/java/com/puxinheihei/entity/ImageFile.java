@@ -1,16 +1,18 @@
 package com.puxinheihei.entity;
 
 import lombok.Data;
-import javafx.scene.image.Image;
 
 @Data
 public class ImageFile {
     private String fileName;
     private String filePath;
-    private Image thumbnail;
     private long fileSize;
     private String format;
 
+    // 原图尺寸（像素），导入时从文件头读取
+    private int width;
+    private int height;
+
     // 为每个图片添加独立的水印配置
     private WatermarkConfig watermarkConfig;
 
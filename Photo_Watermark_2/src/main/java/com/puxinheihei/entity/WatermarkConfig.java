@@ -42,6 +42,23 @@ public class WatermarkConfig {
         this.position = Position.BOTTOM_RIGHT;
     }
 
+    /**
+     * 复制一份配置。交给后台线程渲染时使用，之后界面上的修改不会影响正在进行的渲染
+     */
+    public WatermarkConfig copy() {
+        WatermarkConfig copy = new WatermarkConfig();
+        copy.text = text;
+        copy.fontFamily = fontFamily;
+        copy.fontSize = fontSize;
+        copy.textColor = textColor;
+        copy.textColorHex = textColorHex;
+        copy.textOpacity = textOpacity;
+        copy.position = position;
+        copy.customX = customX;
+        copy.customY = customY;
+        return copy;
+    }
+
     // Color和Hex颜色转换方法
     public void setTextColor(Color color) {
         this.textColor = color;
@@ -0,0 +1,149 @@
+package com.puxinheihei.service;
+
+import com.puxinheihei.entity.ImageFile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * 已导入图片的目录
+ *
+ * 按路径建立哈希索引，同时保持导入顺序：添加、按路径查找、去重和移除都是常数时间，
+ * 批量导入十万张图片的总开销与数量成线性关系。另外记录每个文件夹中有多少张图片，
+ * 检查输出文件夹时不需要遍历全部图片。
+ *
+ * 遍历使用 {@link #snapshot()}：快照在内容变化后第一次读取时生成，之后重复读取不再复制，
+ * 导入过程中不断添加也不会像 CopyOnWriteArrayList 那样每次复制整个数组。
+ *
+ * 每次 {@link #clear()} 增加代数。后台导入开始时记下代数，按代数添加，
+ * 清空之后才完成读取的图片不会加入清空后的列表。
+ */
+public class ImageCatalog {
+
+    private final LinkedHashMap<String, ImageFile> byPath = new LinkedHashMap<>();
+    // 文件夹 -> 其中的图片数
+    private final Map<File, Integer> folderCounts = new HashMap<>();
+
+    // 当前内容的只读快照，内容变化后置空
+    private List<ImageFile> snapshot = Collections.emptyList();
+    private boolean snapshotValid = true;
+    private long generation;
+
+    /**
+     * 添加图片，同一路径已存在时返回 false
+     */
+    public synchronized boolean add(ImageFile imageFile) {
+        return add(imageFile, generation);
+    }
+
+    /**
+     * 列表仍是 generation 代时添加图片
+     *
+     * @return 同一路径已存在或列表已被清空时返回 false
+     */
+    public synchronized boolean add(ImageFile imageFile, long generation) {
+        if (generation != this.generation) {
+            return false;
+        }
+        String path = imageFile.getFilePath();
+        if (byPath.putIfAbsent(path, imageFile) != null) {
+            return false;
+        }
+        folderCounts.merge(folderOf(path), 1, Integer::sum);
+        snapshotValid = false;
+        return true;
+    }
+
+    public synchronized boolean contains(String path) {
+        return byPath.containsKey(path);
+    }
+
+    public synchronized ImageFile get(String path) {
+        return byPath.get(path);
+    }
+
+    /**
+     * 是否有图片位于该文件夹中（不含子文件夹）
+     */
+    public synchronized boolean containsFolder(File folder) {
+        return folderCounts.containsKey(folder);
+    }
+
+    public synchronized boolean remove(ImageFile imageFile) {
+        ImageFile removed = byPath.get(imageFile.getFilePath());
+        if (removed != imageFile) {
+            return false;
+        }
+        byPath.remove(imageFile.getFilePath());
+        decrementFolder(imageFile.getFilePath());
+        snapshotValid = false;
+        return true;
+    }
+
+    /**
+     * 移除满足条件的图片
+     *
+     * @return 移除的数量
+     */
+    public synchronized int removeIf(Predicate<ImageFile> filter) {
+        int removed = 0;
+        Iterator<ImageFile> iterator = byPath.values().iterator();
+        while (iterator.hasNext()) {
+            ImageFile imageFile = iterator.next();
+            if (filter.test(imageFile)) {
+                iterator.remove();
+                decrementFolder(imageFile.getFilePath());
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            snapshotValid = false;
+        }
+        return removed;
+    }
+
+    public synchronized void clear() {
+        byPath.clear();
+        folderCounts.clear();
+        snapshot = Collections.emptyList();
+        snapshotValid = true;
+        generation++;
+    }
+
+    /**
+     * 当前代数，每次清空后增加
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    public synchronized int size() {
+        return byPath.size();
+    }
+
+    /**
+     * 按导入顺序排列的只读快照，之后的修改不会影响已返回的快照
+     */
+    public synchronized List<ImageFile> snapshot() {
+        if (!snapshotValid) {
+            snapshot = Collections.unmodifiableList(new ArrayList<>(byPath.values()));
+            snapshotValid = true;
+        }
+        return snapshot;
+    }
+
+    private void decrementFolder(String path) {
+        folderCounts.computeIfPresent(folderOf(path), (folder, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private static File folderOf(String path) {
+        return new File(path).getParentFile();
+    }
+}
@@ -0,0 +1,507 @@
+package com.puxinheihei.service;
+
+import com.puxinheihei.entity.ImageFile;
+import com.puxinheihei.entity.WatermarkConfig;
+import com.puxinheihei.util.ExportJournal;
+import com.puxinheihei.util.ImageCodec;
+import javafx.application.Platform;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 后台批量导出
+ *
+ * 每次导出是一个 {@link Job}：图片在固定大小的线程池上并行处理（内存由 WatermarkService 的像素预算控制），
+ * 每张图片的结果和整体进度（速度、预计剩余时间）每 200 毫秒合并一次交给界面线程，窗口不会卡住。
+ * 开始导出时复制每张图片自己的水印配置和当前的 JPEG 编码参数，导出过程中修改设置不影响本次导出。
+ *
+ * 输出文件夹中的 {@link ExportJournal} 记录已完成的图片：中断后再次导出到同一文件夹时，
+ * 源文件和参数都没有变化的图片直接跳过，只处理未完成的图片。
+ */
+@Slf4j
+public class ImageExporter {
+
+    /**
+     * 导出进度回调，全部在 JavaFX 线程上调用
+     */
+    public interface Listener {
+
+        /**
+         * 新完成的一批图片（成功或失败）
+         */
+        void onResults(List<Result> results);
+
+        void onProgress(Progress progress);
+
+        /**
+         * 导出结束（完成或取消）
+         */
+        void onFinished(Progress progress, boolean cancelled);
+    }
+
+    // 线程数的系统属性，例如 -Dphoto.watermark.exportThreads=4
+    private static final String THREADS_PROPERTY = "photo.watermark.exportThreads";
+    // 界面更新间隔，期间完成的图片合并为一批
+    private static final long PUBLISH_INTERVAL_MILLIS = 200;
+
+    private final WatermarkService watermarkService;
+    private final int threads;
+
+    /**
+     * @param threads 同时导出的图片数
+     */
+    public ImageExporter(WatermarkService watermarkService, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("导出线程数必须大于 0: " + threads);
+        }
+        this.watermarkService = watermarkService;
+        this.threads = threads;
+    }
+
+    /**
+     * 默认线程数：优先使用系统属性配置，否则为 CPU 核数（最多 4 个，编码大图时更多线程主要是在争抢内存带宽）
+     */
+    public static int defaultThreads() {
+        String configured = System.getProperty(THREADS_PROPERTY);
+        if (configured != null && !configured.isBlank()) {
+            try {
+                return Math.max(1, Integer.parseInt(configured.trim()));
+            } catch (NumberFormatException e) {
+                log.warn("导出线程数配置无效: {}", configured);
+            }
+        }
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * 开始导出，立即返回；在 JavaFX 线程上调用（复制配置时图片的设置不会同时被修改）
+     *
+     * @param outputFormat JPEG 或 PNG
+     */
+    public Job start(List<ImageFile> imageFiles, File outputDir, String outputFormat,
+                     String prefix, String suffix, Listener listener) {
+        Job job = new Job(imageFiles, outputDir, outputFormat, prefix, suffix, listener);
+        job.start();
+        return job;
+    }
+
+    /**
+     * 单张图片的导出结果
+     */
+    public static final class Result {
+        private final ImageFile imageFile;
+        private final File outputFile;
+        private final String error;
+        private final long elapsedMillis;
+
+        private Result(ImageFile imageFile, File outputFile, String error, long elapsedMillis) {
+            this.imageFile = imageFile;
+            this.outputFile = outputFile;
+            this.error = error;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public ImageFile getImageFile() {
+            return imageFile;
+        }
+
+        /**
+         * @return 失败时为 null
+         */
+        public File getOutputFile() {
+            return outputFile;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        /**
+         * @return 失败原因，成功时为 null
+         */
+        public String getError() {
+            return error;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+    }
+
+    /**
+     * 某一时刻的整体进度，不可变
+     */
+    public static final class Progress {
+        private final int total;
+        private final int succeeded;
+        private final int failed;
+        private final int skipped;
+        private final double imagesPerSecond;
+        private final long remainingMillis;
+        private final boolean paused;
+
+        private Progress(int total, int succeeded, int failed, int skipped, double imagesPerSecond,
+                         long remainingMillis, boolean paused) {
+            this.total = total;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.skipped = skipped;
+            this.imagesPerSecond = imagesPerSecond;
+            this.remainingMillis = remainingMillis;
+            this.paused = paused;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public int getSucceeded() {
+            return succeeded;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        /**
+         * 之前已经导出过、本次跳过的图片数
+         */
+        public int getSkipped() {
+            return skipped;
+        }
+
+        public int getProcessed() {
+            return succeeded + failed + skipped;
+        }
+
+        /**
+         * 已处理的比例，0 到 1
+         */
+        public double getFraction() {
+            return total == 0 ? 1 : (double) getProcessed() / total;
+        }
+
+        /**
+         * 平均速度（张/秒），不计暂停的时间和跳过的图片
+         */
+        public double getImagesPerSecond() {
+            return imagesPerSecond;
+        }
+
+        /**
+         * 按平均速度估算的剩余时间，还没有完成任何图片时为 -1
+         */
+        public long getRemainingMillis() {
+            return remainingMillis;
+        }
+
+        public boolean isPaused() {
+            return paused;
+        }
+    }
+
+    /**
+     * 一次导出
+     */
+    public final class Job {
+        private final List<Item> items;
+        private final File outputDir;
+        private final String outputFormat;
+        private final String prefix;
+        private final String suffix;
+        private final ImageCodec.EncodeSettings encodeSettings;
+        private final Listener listener;
+        private final ExecutorService workers;
+        private final ScheduledExecutorService publisher;
+
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private final AtomicInteger remaining;
+        private final AtomicInteger succeeded = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        // 无法打开时为 null（不跳过已导出的图片，也不记录）
+        private final ExportJournal journal;
+
+        // 暂停状态和暂停累计的时间，由 pauseLock 保护
+        private final Object pauseLock = new Object();
+        private boolean paused;
+        private long pausedSince;
+        private long pausedNanos;
+        private long startNanos;
+
+        // 已完成、等待交给界面的结果
+        private final ConcurrentLinkedQueue<Result> completed = new ConcurrentLinkedQueue<>();
+        // 界面线程上还有未执行的更新时不再提交新的更新
+        private final AtomicBoolean publishPending = new AtomicBoolean();
+        // 结束后不再执行排队中的定时更新，onFinished 之后不会再收到进度
+        private volatile boolean finished;
+        private volatile int lastPublishedProcessed = -1;
+        private volatile boolean lastPublishedPaused;
+
+        private Job(List<ImageFile> imageFiles, File outputDir, String outputFormat, String prefix, String suffix,
+                    Listener listener) {
+            this.items = new ArrayList<>(imageFiles.size());
+            for (ImageFile imageFile : imageFiles) {
+                // 每张图片使用自己的配置，复制一份，导出过程中修改设置不影响本次导出
+                items.add(new Item(imageFile, imageFile.getWatermarkConfig().copy()));
+            }
+            this.outputDir = outputDir;
+            this.outputFormat = outputFormat;
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.encodeSettings = watermarkService.getEncodeSettings();
+            this.journal = openJournal(outputDir);
+            this.listener = listener;
+            this.remaining = new AtomicInteger(items.size());
+
+            AtomicInteger index = new AtomicInteger();
+            this.workers = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, items.size())), runnable -> {
+                Thread thread = new Thread(runnable, "image-export-" + index.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.publisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "image-export-publisher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        private ExportJournal openJournal(File outputDir) {
+            try {
+                return ExportJournal.open(outputDir);
+            } catch (IOException e) {
+                log.warn("无法打开导出日志，本次导出不会跳过已导出的图片: {}", outputDir, e);
+                return null;
+            }
+        }
+
+        private void start() {
+            log.info("开始导出 {} 张图片到: {}（{} 个线程）", items.size(), outputDir.getAbsolutePath(), threads);
+            startNanos = System.nanoTime();
+            if (items.isEmpty()) {
+                finish();
+                return;
+            }
+            publisher.scheduleWithFixedDelay(this::schedulePublish,
+                    PUBLISH_INTERVAL_MILLIS, PUBLISH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            for (Item item : items) {
+                workers.execute(() -> {
+                    try {
+                        if (awaitResumed()) {
+                            export(item);
+                        }
+                    } finally {
+                        if (remaining.decrementAndGet() == 0) {
+                            finish();
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * 暂停：正在导出的图片会完成，之后的图片等到恢复后再开始
+         */
+        public void pause() {
+            synchronized (pauseLock) {
+                if (!paused) {
+                    paused = true;
+                    pausedSince = System.nanoTime();
+                }
+            }
+        }
+
+        public void resume() {
+            synchronized (pauseLock) {
+                if (paused) {
+                    paused = false;
+                    pausedNanos += System.nanoTime() - pausedSince;
+                    pauseLock.notifyAll();
+                }
+            }
+        }
+
+        public boolean isPaused() {
+            synchronized (pauseLock) {
+                return paused;
+            }
+        }
+
+        /**
+         * 取消导出：正在写入的图片会完成，尚未开始的图片不再导出
+         */
+        public void cancel() {
+            cancelled.set(true);
+            synchronized (pauseLock) {
+                pauseLock.notifyAll();
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        /**
+         * 暂停时等待恢复
+         *
+         * @return 已取消时返回 false
+         */
+        private boolean awaitResumed() {
+            synchronized (pauseLock) {
+                while (paused && !cancelled.get()) {
+                    try {
+                        pauseLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+            return !cancelled.get();
+        }
+
+        private void export(Item item) {
+            File sourceFile = new File(item.imageFile.getFilePath());
+            String params = ExportJournal.fingerprint(item.config, outputFormat, encodeSettings);
+            if (journal != null && journal.isExported(sourceFile, params,
+                    watermarkService.outputFileFor(item.imageFile, outputDir, outputFormat, prefix, suffix))) {
+                skipped.incrementAndGet();
+                return;
+            }
+
+            long start = System.nanoTime();
+            File outputFile = null;
+            String error = null;
+            try {
+                // 读取图片之前记下源文件状态，导出完成后写入日志
+                ExportJournal.SourceState source = journal != null ? ExportJournal.captureSource(sourceFile) : null;
+                outputFile = watermarkService.exportImage(item.imageFile, outputDir, item.config,
+                        outputFormat, prefix, suffix, encodeSettings);
+                if (journal != null) {
+                    journal.recordExported(sourceFile, source, params, outputFile);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = "导出被中断";
+            } catch (Exception e) {
+                log.error("导出图片失败: {}", item.imageFile.getFileName(), e);
+                error = e.getMessage() != null ? e.getMessage() : e.toString();
+            }
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            if (error == null) {
+                succeeded.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+            completed.add(new Result(item.imageFile, outputFile, error, elapsedMillis));
+        }
+
+        private void finish() {
+            finished = true;
+            workers.shutdown();
+            publisher.shutdownNow();
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    log.warn("保存导出日志失败: {}", outputDir, e);
+                }
+            }
+            publish();
+            Progress progress = progress();
+            boolean wasCancelled = cancelled.get();
+            log.info("导出结束: 成功 {} 张，失败 {} 张，跳过 {} 张{}", progress.getSucceeded(), progress.getFailed(),
+                    progress.getSkipped(), wasCancelled ? "（已取消）" : "");
+            Platform.runLater(() -> listener.onFinished(progress, wasCancelled));
+        }
+
+        private Progress progress() {
+            int succeededCount = succeeded.get();
+            int failedCount = failed.get();
+            int skippedCount = skipped.get();
+            int exported = succeededCount + failedCount;
+            boolean pausedNow;
+            long activeNanos;
+            synchronized (pauseLock) {
+                pausedNow = paused;
+                long now = paused ? pausedSince : System.nanoTime();
+                activeNanos = now - startNanos - pausedNanos;
+            }
+            double perSecond = activeNanos > 0 ? exported / (activeNanos / 1e9) : 0;
+            long remainingMillis = perSecond > 0
+                    ? (long) ((items.size() - exported - skippedCount) / perSecond * 1000) : -1;
+            return new Progress(items.size(), succeededCount, failedCount, skippedCount, perSecond, remainingMillis,
+                    pausedNow);
+        }
+
+        /**
+         * 定时检查，有新的结果或暂停状态变化时提交一次界面更新；正在运行时每次都更新（速度和剩余时间在变化）
+         */
+        private void schedulePublish() {
+            boolean pausedNow = isPaused();
+            if (pausedNow && lastPublishedPaused && completed.isEmpty()
+                    && succeeded.get() + failed.get() + skipped.get() == lastPublishedProcessed) {
+                return;
+            }
+            if (publishPending.compareAndSet(false, true)) {
+                Platform.runLater(() -> {
+                    publishPending.set(false);
+                    if (!finished) {
+                        publish();
+                    }
+                });
+            }
+        }
+
+        /**
+         * 把已完成的结果和当前进度交给界面，在 JavaFX 线程上或导出结束时调用
+         */
+        private synchronized void publish() {
+            List<Result> batch = new ArrayList<>();
+            Result result;
+            while ((result = completed.poll()) != null) {
+                batch.add(result);
+            }
+            Progress progress = progress();
+            lastPublishedProcessed = progress.getProcessed();
+            lastPublishedPaused = progress.isPaused();
+            Runnable update = () -> {
+                if (!batch.isEmpty()) {
+                    listener.onResults(batch);
+                }
+                listener.onProgress(progress);
+            };
+            if (Platform.isFxApplicationThread()) {
+                update.run();
+            } else {
+                Platform.runLater(update);
+            }
+        }
+    }
+
+    private static final class Item {
+        private final ImageFile imageFile;
+        private final WatermarkConfig config;
+
+        private Item(ImageFile imageFile, WatermarkConfig config) {
+            this.imageFile = imageFile;
+            this.config = config;
+        }
+    }
+}
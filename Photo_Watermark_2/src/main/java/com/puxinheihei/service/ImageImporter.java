@@ -0,0 +1,260 @@
+package com.puxinheihei.service;
+
+import com.puxinheihei.entity.ImageFile;
+import com.puxinheihei.util.FileUtils;
+import javafx.application.Platform;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * 后台导入图片
+ *
+ * 一个线程遍历选中的文件和文件夹，发现的图片交给有界线程池校验（读取图片头），
+ * 完成的图片每 100 毫秒合并为一批交给界面线程，导入过程中列表逐步增加，窗口不会卡住。
+ * 同时进行中的校验任务数有上限，遍历再快也不会堆积大量待处理的任务。
+ * 缩略图不在导入时生成，列表显示到哪张图片才加载哪张。
+ */
+@Slf4j
+public class ImageImporter {
+
+    /**
+     * 导入进度回调，全部在 JavaFX 线程上调用
+     */
+    public interface Listener {
+
+        /**
+         * 新加入列表的一批图片
+         */
+        void onBatch(List<ImageFile> imageFiles);
+
+        /**
+         * @param processed  已处理的文件数
+         * @param discovered 已发现的图片文件数，遍历完成前会继续增加
+         */
+        void onProgress(int processed, int discovered);
+
+        /**
+         * 导入结束（完成或取消）
+         */
+        void onFinished(int added, int failed, boolean cancelled);
+    }
+
+    private static final int THREADS = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+    // 最多同时进行的校验任务
+    private static final int MAX_IN_FLIGHT = THREADS * 4;
+    // 界面更新间隔，期间完成的图片合并为一批
+    private static final long PUBLISH_INTERVAL_MILLIS = 100;
+
+    private final ImageService imageService;
+
+    public ImageImporter(ImageService imageService) {
+        this.imageService = imageService;
+    }
+
+    /**
+     * 开始导入，立即返回
+     *
+     * @param sources 图片文件或文件夹（递归查找）
+     */
+    public Task start(List<File> sources, Listener listener) {
+        Task task = new Task(sources, listener);
+        Thread thread = new Thread(task::run, "image-import");
+        thread.setDaemon(true);
+        thread.start();
+        return task;
+    }
+
+    /**
+     * 一次导入
+     */
+    public final class Task {
+        private final List<File> sources;
+        private final Listener listener;
+        private final ExecutorService workers;
+        private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        // 开始时列表的代数，之后清空了列表的话读取到的图片不再加入
+        private final long generation;
+
+        private final AtomicInteger discovered = new AtomicInteger();
+        private final AtomicInteger processed = new AtomicInteger();
+        private final AtomicInteger added = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+
+        // 已完成、等待交给界面的图片
+        private final ConcurrentLinkedQueue<ImageFile> completed = new ConcurrentLinkedQueue<>();
+        // 界面线程上还有未执行的更新时不再提交新的更新
+        private final AtomicBoolean publishPending = new AtomicBoolean();
+        private volatile int lastPublishedProcessed = -1;
+        private volatile int lastPublishedDiscovered = -1;
+
+        private Task(List<File> sources, Listener listener) {
+            this.sources = new ArrayList<>(sources);
+            this.listener = listener;
+            this.generation = imageService.getListGeneration();
+            AtomicInteger index = new AtomicInteger();
+            this.workers = Executors.newFixedThreadPool(THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "image-import-" + index.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        /**
+         * 取消导入，已经加入列表的图片保留
+         */
+        public void cancel() {
+            cancelled.set(true);
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        private void run() {
+            ScheduledExecutorService publisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "image-import-publisher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            publisher.scheduleWithFixedDelay(this::schedulePublish,
+                    PUBLISH_INTERVAL_MILLIS, PUBLISH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            try {
+                for (File source : sources) {
+                    if (cancelled.get()) {
+                        break;
+                    }
+                    if (source.isDirectory()) {
+                        discover(source.toPath());
+                    } else {
+                        submit(source);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelled.set(true);
+            } finally {
+                workers.shutdown();
+                try {
+                    while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                        if (cancelled.get()) {
+                            workers.shutdownNow();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    workers.shutdownNow();
+                }
+                publisher.shutdownNow();
+                publish();
+                log.info("导入结束: 新增 {} 张，失败 {} 张{}", added.get(), failed.get(), cancelled.get() ? "（已取消）" : "");
+                Platform.runLater(() -> listener.onFinished(added.get(), failed.get(), cancelled.get()));
+            }
+        }
+
+        private void discover(Path folder) throws InterruptedException {
+            try (Stream<Path> paths = Files.walk(folder)) {
+                for (Path path : (Iterable<Path>) paths::iterator) {
+                    if (cancelled.get()) {
+                        return;
+                    }
+                    File file = path.toFile();
+                    if (FileUtils.isImageFile(file)) {
+                        submit(file);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                log.error("扫描文件夹失败: {}", folder, e);
+            }
+        }
+
+        private void submit(File file) throws InterruptedException {
+            discovered.incrementAndGet();
+            // 已在列表中的文件不再读取
+            if (imageService.containsImageFile(file)) {
+                processed.incrementAndGet();
+                return;
+            }
+            inFlight.acquire();
+            workers.execute(() -> {
+                try {
+                    if (!cancelled.get()) {
+                        load(file);
+                    }
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+
+        private void load(File file) {
+            ImageFile imageFile = imageService.createImageFile(file);
+            if (imageFile == null) {
+                failed.incrementAndGet();
+            } else if (cancelled.get()) {
+                return;
+            } else if (imageService.registerImageFile(imageFile, generation)) {
+                added.incrementAndGet();
+                completed.add(imageFile);
+            }
+            processed.incrementAndGet();
+        }
+
+        /**
+         * 定时检查，有新的进度时提交一次界面更新；上一次更新还没执行时跳过
+         */
+        private void schedulePublish() {
+            if (completed.isEmpty() && processed.get() == lastPublishedProcessed
+                    && discovered.get() == lastPublishedDiscovered) {
+                return;
+            }
+            if (publishPending.compareAndSet(false, true)) {
+                Platform.runLater(() -> {
+                    publishPending.set(false);
+                    publish();
+                });
+            }
+        }
+
+        /**
+         * 把已完成的图片和当前进度交给界面，在 JavaFX 线程上或导入结束时调用
+         */
+        private synchronized void publish() {
+            List<ImageFile> batch = new ArrayList<>();
+            ImageFile imageFile;
+            while ((imageFile = completed.poll()) != null) {
+                batch.add(imageFile);
+            }
+            int processedCount = processed.get();
+            int discoveredCount = discovered.get();
+            lastPublishedProcessed = processedCount;
+            lastPublishedDiscovered = discoveredCount;
+            Runnable update = () -> {
+                if (!batch.isEmpty()) {
+                    listener.onBatch(batch);
+                }
+                listener.onProgress(processedCount, discoveredCount);
+            };
+            if (Platform.isFxApplicationThread()) {
+                update.run();
+            } else {
+                Platform.runLater(update);
+            }
+        }
+    }
+}
@@ -2,72 +2,259 @@ package com.puxinheihei.service;
 
 import com.puxinheihei.entity.ImageFile;
 import com.puxinheihei.entity.WatermarkConfig;
+import com.puxinheihei.util.ConfigManager;
+import com.puxinheihei.util.ExifThumbnail;
 import com.puxinheihei.util.FileUtils;
+import com.puxinheihei.util.ImageCodec;
 import com.puxinheihei.util.ImageUtils;
+import com.puxinheihei.util.ThumbnailStore;
 import javafx.embed.swing.SwingFXUtils;
 import javafx.scene.image.Image;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.imageio.ImageIO;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 @Slf4j
 public class ImageService {
 
-    private final List<ImageFile> imageFiles;
+    private final ImageCatalog imageFiles;
     private static final int THUMBNAIL_WIDTH = 120;
     private static final int THUMBNAIL_HEIGHT = 80;
+    // 磁盘缩略图缓存的大小上限
+    private static final long THUMBNAIL_STORE_BYTES = 256L * 1024 * 1024;
+
+    // 磁盘缩略图缓存，无法打开时为 null（每次都从原图生成）
+    private final ThumbnailStore thumbnailStore;
 
     public ImageService() {
-        this.imageFiles = new CopyOnWriteArrayList<>();
+        this.imageFiles = new ImageCatalog();
+        this.thumbnailStore = openThumbnailStore();
+    }
+
+    private static ThumbnailStore openThumbnailStore() {
+        try {
+            ThumbnailStore store = ThumbnailStore.open(ConfigManager.getConfigDir().resolve("thumbnails"),
+                    THUMBNAIL_STORE_BYTES);
+            // 退出时把索引重写为紧凑格式
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    log.warn("关闭缩略图缓存失败", e);
+                }
+            }, "thumbnail-store-close"));
+            return store;
+        } catch (Exception e) {
+            log.warn("无法打开缩略图缓存，缩略图将每次重新生成", e);
+            return null;
+        }
     }
 
     /**
      * 添加单个图片文件
      */
     public boolean addImageFile(File file) {
+        if (containsImageFile(file)) {
+            log.info("图片已存在: {}", file.getName());
+            return false;
+        }
+        ImageFile imageFile = createImageFile(file);
+        return imageFile != null && registerImageFile(imageFile);
+    }
+
+    /**
+     * 检查文件是否已在列表中
+     */
+    public boolean containsImageFile(File file) {
+        return imageFiles.contains(file.getAbsolutePath());
+    }
+
+    /**
+     * 校验文件并创建 ImageFile，不加入列表
+     *
+     * 只读取图片头（格式和尺寸），不解码像素；缩略图在列表中显示到该图片时才由 {@link #loadThumbnail} 生成。
+     * 可以在任意线程上调用（导入时在后台线程上并行调用）。
+     *
+     * @return 不支持的格式或无法识别时返回 null
+     */
+    public ImageFile createImageFile(File file) {
         try {
             if (!FileUtils.isImageFile(file)) {
                 log.warn("不支持的文件格式: {}", file.getName());
-                return false;
+                return null;
             }
 
-            // 检查是否已存在
-            if (imageFiles.stream().anyMatch(img -> img.getFilePath().equals(file.getAbsolutePath()))) {
-                log.info("图片已存在: {}", file.getName());
-                return false;
-            }
-
-            // 使用JavaFX直接加载图片创建缩略图
-            Image thumbnail = new Image("file:" + file.getAbsolutePath(), THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT, true, true, true);
-            if (thumbnail.isError()) {
-                log.error("无法加载图片文件: {}", file.getAbsolutePath());
-                return false;
+            Dimension size = ImageCodec.readSize(file);
+            if (size == null) {
+                log.error("无法识别图片文件: {}", file.getAbsolutePath());
+                return null;
             }
 
             // 创建ImageFile对象
             ImageFile imageFile = new ImageFile();
             imageFile.setFileName(file.getName());
             imageFile.setFilePath(file.getAbsolutePath());
-            imageFile.setThumbnail(thumbnail);
+            imageFile.setWidth(size.width);
+            imageFile.setHeight(size.height);
             imageFile.setFileSize(file.length());
             imageFile.setFormat(FileUtils.getFileExtension(file.getName()));
 
             // 为每个图片初始化默认水印配置
             imageFile.setWatermarkConfig(new WatermarkConfig());
-
-            imageFiles.add(imageFile);
-            log.info("成功添加图片: {}", file.getName());
-            return true;
+            return imageFile;
 
         } catch (Exception e) {
             log.error("添加图片文件失败: {}", file.getAbsolutePath(), e);
+            return null;
+        }
+    }
+
+    /**
+     * 生成缩略图，同步解码，在后台线程上调用
+     *
+     * @return 无法解码时返回 null
+     */
+    public Image loadThumbnail(ImageFile imageFile) {
+        File file = new File(imageFile.getFilePath());
+
+        // 先查磁盘缓存，命中时只需解码几 KB 的小图
+        if (thumbnailStore != null) {
+            byte[] cached = thumbnailStore.get(file);
+            if (cached != null) {
+                Image thumbnail = new Image(new ByteArrayInputStream(cached),
+                        THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT, true, true);
+                if (!thumbnail.isError()) {
+                    return thumbnail;
+                }
+            }
+        }
+
+        // 相机照片通常自带 EXIF 缩略图，只读文件开头的几十 KB，不解码原图
+        Image embedded = loadEmbeddedThumbnail(imageFile, file);
+        if (embedded != null) {
+            return embedded;
+        }
+
+        // 按缩略图尺寸解码（JPEG 解码时直接缩小）
+        Image thumbnail = new Image("file:" + file.getAbsolutePath(),
+                THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT, true, true, false);
+        if (thumbnail.isError()) {
+            log.error("无法加载图片文件: {}", imageFile.getFilePath());
+            return null;
+        }
+        if (thumbnailStore != null) {
+            byte[] encoded = encodeThumbnail(thumbnail, imageFile.getFormat());
+            if (encoded != null) {
+                thumbnailStore.put(file, encoded);
+            }
+        }
+        return thumbnail;
+    }
+
+    /**
+     * 读取 JPEG 内嵌的 EXIF 缩略图，没有或宽高比与原图不符（带黑边的缩略图）时返回 null
+     */
+    private Image loadEmbeddedThumbnail(ImageFile imageFile, File file) {
+        String format = imageFile.getFormat();
+        if (!"jpg".equalsIgnoreCase(format) && !"jpeg".equalsIgnoreCase(format)) {
+            return null;
+        }
+        byte[] data;
+        try {
+            data = ExifThumbnail.read(file);
+        } catch (IOException e) {
+            log.debug("读取 EXIF 缩略图失败: {}", file, e);
+            return null;
+        }
+        if (data == null) {
+            return null;
+        }
+        Image thumbnail = new Image(new ByteArrayInputStream(data), THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT, true, true);
+        if (thumbnail.isError() || !sameAspectRatio(thumbnail, imageFile)) {
+            return null;
+        }
+        // 内嵌缩略图本身就是 JPEG，直接存入磁盘缓存，不再重新编码
+        if (thumbnailStore != null) {
+            thumbnailStore.put(file, data);
+        }
+        return thumbnail;
+    }
+
+    private static boolean sameAspectRatio(Image thumbnail, ImageFile imageFile) {
+        if (imageFile.getWidth() <= 0 || imageFile.getHeight() <= 0) {
             return false;
         }
+        double expected = (double) imageFile.getWidth() / imageFile.getHeight();
+        double actual = thumbnail.getWidth() / thumbnail.getHeight();
+        // 缩略图只有约 160 像素宽，允许取整带来的误差
+        return Math.abs(actual - expected) / expected < 0.03;
+    }
+
+    /**
+     * 将缩略图编码后存入磁盘缓存：JPEG 原图存为 JPEG，其他格式存为 PNG（保留透明度）
+     */
+    private static byte[] encodeThumbnail(Image thumbnail, String format) {
+        try {
+            BufferedImage image = SwingFXUtils.fromFXImage(thumbnail, null);
+            String outputFormat = "png";
+            if ("jpg".equalsIgnoreCase(format) || "jpeg".equalsIgnoreCase(format)) {
+                // JPEG 编码器不支持透明通道
+                BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+                Graphics2D g2d = rgb.createGraphics();
+                g2d.drawImage(image, 0, 0, null);
+                g2d.dispose();
+                image = rgb;
+                outputFormat = "jpg";
+            }
+            ByteArrayOutputStream output = new ByteArrayOutputStream(16 * 1024);
+            return ImageIO.write(image, outputFormat, output) ? output.toByteArray() : null;
+        } catch (IOException e) {
+            log.debug("编码缩略图失败", e);
+            return null;
+        }
+    }
+
+    /**
+     * 将图片加入列表，同一路径已存在时返回 false
+     */
+    public boolean registerImageFile(ImageFile imageFile) {
+        if (!imageFiles.add(imageFile)) {
+            log.info("图片已存在: {}", imageFile.getFileName());
+            return false;
+        }
+        log.debug("成功添加图片: {}", imageFile.getFileName());
+        return true;
+    }
+
+    /**
+     * 列表从 generation 起没有被清空时将图片加入列表，用于后台导入
+     *
+     * @param generation 导入开始时的 {@link #getListGeneration()}
+     * @return 同一路径已存在或列表已被清空时返回 false
+     */
+    public boolean registerImageFile(ImageFile imageFile, long generation) {
+        if (!imageFiles.add(imageFile, generation)) {
+            log.debug("图片已存在或列表已清空: {}", imageFile.getFileName());
+            return false;
+        }
+        log.debug("成功添加图片: {}", imageFile.getFileName());
+        return true;
+    }
+
+    /**
+     * 列表的代数，每次清空后增加
+     */
+    public long getListGeneration() {
+        return imageFiles.getGeneration();
     }
 
     /**
@@ -105,20 +292,17 @@ public class ImageService {
     }
 
     /**
-     * 获取所有图片文件
+     * 获取所有图片文件（按导入顺序的只读快照）
      */
     public List<ImageFile> getImageFiles() {
-        return new ArrayList<>(imageFiles);
+        return imageFiles.snapshot();
     }
 
     /**
      * 根据文件路径获取图片文件
      */
     public ImageFile getImageFileByPath(String filePath) {
-        return imageFiles.stream()
-                .filter(img -> img.getFilePath().equals(filePath))
-                .findFirst()
-                .orElse(null);
+        return imageFiles.get(filePath);
     }
 
     /**
@@ -157,14 +341,7 @@ public class ImageService {
         }
 
         // 检查输出文件夹是否与任何输入文件所在文件夹相同
-        for (ImageFile imageFile : imageFiles) {
-            File inputFolder = new File(imageFile.getFilePath()).getParentFile();
-            if (inputFolder.equals(outputFolder)) {
-                return false;
-            }
-        }
-
-        return true;
+        return !imageFiles.containsFolder(outputFolder);
     }
 
     /**
@@ -184,18 +361,9 @@ public class ImageService {
      * 检查图片文件是否存在
      */
     public boolean validateImageFiles() {
-        List<ImageFile> invalidFiles = new ArrayList<>();
-
-        for (ImageFile imageFile : imageFiles) {
-            File file = new File(imageFile.getFilePath());
-            if (!file.exists()) {
-                invalidFiles.add(imageFile);
-            }
-        }
-
-        if (!invalidFiles.isEmpty()) {
-            imageFiles.removeAll(invalidFiles);
-            log.warn("移除 {} 个无效的图片文件", invalidFiles.size());
+        int removed = imageFiles.removeIf(imageFile -> !new File(imageFile.getFilePath()).exists());
+        if (removed > 0) {
+            log.warn("移除 {} 个无效的图片文件", removed);
             return false;
         }
 
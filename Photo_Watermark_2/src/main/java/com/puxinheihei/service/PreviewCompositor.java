@@ -0,0 +1,117 @@
+package com.puxinheihei.service;
+
+import com.puxinheihei.util.TextStampCache;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * 预览图的增量合成
+ *
+ * 保留不带水印的底图和上一次合成的结果。水印移动或样式变化时，只有旧位置和新位置的并集会变化：
+ * 先从底图恢复这个区域，再在其中重新绘制水印，最后只把这个区域写入显示用的 WritableImage。
+ * 每次更新的开销取决于水印大小，与图片尺寸无关。
+ *
+ * {@link #compose} 在渲染线程上调用，{@link #publish} 在 JavaFX 线程上调用。
+ * 渲染线程可能连续合成几次之后界面才显示一次，未显示的变化区域会累积到下一次 publish。
+ */
+class PreviewCompositor {
+
+    private final int width;
+    private final int height;
+    // 原图像素与预览像素之比
+    private final double scale;
+
+    private final int[] basePixels;
+    private final BufferedImage composite;
+    private final int[] compositePixels;
+    private final WritableImage displayImage;
+
+    // 上一次绘制的水印覆盖的范围（预览像素）
+    private Rectangle lastBounds;
+    // 已合成但还没写入 displayImage 的范围
+    private Rectangle pendingBounds;
+
+    PreviewCompositor(BufferedImage base, double scale) {
+        this.width = base.getWidth();
+        this.height = base.getHeight();
+        this.scale = scale;
+
+        BufferedImage argbBase = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = argbBase.createGraphics();
+        try {
+            g2d.drawImage(base, 0, 0, null);
+        } finally {
+            g2d.dispose();
+        }
+        this.basePixels = ((DataBufferInt) argbBase.getRaster().getDataBuffer()).getData();
+
+        this.composite = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        this.compositePixels = ((DataBufferInt) composite.getRaster().getDataBuffer()).getData();
+        System.arraycopy(basePixels, 0, compositePixels, 0, basePixels.length);
+
+        this.displayImage = new WritableImage(width, height);
+        // 第一次显示时整张写入
+        this.pendingBounds = new Rectangle(0, 0, width, height);
+    }
+
+    /**
+     * 将水印绘制到 (x, y)（原图坐标，文字基线起点），替换上一次绘制的水印
+     */
+    synchronized void compose(TextStampCache.TextStamp stamp, int x, int y) {
+        Rectangle bounds = toPreview(stamp.getBounds(x, y));
+        Rectangle dirty = lastBounds == null ? bounds : lastBounds.union(bounds);
+        dirty = dirty.intersection(new Rectangle(0, 0, width, height));
+        lastBounds = bounds;
+        if (dirty.isEmpty()) {
+            return;
+        }
+
+        // 从底图恢复变化区域
+        for (int row = dirty.y; row < dirty.y + dirty.height; row++) {
+            int offset = row * width + dirty.x;
+            System.arraycopy(basePixels, offset, compositePixels, offset, dirty.width);
+        }
+
+        // 只在变化区域内重新绘制水印，坐标仍按原图计算
+        Graphics2D g2d = composite.createGraphics();
+        try {
+            g2d.clip(dirty);
+            g2d.scale(1 / scale, 1 / scale);
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            stamp.drawAt(g2d, x, y);
+        } finally {
+            g2d.dispose();
+        }
+
+        pendingBounds = pendingBounds == null ? dirty : pendingBounds.union(dirty);
+    }
+
+    /**
+     * 把尚未显示的变化区域写入显示用的图片，并返回该图片（每次都是同一个对象）
+     */
+    synchronized Image publish() {
+        if (pendingBounds != null) {
+            Rectangle dirty = pendingBounds;
+            displayImage.getPixelWriter().setPixels(dirty.x, dirty.y, dirty.width, dirty.height,
+                    PixelFormat.getIntArgbInstance(), compositePixels, dirty.y * width + dirty.x, width);
+            pendingBounds = null;
+        }
+        return displayImage;
+    }
+
+    /**
+     * 原图坐标的范围换算到预览像素，向外取整并多留一像素给双线性插值
+     */
+    private Rectangle toPreview(Rectangle source) {
+        int x0 = (int) Math.floor(source.x / scale) - 1;
+        int y0 = (int) Math.floor(source.y / scale) - 1;
+        int x1 = (int) Math.ceil((source.x + source.width) / scale) + 1;
+        int y1 = (int) Math.ceil((source.y + source.height) / scale) + 1;
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+}
@@ -0,0 +1,102 @@
+package com.puxinheihei.service;
+
+import com.puxinheihei.entity.ImageFile;
+import com.puxinheihei.entity.WatermarkConfig;
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * 后台预览渲染
+ *
+ * 拖动水印、调整参数时每个事件都会请求一次预览。渲染在单独的后台线程上进行，
+ * JavaFX 线程只负责提交请求和显示结果，不会因为加载、绘制大图而卡住。
+ *
+ * 请求按"最新优先"合并：渲染期间到达的多个请求只保留最后一个，渲染完成时如果已经有更新的请求，
+ * 结果直接丢弃，不会把过时的画面显示出来。
+ */
+@Slf4j
+public class PreviewRenderer {
+
+    private final WatermarkService watermarkService;
+    private final ExecutorService executor;
+
+    // 等待渲染的最新请求，被后来的请求覆盖
+    private final AtomicReference<Request> pending = new AtomicReference<>();
+    // 最新请求的序号，用于判断结果是否已经过时
+    private final AtomicLong latestSequence = new AtomicLong();
+
+    public PreviewRenderer(WatermarkService watermarkService) {
+        this.watermarkService = watermarkService;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "preview-renderer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 请求渲染预览，立即返回
+     *
+     * @param onRendered 在 JavaFX 线程上调用；渲染失败时参数为 null；被更新的请求取代时不会调用
+     */
+    public void request(ImageFile imageFile, WatermarkConfig config, Consumer<Image> onRendered) {
+        // 复制配置，拖动过程中界面继续修改 currentConfig 不会影响正在进行的渲染
+        Request request = new Request(latestSequence.incrementAndGet(), imageFile, config.copy(), onRendered);
+        if (pending.getAndSet(request) == null) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * 取消尚未显示的预览（例如清空列表时）
+     */
+    public void cancel() {
+        latestSequence.incrementAndGet();
+        pending.set(null);
+    }
+
+    private void drain() {
+        Request request;
+        while ((request = pending.getAndSet(null)) != null) {
+            PreviewCompositor compositor = null;
+            try {
+                compositor = watermarkService.composePreview(request.imageFile, request.config);
+            } catch (Exception e) {
+                log.error("渲染预览失败: {}", request.imageFile.getFileName(), e);
+            }
+            if (request.sequence != latestSequence.get()) {
+                // 渲染期间有了新的请求，丢弃这一帧（变化区域留给下一次显示）
+                continue;
+            }
+            Request rendered = request;
+            PreviewCompositor result = compositor;
+            Platform.runLater(() -> {
+                if (rendered.sequence == latestSequence.get()) {
+                    // 只把变化的区域写入显示的图片
+                    rendered.onRendered.accept(result == null ? null : result.publish());
+                }
+            });
+        }
+    }
+
+    private static final class Request {
+        private final long sequence;
+        private final ImageFile imageFile;
+        private final WatermarkConfig config;
+        private final Consumer<Image> onRendered;
+
+        private Request(long sequence, ImageFile imageFile, WatermarkConfig config, Consumer<Image> onRendered) {
+            this.sequence = sequence;
+            this.imageFile = imageFile;
+            this.config = config;
+            this.onRendered = onRendered;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,108 @@
+package com.puxinheihei.service;
+
+import com.puxinheihei.entity.WatermarkConfig;
+import com.puxinheihei.util.FontResolver;
+import com.puxinheihei.util.TextStampCache;
+
+import java.awt.*;
+import java.util.Objects;
+
+/**
+ * 由水印配置编译得到的绘制方案，不可变
+ *
+ * 选择字体（包括按字符选择的回退字体）和解析颜色只在编译时进行一次。
+ * 光栅化的文字图块不在方案中保存，每次绘制按方案从 {@link TextStampCache} 中取得：
+ * 图块缓存的总字节数有上限，方案持有图块会让被淘汰的图块无法回收。
+ * 透明度在光栅化时合成到图块中，绘制时不需要 AlphaComposite；位置与图片尺寸有关，不在方案中。
+ */
+final class RenderPlan {
+
+    // 切分好的文字及每段使用的字体
+    private final FontResolver.ResolvedText text;
+    private final Color color;
+    private final float opacity;
+
+    private RenderPlan(FontResolver.ResolvedText text, Color color, float opacity) {
+        this.text = text;
+        this.color = color;
+        this.opacity = opacity;
+    }
+
+    /**
+     * 编译配置
+     */
+    static RenderPlan compile(WatermarkConfig config, FontResolver fontResolver) {
+        // 指定字体不支持的字符（或字体未安装时）按字符使用回退字体
+        FontResolver.ResolvedText text = fontResolver.resolve(config.getText(), config.getFontFamily(),
+                Font.PLAIN, (int) config.getFontSize());
+
+        // 将JavaFX Color转换为AWT Color
+        javafx.scene.paint.Color textColor = config.getTextColor();
+        Color color = new Color(
+                (float) textColor.getRed(),
+                (float) textColor.getGreen(),
+                (float) textColor.getBlue(),
+                (float) textColor.getOpacity()
+        );
+
+        return new RenderPlan(text, color, (float) config.getTextOpacity());
+    }
+
+    /**
+     * 光栅化的文字，包含文字宽高和图块的像素范围；同一文字、字体和颜色的图块在 stampCache 中共享，
+     * 已被淘汰时重新光栅化
+     */
+    TextStampCache.TextStamp stampFrom(TextStampCache stampCache) {
+        return stampCache.get(text, color, opacity);
+    }
+
+    /**
+     * 配置中决定外观的字段，用于查找已编译的方案
+     *
+     * 直接比较原始字段，不解析颜色：颜色以十六进制字符串为准，没有时才比较 JavaFX 颜色对象。
+     */
+    static final class Key {
+        private final String text;
+        private final String fontFamily;
+        private final double fontSize;
+        private final String colorHex;
+        private final Object color;
+        private final double opacity;
+        private final int hash;
+
+        Key(WatermarkConfig config) {
+            this.text = config.getText();
+            this.fontFamily = config.getFontFamily();
+            this.fontSize = config.getFontSize();
+            String hex = config.getTextColorHex();
+            this.colorHex = hex != null && !hex.isEmpty() ? hex : null;
+            // 与 getTextColor 一致：有十六进制字符串时只用它
+            this.color = colorHex == null ? config.getTextColor() : null;
+            this.opacity = config.getTextOpacity();
+            this.hash = Objects.hash(text, fontFamily, fontSize, colorHex, color, opacity);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return hash == key.hash
+                    && Double.compare(fontSize, key.fontSize) == 0
+                    && Double.compare(opacity, key.opacity) == 0
+                    && Objects.equals(text, key.text)
+                    && Objects.equals(fontFamily, key.fontFamily)
+                    && Objects.equals(colorHex, key.colorHex)
+                    && Objects.equals(color, key.color);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.puxinheihei.service;
+
+import javafx.beans.property.ReadOnlyLongProperty;
+import javafx.beans.property.ReadOnlyLongWrapper;
+import javafx.scene.image.Image;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 内存中的缩略图，按字节预算保留
+ *
+ * 列表单元格显示某张图片时 {@link #retain}，离开时 {@link #release}。超出预算时按最近最少使用的顺序
+ * 丢弃当前不可见的缩略图，可见的缩略图不会被丢弃（可见行很多时允许暂时超出预算）。
+ * 被丢弃的缩略图再次滚动到视野内时重新从磁盘缓存或原图加载。
+ *
+ * 只在 JavaFX 线程上使用。
+ */
+@Slf4j
+public class ThumbnailCache {
+
+    // 预算大小的系统属性（单位 MB），例如 -Dphoto.watermark.thumbnailCacheMb=64
+    private static final String BUDGET_PROPERTY = "photo.watermark.thumbnailCacheMb";
+    private static final long DEFAULT_BUDGET_BYTES = 32L * 1024 * 1024;
+
+    private final long maxBytes;
+    // 文件路径 -> 缩略图，按访问顺序排列
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    // 文件路径 -> 正在显示它的单元格数
+    private final Map<String, Integer> visible = new HashMap<>();
+    private final ReadOnlyLongWrapper residentBytes = new ReadOnlyLongWrapper(this, "residentBytes");
+
+    public ThumbnailCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 默认预算：优先使用系统属性配置，否则为 32 MB（约 2500 张 120x80 的缩略图）
+     */
+    public static long defaultBudgetBytes() {
+        String configured = System.getProperty(BUDGET_PROPERTY);
+        if (configured != null && !configured.isBlank()) {
+            try {
+                return Math.max(1, Long.parseLong(configured.trim())) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                log.warn("缩略图内存预算配置无效: {}", configured);
+            }
+        }
+        return DEFAULT_BUDGET_BYTES;
+    }
+
+    /**
+     * @return 不在内存中时返回 null
+     */
+    public Image get(String path) {
+        Entry entry = entries.get(path);
+        return entry != null ? entry.image : null;
+    }
+
+    public void put(String path, Image image) {
+        Entry previous = entries.put(path, new Entry(image));
+        long delta = bytesOf(image) - (previous != null ? previous.bytes : 0);
+        residentBytes.set(residentBytes.get() + delta);
+        evictIfNeeded();
+    }
+
+    /**
+     * 标记缩略图正在显示，不会被丢弃
+     */
+    public void retain(String path) {
+        visible.merge(path, 1, Integer::sum);
+    }
+
+    /**
+     * 取消 {@link #retain} 的标记
+     */
+    public void release(String path) {
+        visible.computeIfPresent(path, (key, count) -> count > 1 ? count - 1 : null);
+        evictIfNeeded();
+    }
+
+    /**
+     * 丢弃全部缩略图（清空列表时调用），显示标记保留，由单元格自行释放
+     */
+    public void clear() {
+        entries.clear();
+        residentBytes.set(0);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getResidentBytes() {
+        return residentBytes.get();
+    }
+
+    /**
+     * 内存中缩略图的总字节数
+     */
+    public ReadOnlyLongProperty residentBytesProperty() {
+        return residentBytes.getReadOnlyProperty();
+    }
+
+    private void evictIfNeeded() {
+        long resident = residentBytes.get();
+        if (resident <= maxBytes) {
+            return;
+        }
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (resident > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            if (!visible.containsKey(eldest.getKey())) {
+                resident -= eldest.getValue().bytes;
+                iterator.remove();
+            }
+        }
+        residentBytes.set(resident);
+    }
+
+    /**
+     * 解码后的像素占用，JavaFX 图片按每像素 4 字节存储
+     */
+    private static long bytesOf(Image image) {
+        return (long) Math.ceil(image.getWidth()) * (long) Math.ceil(image.getHeight()) * 4;
+    }
+
+    private static final class Entry {
+        private final Image image;
+        private final long bytes;
+
+        private Entry(Image image) {
+            this.image = image;
+            this.bytes = bytesOf(image);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.puxinheihei.service;
+
+import com.puxinheihei.entity.ImageFile;
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * 按需加载列表中的缩略图
+ *
+ * 列表单元格显示到某张图片时才请求它的缩略图。后提交的请求先处理（快速滚动时先加载当前可见的行），
+ * 处理前再确认单元格仍然显示这张图片，已经滚出视野的请求直接跳过。
+ */
+@Slf4j
+public class ThumbnailLoader {
+
+    private static final int THREADS = 2;
+
+    private final ImageService imageService;
+    private final ThumbnailCache cache;
+    private final ThreadPoolExecutor executor;
+
+    // 文件路径 -> 等待处理的请求，同一图片重复请求时只保留最新的回调
+    private final Map<String, Request> pending = new ConcurrentHashMap<>();
+
+    public ThumbnailLoader(ImageService imageService, ThumbnailCache cache) {
+        this.imageService = imageService;
+        this.cache = cache;
+        AtomicInteger index = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS, new LifoQueue(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "thumbnail-loader-" + index.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * 请求缩略图，加载完成后在 JavaFX 线程上放入缓存并调用 onLoaded
+     *
+     * @param stillNeeded 开始加载前检查，返回 false 时放弃（可在任意线程上调用）
+     */
+    public void request(ImageFile imageFile, BooleanSupplier stillNeeded, Consumer<Image> onLoaded) {
+        String path = imageFile.getFilePath();
+        if (pending.put(path, new Request(imageFile, stillNeeded, onLoaded)) == null) {
+            executor.execute(() -> load(path));
+        }
+    }
+
+    /**
+     * 放弃所有尚未开始的请求（清空列表时调用）
+     */
+    public void clear() {
+        pending.clear();
+        executor.getQueue().clear();
+    }
+
+    private void load(String path) {
+        Request request = pending.remove(path);
+        if (request == null || !request.stillNeeded.getAsBoolean()) {
+            return;
+        }
+        Image thumbnail = null;
+        try {
+            thumbnail = imageService.loadThumbnail(request.imageFile);
+        } catch (Exception e) {
+            log.error("加载缩略图失败: {}", path, e);
+        }
+        if (thumbnail == null) {
+            return;
+        }
+        Image loaded = thumbnail;
+        Platform.runLater(() -> {
+            cache.put(path, loaded);
+            request.onLoaded.accept(loaded);
+        });
+    }
+
+    private static final class Request {
+        private final ImageFile imageFile;
+        private final BooleanSupplier stillNeeded;
+        private final Consumer<Image> onLoaded;
+
+        private Request(ImageFile imageFile, BooleanSupplier stillNeeded, Consumer<Image> onLoaded) {
+            this.imageFile = imageFile;
+            this.stillNeeded = stillNeeded;
+            this.onLoaded = onLoaded;
+        }
+    }
+
+    /**
+     * 后进先出的任务队列
+     */
+    private static final class LifoQueue extends LinkedBlockingDeque<Runnable> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean offer(Runnable runnable) {
+            return offerFirst(runnable);
+        }
+    }
+}
@@ -2,8 +2,14 @@ package com.puxinheihei.service;
 
 import com.puxinheihei.entity.ImageFile;
 import com.puxinheihei.entity.WatermarkConfig;
+import com.puxinheihei.util.ExportJournal;
 import com.puxinheihei.util.FileUtils;
+import com.puxinheihei.util.FontResolver;
+import com.puxinheihei.util.ImageCodec;
 import com.puxinheihei.util.ImageUtils;
+import com.puxinheihei.util.PixelBudget;
+import com.puxinheihei.util.RasterPool;
+import com.puxinheihei.util.TextStampCache;
 import javafx.embed.swing.SwingFXUtils;
 import javafx.scene.image.Image;
 import lombok.extern.slf4j.Slf4j;
@@ -11,38 +17,98 @@ import lombok.extern.slf4j.Slf4j;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 public class WatermarkService {
 
+    // 预览图长边的最小像素数，预览区域不会比这更宽
+    private static final int PREVIEW_SIZE = 1600;
+    // 缓存的绘制方案数，调整设置时新旧方案交替使用
+    private static final int MAX_RENDER_PLANS = 32;
+
+    // 所有导出共享同一份内存预算，并行导出超大图片时不会同时解码
+    private final PixelBudget pixelBudget = new PixelBudget(PixelBudget.defaultBudgetBytes());
+
+    // 预渲染的水印文字，预览和导出共用
+    private final TextStampCache stampCache = new TextStampCache(64, 64L * 1024 * 1024);
+    // 按字符选择字体，系统字体列表和字符覆盖索引只建立一次
+    private final FontResolver fontResolver = new FontResolver();
+
+    // 编译好的绘制方案（字体和颜色，不含图块），按配置中决定外观的字段查找，只保留最近使用的几个
+    private final Map<RenderPlan.Key, RenderPlan> renderPlans = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<RenderPlan.Key, RenderPlan> eldest) {
+            return size() > MAX_RENDER_PLANS;
+        }
+    };
+
+    // 原图无法直接绘制时使用的画布，导出用完后归还：保留透明通道的格式用 ARGB，JPEG 用 RGB。
+    // 空闲画布占用的内存计入导出的内存预算
+    private final RasterPool rasterPool = new RasterPool(BufferedImage.TYPE_INT_ARGB, 2, pixelBudget);
+    private final RasterPool opaqueRasterPool = new RasterPool(BufferedImage.TYPE_INT_RGB, 2, pixelBudget);
+
+    // 导出 JPEG 时的编码参数
+    private volatile ImageCodec.EncodeSettings encodeSettings = ImageCodec.EncodeSettings.DEFAULT;
+
+    // 当前选中图片的屏幕尺寸副本，切换图片时替换
+    private volatile PreviewProxy previewProxy;
+
+    // 最近一次叠加显示的图块及其 JavaFX 图片（只在 JavaFX 线程上访问）
+    private TextStampCache.TextStamp overlayStamp;
+    private Image overlayImage;
+
+    public ImageCodec.EncodeSettings getEncodeSettings() {
+        return encodeSettings;
+    }
+
+    /**
+     * 设置导出 JPEG 的质量、渐进式和色度抽样，在文件大小和编码时间之间取舍
+     */
+    public void setEncodeSettings(ImageCodec.EncodeSettings encodeSettings) {
+        this.encodeSettings = encodeSettings;
+    }
+
     /**
-     * 应用水印到预览图
+     * 在预览副本上合成水印，在渲染线程上调用
+     *
+     * 预览在屏幕尺寸的副本上绘制，副本只在第一次预览该图片时解码一次。
+     * 水印的位置、字号和边距仍按原图像素计算，再整体缩小到副本上，与导出结果一致。
+     * 同一张图片的后续合成只更新水印新旧位置覆盖的区域。
+     * 原图尺寸记录在 imageFile 的 width/height 中。
+     *
+     * @return 合成器，在 JavaFX 线程上调用其 publish 取得预览图；加载失败时返回 null
      */
-    public Image applyWatermarkToPreview(ImageFile imageFile, WatermarkConfig config) {
+    PreviewCompositor composePreview(ImageFile imageFile, WatermarkConfig config) {
         try {
             if (imageFile == null || config == null) {
                 log.warn("图片文件或水印配置为空");
                 return null;
             }
 
-            // 加载原图
-            File file = new File(imageFile.getFilePath());
-            BufferedImage originalImage = ImageUtils.loadImage(file);
-            if (originalImage == null) {
+            PreviewProxy proxy = previewProxyFor(imageFile);
+            if (proxy == null) {
                 log.error("无法加载图片: {}", imageFile.getFilePath());
                 return null;
             }
 
-            // 应用水印
-            BufferedImage watermarkedImage = applyWatermark(originalImage, config);
-            if (watermarkedImage == null) {
-                log.error("应用水印失败");
-                return null;
-            }
-
-            // 转换为JavaFX Image
-            return SwingFXUtils.toFXImage(watermarkedImage, null);
+            TextStampCache.TextStamp stamp = resolveStamp(config);
+            int[] position = calculateTextWatermarkPosition(proxy.sourceWidth, proxy.sourceHeight, config,
+                    stamp.getTextWidth(), stamp.getTextHeight());
+            proxy.compositor.compose(stamp, position[0], position[1]);
+            return proxy.compositor;
 
         } catch (Exception e) {
             log.error("应用水印到预览图失败: {}", imageFile.getFileName(), e);
@@ -51,7 +117,71 @@ public class WatermarkService {
     }
 
     /**
-     * 批量导出带水印的图片
+     * 释放预览副本（清空列表时调用）
+     */
+    public void releasePreview() {
+        previewProxy = null;
+    }
+
+    /**
+     * 取得不带水印的预览底图，用于拖动时配合 {@link #createOverlay} 显示
+     *
+     * @return 该图片的预览副本还没有加载时返回 null
+     */
+    public Image getPreviewBase(ImageFile imageFile) {
+        PreviewProxy proxy = previewProxy;
+        if (proxy == null || imageFile == null || !proxy.filePath.equals(imageFile.getFilePath())) {
+            return null;
+        }
+        return proxy.baseImage;
+    }
+
+    /**
+     * 计算水印图块及其在原图中的位置，界面将其作为单独的节点叠加在预览图上
+     *
+     * 字体度量和位置计算与导出使用同一套代码，叠加显示的位置和最终合成完全一致。
+     * 只在 JavaFX 线程上调用。
+     */
+    public Overlay createOverlay(int imageWidth, int imageHeight, WatermarkConfig config) {
+        TextStampCache.TextStamp stamp = resolveStamp(config);
+        int[] position = calculateTextWatermarkPosition(imageWidth, imageHeight, config,
+                stamp.getTextWidth(), stamp.getTextHeight());
+
+        // 拖动时图块不变，只转换一次
+        if (stamp != overlayStamp) {
+            overlayImage = SwingFXUtils.toFXImage(stamp.getImage(), null);
+            overlayStamp = stamp;
+        }
+        return new Overlay(overlayImage, stamp.getBounds(position[0], position[1]));
+    }
+
+    /**
+     * 取得图片的预览副本，不是当前缓存的图片（或文件已修改）时重新解码
+     */
+    private PreviewProxy previewProxyFor(ImageFile imageFile) throws IOException {
+        File file = new File(imageFile.getFilePath());
+        long modified = file.lastModified();
+        PreviewProxy proxy = previewProxy;
+        if (proxy != null && proxy.filePath.equals(imageFile.getFilePath()) && proxy.modified == modified) {
+            return proxy;
+        }
+
+        // 先释放旧副本，再解码新图片
+        previewProxy = null;
+        ImageCodec.Subsampled image = ImageCodec.readSubsampled(file, PREVIEW_SIZE);
+        if (image == null) {
+            return null;
+        }
+        // 底图在后台线程上转换好，拖动开始时界面线程直接使用
+        proxy = new PreviewProxy(imageFile.getFilePath(), modified, image.getSourceWidth(), image.getSourceHeight(),
+                SwingFXUtils.toFXImage(image.getImage(), null),
+                new PreviewCompositor(image.getImage(), image.getScale()));
+        previewProxy = proxy;
+        return proxy;
+    }
+
+    /**
+     * 批量导出带水印的图片，所有图片使用同一份配置，在线程池上并行导出，阻塞到全部完成
      */
     public int exportImages(List<ImageFile> imageFiles, File outputDir,
                             WatermarkConfig config, String outputFormat,
@@ -66,32 +196,37 @@ public class WatermarkService {
             return 0;
         }
 
-        int successCount = 0;
         int totalCount = imageFiles.size();
-
         log.info("开始导出 {} 张图片到: {}", totalCount, outputDir.getAbsolutePath());
 
-        for (int i = 0; i < imageFiles.size(); i++) {
-            ImageFile imageFile = imageFiles.get(i);
-
-            try {
-                boolean success = exportSingleImage(imageFile, outputDir, config, outputFormat, prefix, suffix);
-                if (success) {
-                    successCount++;
-                }
-
-                // 进度日志
-                if ((i + 1) % 10 == 0 || (i + 1) == totalCount) {
-                    log.info("导出进度: {}/{}", i + 1, totalCount);
-                }
-
-            } catch (Exception e) {
-                log.error("导出图片失败: {}", imageFile.getFileName(), e);
+        WatermarkConfig snapshot = config.copy();
+        ImageCodec.EncodeSettings settings = encodeSettings;
+        AtomicInteger successCount = new AtomicInteger();
+        AtomicInteger processedCount = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(ImageExporter.defaultThreads(), totalCount));
+        try {
+            for (ImageFile imageFile : imageFiles) {
+                workers.execute(() -> {
+                    if (exportSingleImage(imageFile, outputDir, snapshot, outputFormat, prefix, suffix, settings)) {
+                        successCount.incrementAndGet();
+                    }
+                    // 进度日志
+                    int processed = processedCount.incrementAndGet();
+                    if (processed % 10 == 0 || processed == totalCount) {
+                        log.info("导出进度: {}/{}", processed, totalCount);
+                    }
+                });
             }
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            workers.shutdownNow();
+            log.warn("批量导出被中断");
         }
 
-        log.info("导出完成: 成功 {}/{}", successCount, totalCount);
-        return successCount;
+        log.info("导出完成: 成功 {}/{}", successCount.get(), totalCount);
+        return successCount.get();
     }
 
     /**
@@ -100,48 +235,105 @@ public class WatermarkService {
     public boolean exportSingleImage(ImageFile imageFile, File outputDir,
                                      WatermarkConfig config, String outputFormat,
                                      String prefix, String suffix) {
+        return exportSingleImage(imageFile, outputDir, config, outputFormat, prefix, suffix, encodeSettings);
+    }
+
+    private boolean exportSingleImage(ImageFile imageFile, File outputDir,
+                                      WatermarkConfig config, String outputFormat,
+                                      String prefix, String suffix, ImageCodec.EncodeSettings settings) {
+        try {
+            exportImage(imageFile, outputDir, config, outputFormat, prefix, suffix, settings);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("导出被中断: {}", imageFile.getFileName());
+            return false;
+        } catch (Exception e) {
+            log.error("导出单张图片失败: {}", imageFile.getFileName(), e);
+            return false;
+        }
+    }
+
+    /**
+     * 导出单张带水印的图片，可以在任意线程上并行调用
+     *
+     * @param settings JPEG 编码参数（批量导出开始时取的快照）
+     * @return 输出文件
+     * @throws IOException 无法读取、绘制或保存时抛出，消息说明失败原因
+     */
+    File exportImage(ImageFile imageFile, File outputDir, WatermarkConfig config, String outputFormat,
+                     String prefix, String suffix, ImageCodec.EncodeSettings settings)
+            throws IOException, InterruptedException {
+        // 预留内存预算，预算不足时等待其他导出完成
+        File inputFile = new File(imageFile.getFilePath());
+        int reservation = pixelBudget.acquire(inputFile);
+        BufferedImage watermarkedImage = null;
         try {
             // 加载原图
-            File inputFile = new File(imageFile.getFilePath());
             BufferedImage originalImage = ImageUtils.loadImage(inputFile);
             if (originalImage == null) {
-                log.error("无法加载图片: {}", imageFile.getFilePath());
-                return false;
+                throw new IOException("无法加载图片: " + imageFile.getFilePath());
             }
 
             // 应用水印
-            BufferedImage watermarkedImage = applyWatermark(originalImage, config);
+            watermarkedImage = applyWatermark(originalImage, config, isJpeg(outputFormat));
             if (watermarkedImage == null) {
-                log.error("应用水印失败: {}", imageFile.getFileName());
-                return false;
+                throw new IOException("应用水印失败: " + imageFile.getFileName());
             }
 
-            // 生成输出文件名
-            String outputFileName = generateOutputFileName(imageFile.getFileName(), prefix, suffix, outputFormat);
-            File outputFile = new File(outputDir, outputFileName);
-
-            // 保存图片
-            boolean saveSuccess = ImageUtils.saveImage(watermarkedImage, outputFile, outputFormat);
-            if (saveSuccess) {
-                log.debug("成功导出图片: {}", outputFile.getName());
-            } else {
-                log.error("保存图片失败: {}", outputFile.getAbsolutePath());
+            // 先写到同一文件夹中的临时文件，完整写完后再移动到位，中途退出不会留下写了一半的图片
+            File outputFile = outputFileFor(imageFile, outputDir, outputFormat, prefix, suffix);
+            // 不用 Files.createTempFile：它创建的文件只有所有者可读写，移动后输出文件也会是这个权限
+            Path tempFile = outputDir.toPath().resolve(ExportJournal.TEMP_PREFIX
+                    + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ExportJournal.TEMP_SUFFIX);
+            try {
+                // 保存图片
+                boolean saveSuccess = ImageUtils.saveImage(watermarkedImage, tempFile.toFile(), outputFormat, settings);
+                if (!saveSuccess) {
+                    throw new IOException("保存图片失败: " + outputFile.getAbsolutePath());
+                }
+                moveIntoPlace(tempFile, outputFile.toPath());
+            } finally {
+                Files.deleteIfExists(tempFile);
             }
+            log.debug("成功导出图片: {}", outputFile.getName());
+            return outputFile;
+        } finally {
+            // 先归还这张图片的预算，画布放回池中时再按空闲缓冲区预留
+            pixelBudget.release(reservation);
+            rasterPool.release(watermarkedImage);
+            opaqueRasterPool.release(watermarkedImage);
+        }
+    }
 
-            return saveSuccess;
+    private static boolean isJpeg(String outputFormat) {
+        return "jpeg".equalsIgnoreCase(outputFormat) || "jpg".equalsIgnoreCase(outputFormat);
+    }
 
-        } catch (Exception e) {
-            log.error("导出单张图片失败: {}", imageFile.getFileName(), e);
-            return false;
+    /**
+     * 图片导出后的文件
+     */
+    File outputFileFor(ImageFile imageFile, File outputDir, String outputFormat, String prefix, String suffix) {
+        return new File(outputDir, generateOutputFileName(imageFile.getFileName(), prefix, suffix, outputFormat));
+    }
+
+    /**
+     * 把写完的临时文件移动为输出文件，替换已有的同名文件；文件系统不支持原子移动时退回普通移动
+     */
+    private static void moveIntoPlace(Path tempFile, Path outputFile) throws IOException {
+        try {
+            Files.move(tempFile, outputFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile, outputFile, StandardCopyOption.REPLACE_EXISTING);
         }
     }
 
     /**
      * 应用水印到BufferedImage
      */
-    private BufferedImage applyWatermark(BufferedImage originalImage, WatermarkConfig config) {
+    private BufferedImage applyWatermark(BufferedImage originalImage, WatermarkConfig config, boolean opaque) {
         try {
-            return applyTextWatermark(originalImage, config);
+            return applyTextWatermark(originalImage, config, opaque);
         } catch (Exception e) {
             log.error("应用水印失败", e);
             return null;
@@ -149,107 +341,114 @@ public class WatermarkService {
     }
 
     /**
-     * 应用文本水印
+     * 应用文本水印，直接绘制成输出格式需要的像素类型，保存时不再转换
+     *
+     * 原图每次都是新加载的，可以直接绘制时就在原图上绘制：
+     * <ul>
+     *     <li>输出 JPEG（opaque）：不透明的 RGB 原图（JPEG 解码结果通常是 TYPE_3BYTE_BGR）直接绘制；
+     *     其他类型铺上白色背景后复制到画布池中的 TYPE_INT_RGB 画布上；</li>
+     *     <li>其他格式保留透明通道：RGB/ARGB 原图直接绘制，其他类型复制到 TYPE_INT_ARGB 画布上。</li>
+     * </ul>
+     * 返回的图片用完后归还给画布池。
      */
-    private BufferedImage applyTextWatermark(BufferedImage originalImage, WatermarkConfig config) {
+    private BufferedImage applyTextWatermark(BufferedImage originalImage, WatermarkConfig config, boolean opaque) {
         try {
-            // 创建带透明通道的图像
-            BufferedImage watermarkedImage = new BufferedImage(
-                    originalImage.getWidth(), originalImage.getHeight(), BufferedImage.TYPE_INT_ARGB
-            );
-
-            Graphics2D g2d = watermarkedImage.createGraphics();
-
-            // 设置渲染质量
-            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-            g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
-
-            // 绘制原图
-            g2d.drawImage(originalImage, 0, 0, null);
-
-            // 创建字体 - 支持中文
-            Font font;
-            try {
-                // 尝试创建指定字体
-                font = new Font(config.getFontFamily(), Font.PLAIN, (int) config.getFontSize());
-
-                // 简化字体检测：直接检查是否能显示文本
-                if (font.canDisplayUpTo(config.getText()) != -1) {
-                    System.out.println("字体 '" + config.getFontFamily() + "' 可能不支持文本，使用微软雅黑");
-                    font = new Font("Microsoft YaHei", Font.PLAIN, (int) config.getFontSize());
-                }
-            } catch (Exception e) {
-                System.out.println("字体创建失败，使用默认字体: " + e.getMessage());
-                font = new Font("Microsoft YaHei", Font.PLAIN, (int) config.getFontSize());
+            BufferedImage watermarkedImage;
+            Graphics2D g2d;
+            if (opaque ? ImageUtils.isOpaqueRgb(originalImage) : ImageUtils.isDrawableInPlace(originalImage)) {
+                watermarkedImage = originalImage;
+                g2d = watermarkedImage.createGraphics();
+            } else if (opaque) {
+                watermarkedImage = opaqueRasterPool.acquire(originalImage.getWidth(), originalImage.getHeight());
+                g2d = watermarkedImage.createGraphics();
+                // 透明的部分显示为白色，与之前保存 JPEG 时的处理相同；同时覆盖上一张图片留下的内容
+                g2d.setColor(Color.WHITE);
+                g2d.fillRect(0, 0, originalImage.getWidth(), originalImage.getHeight());
+                g2d.drawImage(originalImage, 0, 0, null);
+            } else {
+                watermarkedImage = rasterPool.acquire(originalImage.getWidth(), originalImage.getHeight());
+                g2d = watermarkedImage.createGraphics();
+                // 画布是复用的，用 Src 规则整体覆盖上一张图片留下的内容
+                g2d.setComposite(AlphaComposite.Src);
+                g2d.drawImage(originalImage, 0, 0, null);
+                g2d.setComposite(AlphaComposite.SrcOver);
             }
 
-            // 将JavaFX Color转换为AWT Color
-            java.awt.Color awtColor = new java.awt.Color(
-                    (float) config.getTextColor().getRed(),
-                    (float) config.getTextColor().getGreen(),
-                    (float) config.getTextColor().getBlue(),
-                    (float) config.getTextColor().getOpacity()
-            );
+            drawTextWatermark(g2d, originalImage.getWidth(), originalImage.getHeight(), config);
+            g2d.dispose();
+            return watermarkedImage;
 
-            // 设置水印样式
-            g2d.setFont(font);
-            g2d.setColor(awtColor);
+        } catch (Exception e) {
+            log.error("应用文本水印失败", e);
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-            // 设置透明度
-            AlphaComposite alphaComposite = AlphaComposite.getInstance(AlphaComposite.SRC_OVER, (float) config.getTextOpacity());
-            g2d.setComposite(alphaComposite);
+    /**
+     * 在画布上绘制文本水印，坐标按 imageWidth x imageHeight 的原图计算
+     */
+    private void drawTextWatermark(Graphics2D g2d, int imageWidth, int imageHeight, WatermarkConfig config) {
+        // 设置渲染质量
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
 
-            // 计算位置 - 获取文本尺寸
-            FontMetrics metrics = g2d.getFontMetrics(font);
-            int textWidth = metrics.stringWidth(config.getText());
-            int textHeight = metrics.getHeight();
+        TextStampCache.TextStamp stamp = resolveStamp(config);
 
-            int[] position = calculateTextWatermarkPosition(originalImage, config, textWidth, textHeight);
-            int x = position[0];
-            int y = position[1];
+        // 计算位置 - 获取文本尺寸
+        int textWidth = stamp.getTextWidth();
+        int textHeight = stamp.getTextHeight();
 
-            System.out.println("绘制文本: '" + config.getText() + "'");
-            System.out.println("字体: " + font.getFontName() + ", 大小: " + font.getSize());
-            System.out.println("文本尺寸: " + textWidth + "x" + textHeight);
-            System.out.println("绘制位置: (" + x + ", " + y + ")");
+        int[] position = calculateTextWatermarkPosition(imageWidth, imageHeight, config, textWidth, textHeight);
+        int x = position[0];
+        int y = position[1];
 
-            // 绘制文本水印
-            g2d.drawString(config.getText(), x, y);
+        log.debug("绘制文本 '{}'，尺寸 {}x{}，位置 ({}, {})", config.getText(), textWidth, textHeight, x, y);
 
-            g2d.dispose();
+        // 绘制文本水印
+        stamp.drawAt(g2d, x, y);
+    }
 
-            System.out.println("文本水印绘制完成");
-            return watermarkedImage;
+    /**
+     * 按配置取得光栅化的水印文字（字体、颜色、透明度）
+     */
+    private TextStampCache.TextStamp resolveStamp(WatermarkConfig config) {
+        return renderPlanFor(config).stampFrom(stampCache);
+    }
 
-        } catch (Exception e) {
-            log.error("应用文本水印失败", e);
-            e.printStackTrace();
-            return null;
+    /**
+     * 取得配置对应的绘制方案，外观相同的配置只编译一次
+     */
+    private RenderPlan renderPlanFor(WatermarkConfig config) {
+        RenderPlan.Key key = new RenderPlan.Key(config);
+        synchronized (renderPlans) {
+            RenderPlan plan = renderPlans.get(key);
+            if (plan != null) {
+                return plan;
+            }
         }
+        // 在锁外编译，偶尔重复编译同一配置不影响结果
+        RenderPlan plan = RenderPlan.compile(config, fontResolver);
+        synchronized (renderPlans) {
+            renderPlans.put(key, plan);
+        }
+        return plan;
     }
 
     /**
      * 计算文本水印位置
      */
-    private int[] calculateTextWatermarkPosition(BufferedImage originalImage, WatermarkConfig config, int textWidth, int textHeight) {
-        int imageWidth = originalImage.getWidth();
-        int imageHeight = originalImage.getHeight();
-
-        System.out.println("图片尺寸: " + imageWidth + "x" + imageHeight);
-        System.out.println("配置位置: " + config.getPosition());
-
+    private int[] calculateTextWatermarkPosition(int imageWidth, int imageHeight, WatermarkConfig config,
+                                                 int textWidth, int textHeight) {
         // 如果有自定义位置，使用自定义位置
         if (config.getPosition() == WatermarkConfig.Position.CUSTOM) {
             int x = (int) Math.max(10, Math.min(config.getCustomX(), imageWidth - textWidth));
             int y = (int) Math.max(textHeight, Math.min(config.getCustomY(), imageHeight - 10));
-            System.out.println("自定义位置: " + x + ", " + y);
             return new int[]{x, y};
         }
 
         // 计算预设位置
-        int[] position = calculatePresetPosition(imageWidth, imageHeight, config.getPosition(), textWidth, textHeight);
-        System.out.println("预设位置: " + position[0] + ", " + position[1]);
-        return position;
+        return calculatePresetPosition(imageWidth, imageHeight, config.getPosition(), textWidth, textHeight);
     }
 
     /**
@@ -326,4 +525,47 @@ public class WatermarkService {
         }
         return config.getText() != null && !config.getText().trim().isEmpty();
     }
-}
\ No newline at end of file
+
+    /**
+     * 叠加显示的水印：图块及其在原图中覆盖的像素范围
+     */
+    public static final class Overlay {
+        private final Image image;
+        private final Rectangle bounds;
+
+        private Overlay(Image image, Rectangle bounds) {
+            this.image = image;
+            this.bounds = bounds;
+        }
+
+        public Image getImage() {
+            return image;
+        }
+
+        public Rectangle getBounds() {
+            return bounds;
+        }
+    }
+
+    /**
+     * 预览副本及其来源文件
+     */
+    private static final class PreviewProxy {
+        private final String filePath;
+        private final long modified;
+        private final int sourceWidth;
+        private final int sourceHeight;
+        private final Image baseImage;
+        private final PreviewCompositor compositor;
+
+        private PreviewProxy(String filePath, long modified, int sourceWidth, int sourceHeight,
+                             Image baseImage, PreviewCompositor compositor) {
+            this.filePath = filePath;
+            this.modified = modified;
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+            this.baseImage = baseImage;
+            this.compositor = compositor;
+        }
+    }
+}
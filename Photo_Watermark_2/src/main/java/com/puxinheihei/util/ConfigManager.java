@@ -8,6 +8,7 @@ import lombok.extern.slf4j.Slf4j;
 
 import java.io.File;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 
@@ -38,6 +39,13 @@ public class ConfigManager {
         }
     }
 
+    /**
+     * 配置目录，缩略图缓存等也保存在这里
+     */
+    public static Path getConfigDir() {
+        return Paths.get(CONFIG_DIR);
+    }
+
     public static void saveTemplate(WatermarkTemplate template) {
         try {
             List<WatermarkTemplate> templates = loadAllTemplates();
@@ -0,0 +1,141 @@
+package com.puxinheihei.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * 读取 JPEG 中 EXIF 自带的缩略图
+ *
+ * 相机拍摄的 JPEG 通常在 EXIF（APP1 段）的 IFD1 中附带一张约 160x120 的 JPEG 小图。
+ * APP 段位于文件开头、图像数据之前，最长 64 KB，只需读取文件开头的几十 KB，不解码原图。
+ */
+public final class ExifThumbnail {
+
+    private static final int SOI = 0xFFD8;
+    private static final int APP1 = 0xFFE1;
+    private static final int SOS = 0xFFDA;
+    private static final int EOI = 0xFFD9;
+
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    private static final int TAG_COMPRESSION = 0x0103;
+    private static final int TAG_JPEG_OFFSET = 0x0201;
+    private static final int TAG_JPEG_LENGTH = 0x0202;
+    // IFD1 中 Compression 为 6 表示缩略图是 JPEG
+    private static final int COMPRESSION_JPEG = 6;
+
+    private ExifThumbnail() {
+    }
+
+    /**
+     * 读取内嵌的 JPEG 缩略图
+     *
+     * @return 缩略图的 JPEG 数据，不是 JPEG、没有 EXIF 或 EXIF 中没有 JPEG 缩略图时返回 null
+     */
+    public static byte[] read(File file) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 16 * 1024))) {
+            if (input.readUnsignedShort() != SOI) {
+                return null;
+            }
+            while (true) {
+                int marker = input.readUnsignedShort();
+                // 到达图像数据仍未找到，或文件结构不对
+                if ((marker & 0xFF00) != 0xFF00 || marker == SOS || marker == EOI) {
+                    return null;
+                }
+                int length = input.readUnsignedShort() - 2;
+                if (length < 0) {
+                    return null;
+                }
+                if (marker == APP1 && length > EXIF_HEADER.length) {
+                    byte[] segment = new byte[length];
+                    input.readFully(segment);
+                    if (startsWith(segment, EXIF_HEADER)) {
+                        return parse(segment);
+                    }
+                    // 其他 APP1 段（如 XMP），继续查找
+                } else {
+                    input.skipNBytes(length);
+                }
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 从 APP1 段中解析 IFD1 的缩略图
+     */
+    private static byte[] parse(byte[] segment) {
+        // TIFF 结构从 "Exif\0\0" 之后开始，其中的偏移量都相对于 TIFF 头
+        ByteBuffer tiff = ByteBuffer.wrap(segment, EXIF_HEADER.length, segment.length - EXIF_HEADER.length).slice();
+        try {
+            if (tiff.get(0) == 'I' && tiff.get(1) == 'I') {
+                tiff.order(ByteOrder.LITTLE_ENDIAN);
+            } else if (tiff.get(0) != 'M' || tiff.get(1) != 'M') {
+                return null;
+            }
+            if (tiff.getShort(2) != 42) {
+                return null;
+            }
+            // 跳过 IFD0，它的末尾是 IFD1 的偏移量
+            int ifd0 = tiff.getInt(4);
+            int ifd1 = tiff.getInt(ifd0 + 2 + (tiff.getShort(ifd0) & 0xFFFF) * 12);
+            if (ifd1 <= 0) {
+                return null;
+            }
+
+            int count = tiff.getShort(ifd1) & 0xFFFF;
+            int offset = -1;
+            int length = -1;
+            for (int i = 0; i < count; i++) {
+                int entry = ifd1 + 2 + i * 12;
+                int tag = tiff.getShort(entry) & 0xFFFF;
+                if (tag == TAG_COMPRESSION && valueOf(tiff, entry) != COMPRESSION_JPEG) {
+                    return null;
+                } else if (tag == TAG_JPEG_OFFSET) {
+                    offset = valueOf(tiff, entry);
+                } else if (tag == TAG_JPEG_LENGTH) {
+                    length = valueOf(tiff, entry);
+                }
+            }
+            if (offset <= 0 || length <= 4 || offset > tiff.limit() - length) {
+                return null;
+            }
+            int start = EXIF_HEADER.length + offset;
+            // 缩略图本身也必须是完整的 JPEG
+            if ((segment[start] & 0xFF) != 0xFF || (segment[start + 1] & 0xFF) != 0xD8) {
+                return null;
+            }
+            return Arrays.copyOfRange(segment, start, start + length);
+        } catch (IndexOutOfBoundsException e) {
+            // 偏移量超出段的范围，EXIF 已损坏
+            return null;
+        }
+    }
+
+    /**
+     * 读取只有一个值的 SHORT 或 LONG 类型条目
+     */
+    private static int valueOf(ByteBuffer tiff, int entry) {
+        int type = tiff.getShort(entry + 2) & 0xFFFF;
+        // 3 = SHORT，值在值域的前两个字节；其余按 LONG 读取
+        return type == 3 ? tiff.getShort(entry + 8) & 0xFFFF : tiff.getInt(entry + 8);
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,271 @@
+package com.puxinheihei.util;
+
+import com.puxinheihei.entity.WatermarkConfig;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 导出日志，用于中断后继续导出
+ *
+ * 日志保存在输出文件夹中（制表符分隔的文本），每导出完成一张图片追加一行：
+ * 源文件路径、大小、修改时间、导出参数指纹、输出文件名。
+ * 再次导出到同一文件夹时，源文件没有变化、参数相同且输出文件仍然存在的图片直接跳过，
+ * 程序中途退出后重新导出只会处理未完成的图片。
+ *
+ * 每条记录写入后立即刷新，异常退出最多丢失正在写的那一行；{@link #close()} 时重写为每张图片一行的紧凑格式。
+ * 输出文件先写到同一文件夹中的临时文件（{@link #TEMP_PREFIX} 开头），写完后再原子地移动到位，
+ * 打开日志时清理上次中断留下的临时文件。
+ */
+@Slf4j
+public class ExportJournal implements Closeable {
+
+    public static final String FILE_NAME = ".export_journal";
+    // 导出时的临时文件名前缀和后缀
+    public static final String TEMP_PREFIX = ".export-";
+    public static final String TEMP_SUFFIX = ".part";
+
+    private static final String HEADER = "#path\tsize\tmtime\tparams\toutput";
+
+    private final Path journalFile;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private BufferedWriter appender;
+
+    private ExportJournal(Path outputDir) {
+        this.journalFile = outputDir.resolve(FILE_NAME);
+    }
+
+    /**
+     * 打开输出文件夹中的日志，不存在时创建空日志
+     */
+    public static ExportJournal open(File outputDir) throws IOException {
+        ExportJournal journal = new ExportJournal(outputDir.toPath().toAbsolutePath().normalize());
+        journal.deleteStaleTempFiles();
+        journal.load();
+        return journal;
+    }
+
+    /**
+     * 导出参数指纹：水印配置、输出格式和 JPEG 编码参数，任何一项变化都需要重新导出
+     */
+    public static String fingerprint(WatermarkConfig config, String outputFormat,
+                                     ImageCodec.EncodeSettings encodeSettings) {
+        String params = "text=" + config.getText()
+                + ";font=" + config.getFontFamily()
+                + ";size=" + config.getFontSize()
+                + ";color=" + config.getTextColorHex()
+                + ";opacity=" + config.getTextOpacity()
+                + ";position=" + config.getPosition()
+                + ";x=" + config.getCustomX()
+                + ";y=" + config.getCustomY()
+                + ";format=" + outputFormat.toLowerCase()
+                + ";quality=" + encodeSettings.getQuality()
+                + ";progressive=" + encodeSettings.isProgressive()
+                + ";subsampling=" + encodeSettings.getSubsampling();
+        return toHex(sha256(params.getBytes(StandardCharsets.UTF_8))).substring(0, 16);
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(journalFile)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 5) {
+                    continue;
+                }
+                try {
+                    // 后出现的记录覆盖前面的记录
+                    entries.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            fields[3], fields[4]));
+                } catch (NumberFormatException e) {
+                    // 跳过损坏的行（例如异常退出时写了一半的最后一行）
+                }
+            }
+        }
+    }
+
+    /**
+     * 删除上次中断时留下的临时文件
+     */
+    private void deleteStaleTempFiles() {
+        Path dir = journalFile.getParent();
+        try (DirectoryStream<Path> temps = Files.newDirectoryStream(dir, TEMP_PREFIX + "*" + TEMP_SUFFIX)) {
+            for (Path temp : temps) {
+                Files.deleteIfExists(temp);
+                log.info("删除未完成的导出文件: {}", temp.getFileName());
+            }
+        } catch (IOException e) {
+            log.warn("清理临时文件失败: {}", dir, e);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * 判断图片是否已经用同样的参数导出过
+     *
+     * @param params {@link #fingerprint} 的结果
+     */
+    public boolean isExported(File sourceFile, String params, File outputFile) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(keyOf(sourceFile));
+        }
+        if (entry == null || !entry.params.equals(params)
+                || !entry.output.equals(outputFile.getName()) || !outputFile.exists()) {
+            return false;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(sourceFile.toPath(), BasicFileAttributes.class);
+            return attributes.size() == entry.size && attributes.lastModifiedTime().toMillis() == entry.modified;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 读取源文件的大小和修改时间，在读取图片之前调用
+     *
+     * 导出期间源文件被修改时，日志中记下的是导出前的状态，下次导出能发现变化。
+     */
+    public static SourceState captureSource(File sourceFile) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(sourceFile.toPath(), BasicFileAttributes.class);
+        return new SourceState(attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * 记录导出完成的图片，在输出文件移动到位之后调用
+     *
+     * @param source 导出前用 {@link #captureSource} 取得的源文件状态
+     */
+    public void recordExported(File sourceFile, SourceState source, String params, File outputFile) {
+        String key = keyOf(sourceFile);
+        if (key.indexOf('\t') >= 0 || key.indexOf('\n') >= 0 || key.indexOf('\r') >= 0) {
+            // 无法写入制表符分隔的日志，这类文件每次都会重新导出
+            return;
+        }
+        try {
+            record(key, new Entry(source.size, source.modified, params, outputFile.getName()));
+        } catch (IOException e) {
+            log.warn("无法记录 {} 的导出状态", sourceFile.getName(), e);
+        }
+    }
+
+    private synchronized void record(String key, Entry entry) throws IOException {
+        entries.put(key, entry);
+        if (appender == null) {
+            boolean exists = Files.exists(journalFile);
+            appender = Files.newBufferedWriter(journalFile, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            if (!exists) {
+                appender.write(HEADER);
+                appender.newLine();
+            }
+        }
+        appender.write(format(key, entry));
+        appender.newLine();
+        // 每张图片的导出耗时远大于一次刷新，逐条刷新
+        appender.flush();
+    }
+
+    /**
+     * 关闭追加写入，并将日志重写为紧凑格式
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (appender == null) {
+            return;
+        }
+        appender.close();
+        appender = null;
+
+        Path temp = journalFile.resolveSibling(FILE_NAME + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writer.write(format(entry.getKey(), entry.getValue()));
+                writer.newLine();
+            }
+        }
+        Files.move(temp, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String keyOf(File sourceFile) {
+        return sourceFile.getAbsolutePath();
+    }
+
+    private static String format(String key, Entry entry) {
+        return key + "\t" + entry.size + "\t" + entry.modified + "\t" + entry.params + "\t" + entry.output;
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 不可用", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0x0F, 16)).append(Character.forDigit(b & 0x0F, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * 导出前读取的源文件状态
+     */
+    public static final class SourceState {
+        private final long size;
+        private final long modified;
+
+        private SourceState(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * 日志中一张图片的记录
+     */
+    private static final class Entry {
+        private final long size;
+        private final long modified;
+        private final String params;
+        private final String output;
+
+        private Entry(long size, long modified, String params, String output) {
+            this.size = size;
+            this.modified = modified;
+            this.params = params;
+            this.output = output;
+        }
+    }
+}
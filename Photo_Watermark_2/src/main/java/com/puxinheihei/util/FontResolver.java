@@ -0,0 +1,301 @@
+package com.puxinheihei.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.awt.*;
+import java.awt.font.TextAttribute;
+import java.text.AttributedString;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按字符选择字体
+ *
+ * 水印文字可能混合中文、英文和其他文字，指定的字体不一定包含所有字符；字体没有安装时
+ * new Font 还会静默换成 Dialog（例如 Linux 上没有微软雅黑），中文全部显示成方块。
+ * 这里把文字切分为连续的段，每段使用第一个能显示其中字符的字体：先用指定字体，
+ * 它不支持的字符按回退列表（常见中文字体优先，然后是系统中的其他字体）查找。
+ *
+ * 系统字体列表只在第一次使用时读取一次。每个字符选中的回退字体记录在覆盖索引中，
+ * 之后遇到同一字符不再逐个字体检查；切分结果按（文字, 字体, 样式, 字号）缓存，
+ * 重复绘制同一段文字时与只有英文的文字一样只是一次查找。可以在多个线程上同时使用。
+ */
+@Slf4j
+public class FontResolver {
+
+    // 回退时优先使用的字体（按顺序），没有安装的跳过
+    private static final String[] PREFERRED_FALLBACKS = {
+            "Microsoft YaHei", "PingFang SC", "Hiragino Sans GB", "Noto Sans CJK SC", "Noto Sans SC",
+            "Source Han Sans SC", "Source Han Sans CN", "WenQuanYi Micro Hei", "WenQuanYi Zen Hei",
+            "Droid Sans Fallback", "SimHei", "SimSun", "Arial Unicode MS"
+    };
+    // 逻辑字体，系统中总是存在，可能通过系统配置映射到多种字体
+    private static final String DEFAULT_FAMILY = Font.DIALOG;
+    private static final int MAX_CACHED_TEXTS = 256;
+
+    // 没有任何字体能显示该字符（覆盖索引中的占位值）
+    private static final Font NO_FONT = new Font(DEFAULT_FAMILY, Font.PLAIN, 1);
+
+    // 系统字体，第一次使用时读取
+    private volatile Fonts fonts;
+    // 字符 -> 能显示它的第一个回退字体（字号为 1，使用时再派生）
+    private final Map<Integer, Font> coverage = new ConcurrentHashMap<>();
+    private final LinkedHashMap<Key, ResolvedText> resolved = new LinkedHashMap<>(64, 0.75f, true);
+
+    /**
+     * 切分文字，取得每段使用的字体
+     *
+     * @param family 指定的字体，没有安装时使用第一个已安装的常见中文字体，都没有时使用 Dialog
+     */
+    public ResolvedText resolve(String text, String family, int style, int size) {
+        Key key = new Key(text, family, style, size);
+        synchronized (resolved) {
+            ResolvedText cached = resolved.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        // 在锁外切分，偶尔重复切分同一段文字不影响结果
+        ResolvedText result = split(text, primaryFont(family, style, size));
+        synchronized (resolved) {
+            resolved.put(key, result);
+            if (resolved.size() > MAX_CACHED_TEXTS) {
+                resolved.remove(resolved.keySet().iterator().next());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 字体是否已安装（new Font 对未安装的字体不会报错）
+     */
+    public boolean isInstalled(String family) {
+        return family != null && fonts().families.contains(family.toLowerCase(Locale.ROOT));
+    }
+
+    private Font primaryFont(String family, int style, int size) {
+        if (isInstalled(family)) {
+            return new Font(family, style, size);
+        }
+        Fonts installed = fonts();
+        String substitute = installed.preferred.isEmpty() ? DEFAULT_FAMILY : installed.preferred.get(0).getFamily(Locale.ENGLISH);
+        log.debug("字体 '{}' 未安装，使用 '{}'", family, substitute);
+        return new Font(substitute, style, size);
+    }
+
+    private ResolvedText split(String text, Font primary) {
+        List<Integer> starts = new ArrayList<>();
+        List<Font> runFonts = new ArrayList<>();
+        // 回退字体按需派生为目标样式和字号
+        Map<Font, Font> derived = new HashMap<>();
+        Font current = null;
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            Font font;
+            if (primary.canDisplay(codePoint)) {
+                font = primary;
+            } else if (current != null && Character.isWhitespace(codePoint)) {
+                // 空白跟随前面的段，不单独切分
+                font = current;
+            } else {
+                Font fallback = fallbackFor(codePoint);
+                font = fallback == NO_FONT ? primary
+                        : derived.computeIfAbsent(fallback, base -> base.deriveFont(primary.getStyle(), primary.getSize2D()));
+            }
+            if (font != current) {
+                starts.add(i);
+                runFonts.add(font);
+                current = font;
+            }
+            i += Character.charCount(codePoint);
+        }
+        return new ResolvedText(text, primary, starts.stream().mapToInt(Integer::intValue).toArray(),
+                runFonts.toArray(new Font[0]));
+    }
+
+    /**
+     * 从覆盖索引中查找能显示该字符的回退字体，没有记录时按回退顺序检查一次
+     */
+    private Font fallbackFor(int codePoint) {
+        return coverage.computeIfAbsent(codePoint, cp -> {
+            Fonts installed = fonts();
+            for (Font font : installed.preferred) {
+                if (font.canDisplay(cp)) {
+                    return font;
+                }
+            }
+            for (Font font : installed.others) {
+                if (font.canDisplay(cp)) {
+                    return font;
+                }
+            }
+            log.debug("没有字体能显示字符 U+{}", Integer.toHexString(cp).toUpperCase());
+            return NO_FONT;
+        });
+    }
+
+    private Fonts fonts() {
+        Fonts loaded = fonts;
+        if (loaded == null) {
+            synchronized (this) {
+                loaded = fonts;
+                if (loaded == null) {
+                    loaded = Fonts.load();
+                    fonts = loaded;
+                }
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * 系统字体列表
+     */
+    private static final class Fonts {
+        // 小写的字体名（英文名和本地化名称），用于判断是否安装
+        private final Set<String> families;
+        // 已安装的优先回退字体，按 PREFERRED_FALLBACKS 的顺序
+        private final List<Font> preferred;
+        // 其他字体，最后是逻辑字体
+        private final List<Font> others;
+
+        private Fonts(Set<String> families, List<Font> preferred, List<Font> others) {
+            this.families = families;
+            this.preferred = preferred;
+            this.others = others;
+        }
+
+        static Fonts load() {
+            long start = System.nanoTime();
+            GraphicsEnvironment environment = GraphicsEnvironment.getLocalGraphicsEnvironment();
+            // 默认列表使用本地化名称（中文 Windows 上微软雅黑列为“微软雅黑”），界面和回退列表用英文名，两种都记下
+            String[] names = environment.getAvailableFontFamilyNames(Locale.ENGLISH);
+            Set<String> families = new HashSet<>();
+            for (String name : names) {
+                families.add(name.toLowerCase(Locale.ROOT));
+            }
+            for (String name : environment.getAvailableFontFamilyNames()) {
+                families.add(name.toLowerCase(Locale.ROOT));
+            }
+
+            List<Font> preferred = new ArrayList<>();
+            Set<String> used = new HashSet<>();
+            for (String name : PREFERRED_FALLBACKS) {
+                if (families.contains(name.toLowerCase(Locale.ROOT))) {
+                    preferred.add(new Font(name, Font.PLAIN, 1));
+                    used.add(name.toLowerCase(Locale.ROOT));
+                }
+            }
+            List<String> logical = Arrays.asList(Font.DIALOG, Font.SANS_SERIF, Font.SERIF,
+                    Font.MONOSPACED, Font.DIALOG_INPUT);
+            List<Font> others = new ArrayList<>();
+            for (String name : names) {
+                if (!used.contains(name.toLowerCase(Locale.ROOT)) && !logical.contains(name)) {
+                    others.add(new Font(name, Font.PLAIN, 1));
+                }
+            }
+            others.add(new Font(DEFAULT_FAMILY, Font.PLAIN, 1));
+
+            log.info("读取系统字体 {} 个（{} 个常用中文字体），耗时 {} ms", names.length, preferred.size(),
+                    (System.nanoTime() - start) / 1_000_000);
+            return new Fonts(families, preferred, others);
+        }
+    }
+
+    /**
+     * 切分后的文字，不可变
+     */
+    public static final class ResolvedText {
+        private final String text;
+        private final Font primaryFont;
+        // 每段的起始位置（char 下标）和字体
+        private final int[] runStarts;
+        private final Font[] runFonts;
+
+        private ResolvedText(String text, Font primaryFont, int[] runStarts, Font[] runFonts) {
+            this.text = text;
+            this.primaryFont = primaryFont;
+            this.runStarts = runStarts;
+            this.runFonts = runFonts;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * 实际使用的主字体（指定字体没有安装时为替代字体）
+         */
+        public Font getPrimaryFont() {
+            return primaryFont;
+        }
+
+        /**
+         * 整段文字都使用主字体
+         */
+        public boolean isSingleFont() {
+            return runFonts.length == 0 || (runFonts.length == 1 && runFonts[0] == primaryFont);
+        }
+
+        public int getRunCount() {
+            return runFonts.length;
+        }
+
+        public Font getRunFont(int index) {
+            return runFonts[index];
+        }
+
+        /**
+         * 按段设置字体的文字，用于 TextLayout；每次返回新的实例
+         */
+        public AttributedString toAttributedString() {
+            AttributedString attributed = new AttributedString(text);
+            for (int i = 0; i < runFonts.length; i++) {
+                int end = i + 1 < runStarts.length ? runStarts[i + 1] : text.length();
+                attributed.addAttribute(TextAttribute.FONT, runFonts[i], runStarts[i], end);
+            }
+            return attributed;
+        }
+    }
+
+    private static final class Key {
+        private final String text;
+        private final String family;
+        private final int style;
+        private final int size;
+
+        private Key(String text, String family, int style, int size) {
+            this.text = text;
+            this.family = family;
+            this.style = style;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return style == key.style && size == key.size
+                    && Objects.equals(text, key.text) && Objects.equals(family, key.family);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(text, family, style, size);
+        }
+    }
+}
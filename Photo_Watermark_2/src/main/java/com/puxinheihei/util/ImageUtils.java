@@ -1,7 +1,6 @@
 package com.puxinheihei.util;
 
 import lombok.extern.slf4j.Slf4j;
-import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
@@ -12,7 +11,7 @@ public class ImageUtils {
 
     public static BufferedImage loadImage(File file) {
         try {
-            return ImageIO.read(file);
+            return ImageCodec.read(file);
         } catch (IOException e) {
             log.error("Error loading image: {}", file.getAbsolutePath(), e);
             return null;
@@ -20,9 +19,19 @@ public class ImageUtils {
     }
 
     public static boolean saveImage(BufferedImage image, File outputFile, String format) {
+        return saveImage(image, outputFile, format, ImageCodec.EncodeSettings.DEFAULT);
+    }
+
+    /**
+     * 保存图片，JPEG 按给定的质量、渐进式和色度抽样编码
+     *
+     * 不透明的 RGB 和灰度图片直接交给 JPEG 编码器，其他类型先转换为白色背景的 RGB 图片。
+     */
+    public static boolean saveImage(BufferedImage image, File outputFile, String format,
+                                    ImageCodec.EncodeSettings encodeSettings) {
         try {
             String formatName = format.toUpperCase();
-            if ("JPEG".equals(formatName)) {
+            if ("JPEG".equals(formatName) && !isJpegCompatible(image)) {
                 // 对于JPEG格式，确保图像没有透明通道
                 BufferedImage rgbImage = new BufferedImage(
                         image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB
@@ -32,9 +41,9 @@ public class ImageUtils {
                 g.fillRect(0, 0, image.getWidth(), image.getHeight());
                 g.drawImage(image, 0, 0, null);
                 g.dispose();
-                return ImageIO.write(rgbImage, "JPEG", outputFile);
+                return ImageCodec.write(rgbImage, "JPEG", outputFile, encodeSettings);
             } else {
-                return ImageIO.write(image, formatName, outputFile);
+                return ImageCodec.write(image, formatName, outputFile, encodeSettings);
             }
         } catch (IOException e) {
             log.error("Error saving image: {}", outputFile.getAbsolutePath(), e);
@@ -61,13 +70,50 @@ public class ImageUtils {
         return thumbnail;
     }
 
+    /**
+     * 能否直接在图片上绘制水印：8 位 RGB / ARGB 图片。灰度、调色板等类型需要先复制
+     */
+    public static boolean isDrawableInPlace(BufferedImage image) {
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_BGR:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 没有透明通道、可以直接绘制的 RGB 图片
+     */
+    public static boolean isOpaqueRgb(BufferedImage image) {
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_BGR:
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * JPEG 编码器可以直接写出、不需要先转换的图片：不透明的 RGB 或灰度
+     */
+    private static boolean isJpegCompatible(BufferedImage image) {
+        return isOpaqueRgb(image) || image.getType() == BufferedImage.TYPE_BYTE_GRAY;
+    }
+
+    /**
+     * 绘制文字水印。可以直接绘制的图片会被原地修改并返回，否则返回 ARGB 副本
+     */
     public static BufferedImage applyTextWatermark(BufferedImage originalImage, String text,
                                                    Font font, Color color, float opacity,
                                                    int x, int y) {
-        // 创建带透明通道的图像
-        BufferedImage watermarkedImage = new BufferedImage(
-                originalImage.getWidth(), originalImage.getHeight(), BufferedImage.TYPE_INT_ARGB
-        );
+        BufferedImage watermarkedImage = drawableCopyOf(originalImage);
 
         Graphics2D g2d = watermarkedImage.createGraphics();
 
@@ -75,9 +121,6 @@ public class ImageUtils {
         g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
         g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
 
-        // 绘制原图
-        g2d.drawImage(originalImage, 0, 0, null);
-
         // 设置水印样式
         g2d.setFont(font);
         g2d.setColor(color);
@@ -94,17 +137,15 @@ public class ImageUtils {
         return watermarkedImage;
     }
 
+    /**
+     * 绘制图片水印。可以直接绘制的图片会被原地修改并返回，否则返回 ARGB 副本
+     */
     public static BufferedImage applyImageWatermark(BufferedImage originalImage, BufferedImage watermarkImage,
                                                     float opacity, double scale, int x, int y) {
-        BufferedImage watermarkedImage = new BufferedImage(
-                originalImage.getWidth(), originalImage.getHeight(), BufferedImage.TYPE_INT_ARGB
-        );
+        BufferedImage watermarkedImage = drawableCopyOf(originalImage);
 
         Graphics2D g2d = watermarkedImage.createGraphics();
 
-        // 绘制原图
-        g2d.drawImage(originalImage, 0, 0, null);
-
         // 计算水印尺寸
         int watermarkWidth = (int) (watermarkImage.getWidth() * scale);
         int watermarkHeight = (int) (watermarkImage.getHeight() * scale);
@@ -118,4 +159,18 @@ public class ImageUtils {
 
         return watermarkedImage;
     }
-}
\ No newline at end of file
+
+    private static BufferedImage drawableCopyOf(BufferedImage originalImage) {
+        if (isDrawableInPlace(originalImage)) {
+            return originalImage;
+        }
+        // 创建带透明通道的图像
+        BufferedImage copy = new BufferedImage(
+                originalImage.getWidth(), originalImage.getHeight(), BufferedImage.TYPE_INT_ARGB
+        );
+        Graphics2D g2d = copy.createGraphics();
+        g2d.drawImage(originalImage, 0, 0, null);
+        g2d.dispose();
+        return copy;
+    }
+}
@@ -0,0 +1,157 @@
+package com.puxinheihei.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按像素内存预算进行准入控制
+ *
+ * 每张图片在解码前根据文件头中的宽、高和每像素字节数估算需要的内存
+ * （解码后的原图 + 原图无法直接绘制时的一份 TYPE_INT_ARGB / TYPE_INT_RGB 画布，JPEG 保存时不再转换），
+ * 只有预算足够时才允许开始处理。
+ * 小图可以并行通过，大图会因为预算不足而被串行化，避免多张超大全景图同时解码导致 OOM。
+ *
+ * 内部使用公平信号量，以 KB 为单位计数，按提交顺序准入，大图不会被小图饿死。
+ */
+@Slf4j
+public class PixelBudget {
+
+    private static final int KB = 1024;
+
+    // 预算大小的系统属性（单位 MB），例如 -Dphoto.watermark.memoryBudgetMb=2048
+    private static final String BUDGET_PROPERTY = "photo.watermark.memoryBudgetMb";
+
+    // 渲染副本：最多一份 4 字节/像素的画布
+    private static final int COPY_BYTES_PER_PIXEL = 4;
+
+    // 无法读取文件头时，按压缩文件大小的倍数粗略估算
+    private static final int UNKNOWN_EXPANSION_RATIO = 20;
+
+    private final Semaphore permits;
+    private final int capacityKb;
+
+    public PixelBudget(long budgetBytes) {
+        this.capacityKb = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes / KB));
+        this.permits = new Semaphore(capacityKb, true);
+    }
+
+    /**
+     * 默认预算：优先使用系统属性配置，否则为最大堆内存的 60%
+     */
+    public static long defaultBudgetBytes() {
+        String configured = System.getProperty(BUDGET_PROPERTY);
+        if (configured != null && !configured.isBlank()) {
+            try {
+                return Math.max(1, Long.parseLong(configured.trim())) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                log.warn("内存预算配置无效: {}", configured);
+            }
+        }
+        return (long) (Runtime.getRuntime().maxMemory() * 0.6);
+    }
+
+    /**
+     * 为图片预留内存，预算不足时阻塞
+     *
+     * @return 预留的额度，处理结束后需要调用 {@link #release(int)} 归还
+     */
+    public int acquire(File imageFile) throws InterruptedException {
+        int request = toPermits(estimateBytes(imageFile));
+        permits.acquire(request);
+        return request;
+    }
+
+    /**
+     * 不等待地预留指定的字节数，用于随时可以放弃的内存（例如空闲的画布）；
+     * 有线程在等待预算时不会插到它们前面
+     *
+     * @return 预留的额度，预算不足时返回 0
+     */
+    public int tryAcquire(long bytes) {
+        long kb = (bytes + KB - 1) / KB;
+        if (kb > capacityKb) {
+            return 0;
+        }
+        int request = (int) Math.max(1, kb);
+        try {
+            return permits.tryAcquire(request, 0, TimeUnit.MILLISECONDS) ? request : 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+    }
+
+    /**
+     * 归还预留的额度
+     */
+    public void release(int reservation) {
+        if (reservation > 0) {
+            permits.release(reservation);
+        }
+    }
+
+    public long getCapacityBytes() {
+        return (long) capacityKb * KB;
+    }
+
+    public long getAvailableBytes() {
+        return (long) permits.availablePermits() * KB;
+    }
+
+    /**
+     * 超过总预算的图片按总预算计算，保证它可以单独运行
+     */
+    private int toPermits(long bytes) {
+        long kb = (bytes + KB - 1) / KB;
+        return (int) Math.max(1, Math.min(capacityKb, kb));
+    }
+
+    /**
+     * 只读取文件头估算图片解码和渲染所需的内存
+     */
+    static long estimateBytes(File imageFile) {
+        try (ImageInputStream input = ImageIO.createImageInputStream(imageFile)) {
+            if (input != null) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+                if (readers.hasNext()) {
+                    ImageReader reader = readers.next();
+                    try {
+                        reader.setInput(input, true, true);
+                        long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+                        return pixels * (decodedBytesPerPixel(reader) + COPY_BYTES_PER_PIXEL);
+                    } finally {
+                        reader.dispose();
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("无法读取图片尺寸: {}", imageFile.getAbsolutePath(), e);
+        }
+        return imageFile.length() * UNKNOWN_EXPANSION_RATIO;
+    }
+
+    /**
+     * 解码后每像素占用的字节数，无法确定时按 4 字节计算
+     */
+    private static int decodedBytesPerPixel(ImageReader reader) {
+        try {
+            ImageTypeSpecifier type = reader.getRawImageType(0);
+            if (type != null) {
+                int bits = type.getColorModel().getPixelSize();
+                return Math.max(1, (bits + 7) / 8);
+            }
+        } catch (IOException | RuntimeException ignored) {
+            // 使用默认值
+        }
+        return 4;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,144 @@
+package com.puxinheihei.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 可复用的渲染画布
+ *
+ * 解码后的图片类型无法直接绘制时（灰度、调色板等），水印需要画在一份 int 像素的副本上。
+ * 2400 万像素的图片每份副本约 96 MB，预览时每次调整参数、导出时每张图片都分配一份会给 GC 带来很大压力。
+ * 这里保留最近归还的几块像素缓冲区，尺寸相近的图片（包括横竖互换）直接复用，
+ * 只重新包装一个 BufferedImage，不再分配像素内存。
+ *
+ * 指定了 {@link PixelBudget} 时，空闲缓冲区占用的内存也从预算中预留（取出使用时归还，
+ * 此时由使用它的图片自己的预留额度覆盖），预算不足时归还的缓冲区直接丢弃，
+ * 保证空闲缓冲区加上正在处理的图片不超出预算。
+ *
+ * 取出的画布内容是上一张图片留下的，调用方需要自行覆盖或清空。
+ */
+public class RasterPool {
+
+    // 复用的缓冲区最多比需要的大这么多（1/4），避免小图长期占用大缓冲区
+    private static final int MAX_SLACK_DIVISOR = 4;
+
+    private final int imageType;
+    private final DirectColorModel colorModel;
+    private final int maxIdle;
+    private final PixelBudget budget;
+    private final Deque<IdleBuffer> idle = new ArrayDeque<>();
+
+    /**
+     * @param imageType BufferedImage.TYPE_INT_RGB 或 TYPE_INT_ARGB
+     * @param maxIdle   最多保留的空闲缓冲区数量
+     */
+    public RasterPool(int imageType, int maxIdle) {
+        this(imageType, maxIdle, null);
+    }
+
+    /**
+     * @param budget 空闲缓冲区占用的内存从这里预留，为 null 时不计入预算
+     */
+    public RasterPool(int imageType, int maxIdle, PixelBudget budget) {
+        this.imageType = imageType;
+        this.colorModel = (DirectColorModel) new BufferedImage(1, 1, imageType).getColorModel();
+        this.maxIdle = maxIdle;
+        this.budget = budget;
+    }
+
+    /**
+     * 取出一块指定尺寸的画布，没有合适的空闲缓冲区时新建
+     */
+    public BufferedImage acquire(int width, int height) {
+        long pixels = (long) width * height;
+        IdleBuffer reused = null;
+        synchronized (this) {
+            Iterator<IdleBuffer> iterator = idle.iterator();
+            while (iterator.hasNext()) {
+                IdleBuffer candidate = iterator.next();
+                int size = candidate.buffer.getSize();
+                if (size >= pixels && size <= pixels + pixels / MAX_SLACK_DIVISOR) {
+                    iterator.remove();
+                    reused = candidate;
+                    break;
+                }
+            }
+        }
+        if (reused == null) {
+            return new BufferedImage(width, height, imageType);
+        }
+        releaseBudget(reused);
+        DataBufferInt buffer = reused.buffer;
+        WritableRaster raster = Raster.createPackedRaster(buffer, width, height, width, colorModel.getMasks(), null);
+        return new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * 归还画布，之后调用方不能再使用它；类型不符的图片直接忽略
+     */
+    public void release(BufferedImage image) {
+        if (image == null || image.getType() != imageType) {
+            return;
+        }
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        if (!(buffer instanceof DataBufferInt) || buffer.getNumBanks() != 1) {
+            return;
+        }
+        int reservation = 0;
+        if (budget != null) {
+            reservation = budget.tryAcquire((long) buffer.getSize() * Integer.BYTES);
+            if (reservation == 0) {
+                // 预算已被正在处理的图片占用，不保留
+                return;
+            }
+        }
+        List<IdleBuffer> evicted = new ArrayList<>();
+        synchronized (this) {
+            idle.addFirst(new IdleBuffer((DataBufferInt) buffer, reservation));
+            while (idle.size() > maxIdle) {
+                evicted.add(idle.removeLast());
+            }
+        }
+        evicted.forEach(this::releaseBudget);
+    }
+
+    /**
+     * 丢弃所有空闲缓冲区并归还它们的预算
+     */
+    public void clear() {
+        List<IdleBuffer> evicted;
+        synchronized (this) {
+            evicted = new ArrayList<>(idle);
+            idle.clear();
+        }
+        evicted.forEach(this::releaseBudget);
+    }
+
+    private void releaseBudget(IdleBuffer idleBuffer) {
+        if (budget != null) {
+            budget.release(idleBuffer.reservation);
+        }
+    }
+
+    /**
+     * 空闲的缓冲区及其预留的预算
+     */
+    private static final class IdleBuffer {
+        private final DataBufferInt buffer;
+        private final int reservation;
+
+        private IdleBuffer(DataBufferInt buffer, int reservation) {
+            this.buffer = buffer;
+            this.reservation = reservation;
+        }
+    }
+}
\ No newline at end of file
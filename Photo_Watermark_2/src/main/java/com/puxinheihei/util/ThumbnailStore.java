@@ -0,0 +1,443 @@
+package com.puxinheihei.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 磁盘缩略图缓存
+ *
+ * 所有缩略图（已编码的小尺寸 JPEG/PNG）依次追加到一个数据文件中，读取时通过内存映射直接取出，
+ * 不需要为每张图片打开一个文件；映射之后追加的数据直接从文件读取，积累到一定大小后才重新映射。
+ * 索引按图片的绝对路径记录数据位置，以及生成缩略图时原图的大小和修改时间，原图变化后旧的缩略图自动失效。
+ *
+ * 索引文件先写表头，之后每次添加或删除追加一条记录，异常退出时已追加的记录不会丢失；
+ * {@link #close()} 时按最近使用顺序重写为紧凑格式。
+ *
+ * 总大小超过上限时淘汰最久未使用的缩略图；被淘汰和失效的数据积累到一定程度后，
+ * 把仍然有效的数据复制到新的数据文件（文件名带编号，不会覆盖仍被映射的旧文件）。
+ */
+@Slf4j
+public class ThumbnailStore implements Closeable {
+
+    private static final String INDEX_FILE = "thumbnails.idx";
+    private static final String PACK_PREFIX = "thumbnails-";
+    private static final String PACK_SUFFIX = ".pack";
+
+    private static final int MAGIC = 0x50574854;
+    private static final int VERSION = 1;
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    // 失效数据超过该值且超过有效数据时整理数据文件
+    private static final long COMPACT_MIN_GARBAGE = 16L * 1024 * 1024;
+    // 映射之后追加的数据超过该值时重新映射（旧映射要等 GC 才释放，不能每次追加都重新映射）
+    private static final long REMAP_STEP = 4L * 1024 * 1024;
+
+    private final Path directory;
+    private final long maxBytes;
+
+    // 路径 -> 缩略图位置，按访问顺序排列，最前面的是最久未使用的
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(1024, 0.75f, true);
+    private long liveBytes;
+
+    private int packNumber;
+    private FileChannel packChannel;
+    private long packLength;
+    private MappedByteBuffer mapped;
+
+    private DataOutputStream journal;
+    private int unflushedRecords;
+
+    private ThumbnailStore(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 打开目录中的缩略图缓存，不存在或已损坏时创建新的缓存
+     *
+     * @param maxBytes 缩略图数据的总大小上限
+     */
+    public static ThumbnailStore open(Path directory, long maxBytes) throws IOException {
+        if (maxBytes <= 0 || maxBytes > Integer.MAX_VALUE / 4) {
+            throw new IllegalArgumentException("缩略图缓存上限无效: " + maxBytes);
+        }
+        Files.createDirectories(directory);
+        ThumbnailStore store = new ThumbnailStore(directory, maxBytes);
+        store.load();
+        return store;
+    }
+
+    /**
+     * 读取缩略图数据，没有缓存或原图已变化时返回 null
+     */
+    public synchronized byte[] get(File imageFile) {
+        if (packChannel == null) {
+            return null;
+        }
+        String key = imageFile.getAbsolutePath();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(imageFile.toPath(), BasicFileAttributes.class);
+            if (attributes.size() != entry.sourceSize
+                    || attributes.lastModifiedTime().toMillis() != entry.sourceModified) {
+                remove(key);
+                return null;
+            }
+            if (entry.offset + entry.length > mapped.capacity() && packLength - mapped.capacity() >= REMAP_STEP) {
+                remap();
+            }
+            byte[] data = new byte[entry.length];
+            if (entry.offset + entry.length <= mapped.capacity()) {
+                mapped.get((int) entry.offset, data);
+            } else {
+                // 映射之后追加的数据
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    if (packChannel.read(buffer, entry.offset + buffer.position()) < 0) {
+                        throw new EOFException("缩略图数据不完整");
+                    }
+                }
+            }
+            return data;
+        } catch (IOException e) {
+            log.debug("读取缩略图缓存失败: {}", key, e);
+            return null;
+        }
+    }
+
+    /**
+     * 保存缩略图数据，替换该图片原有的缩略图
+     */
+    public synchronized void put(File imageFile, byte[] data) {
+        if (packChannel == null || data.length == 0 || data.length > maxBytes) {
+            return;
+        }
+        String key = imageFile.getAbsolutePath();
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(imageFile.toPath(), BasicFileAttributes.class);
+            if (entries.containsKey(key)) {
+                remove(key);
+            }
+
+            long offset = packLength;
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                packLength += packChannel.write(buffer, packLength);
+            }
+            Entry entry = new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), offset, data.length);
+            entries.put(key, entry);
+            liveBytes += data.length;
+            writeRecord(journal, RECORD_PUT, key, entry);
+            // 定期刷新，异常退出时最多丢失最近几条记录
+            if (++unflushedRecords >= 64) {
+                journal.flush();
+                unflushedRecords = 0;
+            }
+
+            evictIfNeeded();
+        } catch (IOException e) {
+            log.warn("写入缩略图缓存失败: {}", key, e);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * 将索引重写为紧凑格式并关闭文件
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (packChannel == null) {
+            return;
+        }
+        try {
+            journal.close();
+            writeIndex(packNumber, null);
+        } finally {
+            packChannel.close();
+            packChannel = null;
+            mapped = null;
+            journal = null;
+        }
+    }
+
+    private void load() throws IOException {
+        Path indexFile = directory.resolve(INDEX_FILE);
+        boolean loaded = false;
+        if (Files.exists(indexFile)) {
+            try {
+                loaded = readIndex(indexFile);
+            } catch (IOException e) {
+                log.warn("缩略图索引已损坏，重新建立: {}", e.getMessage());
+            }
+        }
+        if (!loaded) {
+            entries.clear();
+            liveBytes = 0;
+            packNumber++;
+        }
+
+        Path pack = packFile(packNumber);
+        packChannel = FileChannel.open(pack, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        packLength = packChannel.size();
+
+        // 数据文件比索引记录的短（例如被手动删除），丢弃无效的记录
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry.offset + entry.length > packLength) {
+                liveBytes -= entry.length;
+                iterator.remove();
+            }
+        }
+        remap();
+
+        // 重写索引，之后的修改追加在后面
+        writeIndex(packNumber, null);
+        journal = openJournal();
+        deleteStalePacks();
+        log.info("缩略图缓存: {} 张，{} KB", entries.size(), liveBytes / 1024);
+
+        evictIfNeeded();
+    }
+
+    private boolean readIndex(Path indexFile) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                return false;
+            }
+            packNumber = input.readInt();
+            while (true) {
+                byte type;
+                try {
+                    type = input.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                try {
+                    String key = input.readUTF();
+                    if (type == RECORD_PUT) {
+                        Entry entry = new Entry(input.readLong(), input.readLong(), input.readLong(), input.readInt());
+                        Entry previous = entries.put(key, entry);
+                        liveBytes += entry.length - (previous != null ? previous.length : 0);
+                    } else if (type == RECORD_REMOVE) {
+                        Entry previous = entries.remove(key);
+                        if (previous != null) {
+                            liveBytes -= previous.length;
+                        }
+                    } else {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    // 最后一条记录写了一半，忽略
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 按最近使用顺序写出完整索引（临时文件 + 原子替换）
+     *
+     * @param offsets 按 entries 顺序的数据位置，为 null 时使用各条目当前的位置
+     */
+    private void writeIndex(int number, long[] offsets) throws IOException {
+        Path indexFile = directory.resolve(INDEX_FILE);
+        Path temp = directory.resolve(INDEX_FILE + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(number);
+            int index = 0;
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry value = entry.getValue();
+                long offset = offsets != null ? offsets[index++] : value.offset;
+                writeRecord(output, RECORD_PUT, entry.getKey(), value, offset);
+            }
+        }
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private DataOutputStream openJournal() throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(directory.resolve(INDEX_FILE),
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)));
+    }
+
+    private static void writeRecord(DataOutputStream output, byte type, String key, Entry entry) throws IOException {
+        writeRecord(output, type, key, entry, entry != null ? entry.offset : 0);
+    }
+
+    private static void writeRecord(DataOutputStream output, byte type, String key, Entry entry, long offset)
+            throws IOException {
+        output.writeByte(type);
+        output.writeUTF(key);
+        if (type == RECORD_PUT) {
+            output.writeLong(entry.sourceSize);
+            output.writeLong(entry.sourceModified);
+            output.writeLong(offset);
+            output.writeInt(entry.length);
+        }
+    }
+
+    private void remove(String key) throws IOException {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            liveBytes -= entry.length;
+            writeRecord(journal, RECORD_REMOVE, key, null);
+        }
+    }
+
+    /**
+     * 超过上限时淘汰最久未使用的缩略图，直到低于上限的九成
+     */
+    private void evictIfNeeded() throws IOException {
+        if (liveBytes > maxBytes) {
+            long target = maxBytes / 10 * 9;
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            int evicted = 0;
+            while (liveBytes > target && iterator.hasNext()) {
+                Map.Entry<String, Entry> eldest = iterator.next();
+                iterator.remove();
+                liveBytes -= eldest.getValue().length;
+                writeRecord(journal, RECORD_REMOVE, eldest.getKey(), null);
+                evicted++;
+            }
+            log.debug("淘汰 {} 张缩略图", evicted);
+        }
+
+        long garbage = packLength - liveBytes;
+        if (garbage > COMPACT_MIN_GARBAGE && garbage > liveBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * 将有效数据复制到新的数据文件，并切换到新文件
+     *
+     * 新位置先记在单独的数组中，新文件写入磁盘、索引替换完成后才更新条目；
+     * 中途失败时条目仍指向旧文件中的数据，缓存继续可用。
+     */
+    private void compact() throws IOException {
+        int newNumber = packNumber + 1;
+        Path newPack = packFile(newNumber);
+        FileChannel newChannel = FileChannel.open(newPack, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long[] newOffsets = new long[entries.size()];
+        long newLength = 0;
+        try {
+            int index = 0;
+            for (Entry entry : entries.values()) {
+                long copied = 0;
+                while (copied < entry.length) {
+                    copied += packChannel.transferTo(entry.offset + copied, entry.length - copied, newChannel);
+                }
+                newOffsets[index++] = newLength;
+                newLength += entry.length;
+            }
+            newChannel.force(false);
+
+            // 先把已追加的记录写进旧索引，替换失败时旧索引仍然完整
+            journal.close();
+            try {
+                writeIndex(newNumber, newOffsets);
+            } catch (IOException e) {
+                journal = openJournal();
+                throw e;
+            }
+        } catch (IOException e) {
+            newChannel.close();
+            Files.deleteIfExists(newPack);
+            throw e;
+        }
+
+        int index = 0;
+        for (Entry entry : entries.values()) {
+            entry.offset = newOffsets[index++];
+        }
+        packChannel.close();
+        packChannel = newChannel;
+        packLength = newLength;
+        int oldNumber = packNumber;
+        packNumber = newNumber;
+        journal = openJournal();
+        remap();
+        log.info("整理缩略图缓存: {} 张，{} KB", entries.size(), liveBytes / 1024);
+
+        try {
+            Files.deleteIfExists(packFile(oldNumber));
+        } catch (IOException e) {
+            // 旧文件可能仍被映射（Windows），下次打开时再删除
+            log.debug("暂时无法删除旧的缩略图数据文件: {}", e.getMessage());
+        }
+    }
+
+    private void remap() throws IOException {
+        mapped = packChannel.map(FileChannel.MapMode.READ_ONLY, 0, packChannel.size());
+    }
+
+    private void deleteStalePacks() {
+        String current = packFile(packNumber).getFileName().toString();
+        try (DirectoryStream<Path> packs = Files.newDirectoryStream(directory, PACK_PREFIX + "*" + PACK_SUFFIX)) {
+            for (Path pack : packs) {
+                if (!pack.getFileName().toString().equals(current)) {
+                    Files.deleteIfExists(pack);
+                }
+            }
+        } catch (IOException e) {
+            log.debug("清理旧的缩略图数据文件失败: {}", e.getMessage());
+        }
+    }
+
+    private Path packFile(int number) {
+        return directory.resolve(PACK_PREFIX + number + PACK_SUFFIX);
+    }
+
+    /**
+     * 一张缩略图在数据文件中的位置，以及生成时原图的大小和修改时间
+     */
+    private static final class Entry {
+        private final long sourceSize;
+        private final long sourceModified;
+        private long offset;
+        private final int length;
+
+        private Entry(long sourceSize, long sourceModified, long offset, int length) {
+            this.sourceSize = sourceSize;
+            this.sourceModified = sourceModified;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}